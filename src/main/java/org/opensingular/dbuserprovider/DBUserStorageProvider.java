@@ -2,9 +2,11 @@ package org.opensingular.dbuserprovider;
 
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 import org.jboss.logging.Logger;
@@ -18,41 +20,80 @@ import org.keycloak.models.RealmModel;
 import org.keycloak.models.RoleModel;
 import org.keycloak.models.UserCredentialModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
 import org.keycloak.models.cache.CachedUserModel;
+import org.keycloak.models.cache.UserCache;
 import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.storage.StorageId;
+import org.keycloak.storage.UserStoragePrivateUtil;
 import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.user.UserLookupProvider;
 import org.keycloak.storage.user.UserQueryProvider;
 import org.keycloak.storage.user.UserRegistrationProvider;
+import org.opensingular.dbuserprovider.model.ProjectionProfile;
 import org.opensingular.dbuserprovider.model.QueryConfigurations;
 import org.opensingular.dbuserprovider.model.UserAdapter;
-import org.opensingular.dbuserprovider.persistence.DataSourceProvider;
-import org.opensingular.dbuserprovider.persistence.UserRepository;
+import org.opensingular.dbuserprovider.persistence.QueryExecutor;
+import org.opensingular.dbuserprovider.persistence.ShardedUserRepository;
+import org.opensingular.dbuserprovider.persistence.UserVersionCache;
 import org.opensingular.dbuserprovider.util.PagingUtil;
 
 public class DBUserStorageProvider implements UserStorageProvider,
                                               UserLookupProvider, UserQueryProvider, CredentialInputUpdater, CredentialInputValidator, UserRegistrationProvider {
 
     private static final Logger log = Logger.getLogger(DBUserStorageProvider.class);
+    // set through the user model setters, or only meaningful in the external database
+    private static final Set<String> MIGRATION_SKIPPED_ATTRIBUTES = Set.of("id", UserModel.USERNAME, UserModel.EMAIL, UserModel.FIRST_NAME, UserModel.LAST_NAME,
+                                                                           UserSynchronizer.EXTERNAL_ID_ATTRIBUTE);
     private final KeycloakSession session;
     private final ComponentModel  model;
-    private final UserRepository  repository;
+    private final ShardedUserRepository repository;
+    private final QueryExecutor queryExecutor;
+    private final QueryConfigurations queryConfigurations;
+    private final UserVersionCache userVersions;
     private final boolean allowDatabaseToOverwriteKeycloak;
 
-    DBUserStorageProvider(KeycloakSession session, ComponentModel model, DataSourceProvider dataSourceProvider, QueryConfigurations queryConfigurations) {
+    DBUserStorageProvider(KeycloakSession session, ComponentModel model, ShardedUserRepository repository, QueryExecutor queryExecutor,
+                          QueryConfigurations queryConfigurations, UserVersionCache userVersions) {
         this.session    = session;
         this.model      = model;
-        this.repository = new UserRepository(dataSourceProvider, queryConfigurations);
+        this.repository = repository;
+        this.queryExecutor = queryExecutor;
+        this.queryConfigurations = queryConfigurations;
+        this.userVersions = userVersions;
         this.allowDatabaseToOverwriteKeycloak = queryConfigurations.getAllowDatabaseToOverwriteKeycloak();
     }
     
     
     private Stream<UserModel> toUserModel(RealmModel realm, List<Map<String, String>> users) {
         return users.stream()
-                    .map(m -> new UserAdapter(session, realm, model, m, allowDatabaseToOverwriteKeycloak));
+                    .map(m -> toUserAdapter(realm, m, ProjectionProfile.SEARCH));
     }
     
+    private UserAdapter toUserAdapter(RealmModel realm, Map<String, String> user, ProjectionProfile profile) {
+        Set<String> lazyAttributes = queryConfigurations.getLazyAttributes(profile);
+        if (lazyAttributes.isEmpty()) {
+            return new UserAdapter(session, realm, model, user, allowDatabaseToOverwriteKeycloak);
+        }
+        String externalId = user.get("id");
+        return new UserAdapter(session, realm, model, user, allowDatabaseToOverwriteKeycloak, lazyAttributes,
+                               () -> repository.findUserById(externalId, ProjectionProfile.FULL));
+    }
+    
+    
+    /**
+     * Id of the user in the external database, kept in an attribute for users imported by {@link UserSynchronizer}.
+     */
+    private static String externalId(UserModel user) {
+        if (StorageId.isLocalStorage(user.getId())) {
+            String importedId = user.getFirstAttribute(UserSynchronizer.EXTERNAL_ID_ATTRIBUTE);
+            if (importedId != null) {
+                return importedId;
+            }
+        }
+        return StorageId.externalId(user.getId());
+    }
     
     @Override
     public boolean supportsCredentialType(String credentialType) {
@@ -74,23 +115,126 @@ public class DBUserStorageProvider implements UserStorageProvider,
         }
         
         UserCredentialModel cred = (UserCredentialModel) input;
+        boolean valid = validateCredentials(realm, user, cred);
+        if (valid && queryConfigurations.getMigrateOnLogin()) {
+            migrateToLocal(realm, user, cred.getChallengeResponse());
+        }
+        return valid;
+    }
+    
+    private boolean validateCredentials(RealmModel realm, UserModel user, UserCredentialModel cred) {
+        String externalId = externalId(user);
 
-        UserModel dbUser = user;
-        // If the cache just got loaded in the last 500 millisec (i.e. probably part of the actual flow), there is no point in reloading the user.)
-        if (allowDatabaseToOverwriteKeycloak && user instanceof CachedUserModel && (System.currentTimeMillis() - ((CachedUserModel) user).getCacheTimestamp()) > 500) {
-          dbUser = this.getUserById(realm, user.getId());
+        // If the cache just got loaded within the reload staleness (i.e. probably part of the actual flow), there is no point in reloading the user.)
+        if (allowDatabaseToOverwriteKeycloak && user instanceof CachedUserModel
+            && (System.currentTimeMillis() - ((CachedUserModel) user).getCacheTimestamp()) > queryConfigurations.getReloadStalenessMillis()) {
+          String username = user.getUsername();
+          String password = cred.getChallengeResponse();
+          Supplier<Boolean> valid;
+          String knownVersion = null;
+          String version = null;
+          if (queryConfigurations.hasVersionProbe()) {
+            // read the version and check the password at the same time; an unchanged user is not reloaded
+            Supplier<String> probed;
+            try (QueryExecutor.Scope scope = queryExecutor.open()) {
+              probed = scope.fork(() -> repository.findVersion(externalId));
+              valid = scope.fork(() -> repository.validateCredentials(externalId, username, password));
+              scope.join();
+            }
+            knownVersion = userVersions.get(externalId);
+            version = probed.get();
+            if (version != null && version.equals(knownVersion)) {
+              return valid.get();
+            }
+          } else {
+            valid = null;
+          }
+
+          // reload the user and check the password of the cached username at the same time; only a renamed user needs a second check
+          Supplier<Map<String, String>> reloaded;
+          try (QueryExecutor.Scope scope = queryExecutor.open()) {
+            log.infov("lookup user by id: realm={0} userId={1}", realm.getId(), user.getId());
+            reloaded = scope.fork(() -> repository.findUserById(externalId, ProjectionProfile.LOGIN));
+            if (valid == null) {
+              valid = scope.fork(() -> repository.validateCredentials(externalId, username, password));
+            }
+            scope.join();
+          }
 
-          if (dbUser == null) {
+          if (reloaded.get() == null) {
+            userVersions.invalidate(externalId);
             ((CachedUserModel) user).invalidate();
             return false;
           }
+          UserModel dbUser = toUserAdapter(realm, reloaded.get(), ProjectionProfile.LOGIN);
+          userVersions.put(externalId, version);
 
-          // For now, we'll just invalidate the cache if username or email has changed. Eventually we could check all (or a parametered list of) attributes fetched from the DB.
-          if (!java.util.Objects.equals(user.getUsername(), dbUser.getUsername()) || !java.util.Objects.equals(user.getEmail(), dbUser.getEmail())) {
+          // For now, we'll just invalidate the cache if username or email has changed, or if the version changed since it was last seen. Eventually we could check all (or a parametered list of) attributes fetched from the DB.
+          if (!java.util.Objects.equals(user.getUsername(), dbUser.getUsername()) || !java.util.Objects.equals(user.getEmail(), dbUser.getEmail())
+              || (knownVersion != null && !knownVersion.equals(version))) {
             ((CachedUserModel) user).invalidate();
           }
+          if (!java.util.Objects.equals(username, dbUser.getUsername())) {
+            return repository.validateCredentials(externalId, dbUser.getUsername(), password);
+          }
+          return valid.get();
+        }
+        return repository.validateCredentials(externalId, user.getUsername(), cred.getChallengeResponse());
+    }
+    
+    /**
+     * Moves a user who just logged in to Keycloak's local store, with the password hashed according to the realm's
+     * password policy, and detaches it from this provider so later logins no longer reach the external database.
+     * Runs in its own transaction, so a failed migration does not fail the login.
+     */
+    private void migrateToLocal(RealmModel realm, UserModel user, String password) {
+        String                    realmId    = realm.getId();
+        String                    userId     = user.getId();
+        boolean                   imported   = StorageId.isLocalStorage(userId);
+        String                    username   = user.getUsername();
+        Map<String, List<String>> attributes = imported ? Map.of() : new HashMap<>(user.getAttributes());
+        String                    email      = user.getEmail();
+        String                    firstName  = user.getFirstName();
+        String                    lastName   = user.getLastName();
+        boolean                   enabled    = user.isEnabled();
+        boolean                   verified   = user.isEmailVerified();
+        try {
+            KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), s -> {
+                RealmModel   localRealm = s.realms().getRealm(realmId);
+                UserProvider localUsers = UserStoragePrivateUtil.userLocalStorage(s);
+                UserModel    local;
+                if (imported) {
+                    // imported by a synchronization: unlink it first, so the password is stored locally
+                    local = localUsers.getUserById(localRealm, userId);
+                    local.setFederationLink(null);
+                    local.removeAttribute(UserSynchronizer.EXTERNAL_ID_ATTRIBUTE);
+                } else {
+                    if (localUsers.getUserByUsername(localRealm, username) != null) {
+                        log.warnv("User {0} already exists in Keycloak, not migrating it", username);
+                        return;
+                    }
+                    local = localUsers.addUser(localRealm, username);
+                    local.setEnabled(enabled);
+                    local.setEmail(email);
+                    local.setEmailVerified(verified);
+                    local.setFirstName(firstName);
+                    local.setLastName(lastName);
+                    attributes.forEach((name, values) -> {
+                        if (!MIGRATION_SKIPPED_ATTRIBUTES.contains(name)) {
+                            local.setAttribute(name, values);
+                        }
+                    });
+                }
+                local.credentialManager().updateCredential(UserCredentialModel.password(password, false));
+                log.infov("migrated user to Keycloak: realm={0} username={1}", realmId, username);
+            });
+            UserCache userCache = session.getProvider(UserCache.class);
+            if (userCache != null) {
+                userCache.evict(realm, user);
+            }
+        } catch (RuntimeException e) {
+            log.errorv(e, "Could not migrate user {0} to Keycloak", username);
         }
-        return repository.validateCredentials(dbUser.getUsername(), cred.getChallengeResponse());
     }
     
     @Override
@@ -103,7 +247,7 @@ public class DBUserStorageProvider implements UserStorageProvider,
         }
         
         UserCredentialModel cred = (UserCredentialModel) input;
-        return repository.updateCredentials(user.getUsername(), cred.getChallengeResponse());
+        return repository.updateCredentials(externalId(user), user.getUsername(), user.getEmail(), cred.getChallengeResponse());
     }
     
     @Override
@@ -141,17 +285,21 @@ public class DBUserStorageProvider implements UserStorageProvider,
     
     @Override
     public UserModel getUserById(RealmModel realm, String id) {
+        return getUserById(realm, id, ProjectionProfile.FULL);
+    }
+    
+    private UserModel getUserById(RealmModel realm, String id, ProjectionProfile profile) {
         
         log.infov("lookup user by id: realm={0} userId={1}", realm.getId(), id);
         
         String externalId = StorageId.externalId(id);
-        Map<String, String> user = repository.findUserById(externalId);
+        Map<String, String> user = repository.findUserById(externalId, profile);
 
         if (user == null) {
             log.debugv("findUserById returned null, skipping creation of UserAdapter, expect login error");
             return null;
         } else {
-            return new UserAdapter(session, realm, model, user, allowDatabaseToOverwriteKeycloak);
+            return toUserAdapter(realm, user, profile);
         }
     }
     
@@ -160,7 +308,7 @@ public class DBUserStorageProvider implements UserStorageProvider,
         
         log.infov("lookup user by username: realm={0} username={1}", realm.getId(), username);
         
-        return repository.findUserByUsername(username).map(u -> new UserAdapter(session, realm, model, u, allowDatabaseToOverwriteKeycloak)).orElse(null);
+        return repository.findUserByUsername(username, ProjectionProfile.LOGIN).map(u -> toUserAdapter(realm, u, ProjectionProfile.LOGIN)).orElse(null);
     }
     
     @Override
@@ -168,7 +316,7 @@ public class DBUserStorageProvider implements UserStorageProvider,
         
         log.infov("lookup user by email: realm={0} email={1}", realm.getId(), email);
         
-        return repository.findUserByEmail(email).map(u -> new UserAdapter(session, realm, model, u, allowDatabaseToOverwriteKeycloak)).orElse(null);
+        return repository.findUserByEmail(email, ProjectionProfile.LOGIN).map(u -> toUserAdapter(realm, u, ProjectionProfile.LOGIN)).orElse(null);
     }
     
     @Override
@@ -1,55 +1,147 @@
 package org.opensingular.dbuserprovider;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import org.apache.commons.lang3.StringUtils;
+import org.infinispan.Cache;
 import org.jboss.logging.Logger;
 import org.keycloak.Config;
+import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
+import org.opensingular.dbuserprovider.model.ProjectionProfile;
 import org.opensingular.dbuserprovider.model.QueryConfigurations;
+import org.opensingular.dbuserprovider.persistence.ChangeFeed;
+import org.opensingular.dbuserprovider.persistence.ChangeFeedListener;
+import org.opensingular.dbuserprovider.persistence.CircuitBreaker;
+import org.opensingular.dbuserprovider.persistence.ClusterCaches;
+import org.opensingular.dbuserprovider.persistence.CountStrategy;
 import org.opensingular.dbuserprovider.persistence.DataSourceProvider;
+import org.opensingular.dbuserprovider.persistence.DataSourceRegistry;
+import org.opensingular.dbuserprovider.persistence.LocalCopyRefresher;
+import org.opensingular.dbuserprovider.persistence.LocalUserCopy;
+import org.opensingular.dbuserprovider.persistence.OperationClass;
+import org.opensingular.dbuserprovider.persistence.PoolSettings;
+import org.opensingular.dbuserprovider.persistence.QueryExecutor;
 import org.opensingular.dbuserprovider.persistence.RDBMS;
+import org.opensingular.dbuserprovider.persistence.RepositoryCaches;
+import org.opensingular.dbuserprovider.persistence.SearchIndex;
+import org.opensingular.dbuserprovider.persistence.Shard;
+import org.opensingular.dbuserprovider.persistence.ShardRouter;
+import org.opensingular.dbuserprovider.persistence.ShardRouting;
+import org.opensingular.dbuserprovider.persistence.ShardedUserRepository;
+import org.opensingular.dbuserprovider.persistence.SnapshotMode;
+import org.opensingular.dbuserprovider.persistence.UserRepository;
+import org.opensingular.dbuserprovider.persistence.UserSnapshot;
+import org.opensingular.dbuserprovider.persistence.UserVersionCache;
+import org.opensingular.dbuserprovider.util.SearchUtil;
 
 import com.google.auto.service.AutoService;
 
 @AutoService(UserStorageProviderFactory.class)
-public class DBUserStorageProviderFactory implements UserStorageProviderFactory<DBUserStorageProvider> {
+public class DBUserStorageProviderFactory implements UserStorageProviderFactory<DBUserStorageProvider>, ImportSynchronization {
     private static final Logger log = Logger.getLogger(DBUserStorageProvider.class);    
+    // shard name of the main JDBC URL
+    private static final String DEFAULT_SHARD = "default";
     
-    private final Map<String, ProviderConfig> providerConfigPerInstance = new HashMap<>();
+    private final Map<String, ProviderConfig> providerConfigPerInstance = new ConcurrentHashMap<>();
+    private final DataSourceRegistry          dataSourceRegistry        = new DataSourceRegistry();
+    private final QueryExecutor               queryExecutor             = new QueryExecutor();
+    private       KeycloakSessionFactory      sessionFactory;
     
     @Override
     public void init(Config.Scope config) {
     }
     
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        this.sessionFactory = factory;
+    }
+    
     @Override
     public void close() {
         for (Map.Entry<String, ProviderConfig> pc : providerConfigPerInstance.entrySet()) {
-            pc.getValue().dataSourceProvider.close();
+            pc.getValue().close();
         }
+        dataSourceRegistry.close();
+        queryExecutor.close();
     }
     
     @Override
     public DBUserStorageProvider create(KeycloakSession session, ComponentModel model) {
         ProviderConfig providerConfig = providerConfigPerInstance.computeIfAbsent(model.getId(), s -> configure(model));
-        return new DBUserStorageProvider(session, model, providerConfig.dataSourceProvider, providerConfig.queryConfigurations);
+        ShardedUserRepository repository = new ShardedUserRepository(providerConfig.shards, providerConfig.shardRouter, queryExecutor, providerConfig.queryConfigurations);
+        return new DBUserStorageProvider(session, model, repository, queryExecutor, providerConfig.queryConfigurations, providerConfig.userVersions);
+    }
+    
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        if (!model.isImportEnabled()) {
+            log.warnv("Import is disabled for {0}, nothing to synchronize", model.getName());
+            return SynchronizationResult.ignored();
+        }
+        ProviderConfig providerConfig = providerConfigPerInstance.computeIfAbsent(model.getId(), s -> configure(model));
+        ShardedUserRepository repository = new ShardedUserRepository(providerConfig.shards, providerConfig.shardRouter, queryExecutor, providerConfig.queryConfigurations);
+        return new UserSynchronizer(repository, sessionFactory, realmId, model, model.get(StorageProviderConfig.SYNC_BATCH_SIZE.name(), 500)).syncAll();
+    }
+    
+    @Override
+    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        if (!model.isImportEnabled()) {
+            log.warnv("Import is disabled for {0}, nothing to synchronize", model.getName());
+            return SynchronizationResult.ignored();
+        }
+        ProviderConfig providerConfig = providerConfigPerInstance.computeIfAbsent(model.getId(), s -> configure(model));
+        if (StringUtils.isBlank(providerConfig.queryConfigurations.getSyncWatermarkColumn())) {
+            // changes cannot be told from the base query, so a periodic changed users sync imports everything again
+            return sync(sessionFactory, realmId, model);
+        }
+        ShardedUserRepository repository = new ShardedUserRepository(providerConfig.shards, providerConfig.shardRouter, queryExecutor, providerConfig.queryConfigurations);
+        return new UserSynchronizer(repository, sessionFactory, realmId, model, model.get(StorageProviderConfig.SYNC_BATCH_SIZE.name(), 500)).syncChanged();
     }
     
     private synchronized ProviderConfig configure(ComponentModel model) {
         log.infov("Creating configuration for model: id={0} name={1}", model.getId(), model.getName());
-        ProviderConfig providerConfig = new ProviderConfig();
+        ProviderConfig providerConfig = new ProviderConfig(model);
         String         user           = model.get(StorageProviderConfig.USER.name());
         String         password       = model.get(StorageProviderConfig.PASSWORD.name());
         String         url            = model.get(StorageProviderConfig.URL.name());
         RDBMS          rdbms          = RDBMS.getByDescription(model.get(StorageProviderConfig.RDBMS.name()));
-        providerConfig.dataSourceProvider.configure(url, rdbms, user, password, model.getName());
+        List<String>   replicaUrls    = Optional.ofNullable(model.getConfig().get(StorageProviderConfig.REPLICA_URLS.name())).orElse(List.of());
+        long           readYourWrites = model.get(StorageProviderConfig.READ_YOUR_WRITES_WINDOW.name(), 10L) * 1000;
+        long           replicaTimeout = model.get(StorageProviderConfig.REPLICA_CONNECTION_TIMEOUT.name(), 1000L);
+        int            hedge          = model.get(StorageProviderConfig.HEDGE_PERCENTILE.name(), 0);
+        Map<String, String> driverProperties = parseProperties(model.getConfig().get(StorageProviderConfig.DRIVER_PROPERTIES.name()));
+        PoolSettings   poolSettings   = new PoolSettings(model.get(StorageProviderConfig.POOL_MIN_SIZE.name(), 2),
+                                                         model.get(StorageProviderConfig.POOL_MAX_SIZE.name(), 20),
+                                                         model.get(StorageProviderConfig.LOGIN_MAX_CONNECTIONS.name(), 0),
+                                                         model.get(StorageProviderConfig.LOGIN_CONNECTION_TIMEOUT.name(), 10000L),
+                                                         model.get(StorageProviderConfig.ADMIN_MAX_CONNECTIONS.name(), 5),
+                                                         model.get(StorageProviderConfig.ADMIN_CONNECTION_TIMEOUT.name(), 30000L));
         providerConfig.queryConfigurations = new QueryConfigurations(
             model.get(StorageProviderConfig.BASE_QUERY.name()),
             model.get(StorageProviderConfig.COUNT.name()),
@@ -62,23 +154,196 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
             model.get(StorageProviderConfig.UPDATE_PASSWORD.name()),
             rdbms,
             model.get(StorageProviderConfig.ALLOW_KEYCLOAK_DELETE.name(), false),
-            model.get(StorageProviderConfig.ALLOW_DATABASE_TO_OVERWRITE_KEYCLOAK.name(), false)
+            model.get(StorageProviderConfig.ALLOW_DATABASE_TO_OVERWRITE_KEYCLOAK.name(), false),
+            model.get(StorageProviderConfig.SEARCH_UNION_REWRITE.name(), false),
+            model.get(StorageProviderConfig.COUNT_WINDOW_TOTAL.name(), false),
+            CountStrategy.getByDescription(model.get(StorageProviderConfig.COUNT_STRATEGY.name())),
+            model.get(StorageProviderConfig.COUNT_CACHE_TTL.name(), 300L) * 1000,
+            model.get(StorageProviderConfig.COUNT_STATISTICS_TABLE.name()),
+            model.get(StorageProviderConfig.SEARCH_CACHE_TTL.name(), 0L) * 1000,
+            model.getConfig().get(StorageProviderConfig.LOGIN_PROJECTION.name()),
+            model.getConfig().get(StorageProviderConfig.SEARCH_PROJECTION.name()),
+            model.get(StorageProviderConfig.LOGIN_QUERY_TIMEOUT.name(), 5),
+            model.get(StorageProviderConfig.ADMIN_QUERY_TIMEOUT.name(), 30),
+            model.get(StorageProviderConfig.SEARCH_FETCH_SIZE.name(), 0),
+            model.get(StorageProviderConfig.SYNC_WATERMARK_COLUMN.name()),
+            model.get(StorageProviderConfig.SYNC_WATERMARK_OVERLAP.name(), 60L),
+            model.get(StorageProviderConfig.FIND_CHANGED_SINCE.name()),
+            model.get(StorageProviderConfig.MIGRATE_ON_LOGIN.name(), false),
+            model.get(StorageProviderConfig.REHASH_FUNCTION.name()),
+            model.get(StorageProviderConfig.REHASH_SOURCE_QUERY.name()),
+            model.get(StorageProviderConfig.REHASH_UPDATE_QUERY.name()),
+            model.get(StorageProviderConfig.FIND_VERSION.name()),
+            model.get(StorageProviderConfig.RELOAD_STALENESS.name(), 500L),
+            SnapshotMode.getByDescription(model.get(StorageProviderConfig.USER_SNAPSHOT.name()))
         );
+        Cache<String, Object> workCache = model.get(StorageProviderConfig.CLUSTER_CACHES.name(), false) ? getWorkCache() : null;
+        Map<String, String> shardUrls = new LinkedHashMap<>();
+        shardUrls.put(DEFAULT_SHARD, url);
+        shardUrls.putAll(parseProperties(model.getConfig().get(StorageProviderConfig.SHARD_URLS.name())));
+        try {
+            for (Map.Entry<String, String> shardUrl : shardUrls.entrySet()) {
+                boolean            defaultShard       = DEFAULT_SHARD.equals(shardUrl.getKey());
+                String             poolName           = defaultShard ? model.getName() : model.getName() + "-SHARD-" + shardUrl.getKey();
+                CircuitBreaker     circuitBreaker     = new CircuitBreaker(poolName,
+                                                                           model.get(StorageProviderConfig.CIRCUIT_BREAKER_FAILURE_RATE.name(), 50),
+                                                                           model.get(StorageProviderConfig.CIRCUIT_BREAKER_SLOW_CALL.name(), 2000L),
+                                                                           model.get(StorageProviderConfig.CIRCUIT_BREAKER_OPEN_DURATION.name(), 30L) * 1000);
+                DataSourceProvider dataSourceProvider = new DataSourceProvider(dataSourceRegistry, circuitBreaker);
+                dataSourceProvider.configure(shardUrl.getValue(),
+                                             defaultShard
+                                             ? replicaUrls.stream().filter(StringUtils::isNotBlank).map(String::trim).collect(Collectors.toList())
+                                             : List.of(),
+                                             readYourWrites, replicaTimeout, hedge, rdbms, user, password, poolName, driverProperties, poolSettings);
+                ClusterCaches      clusterCaches      = workCache == null ? null : new ClusterCaches(workCache, model.getId(), shardUrl.getKey());
+                UserSnapshot       userSnapshot       = providerConfig.queryConfigurations.getSnapshotMode() == SnapshotMode.DISABLED
+                                                        ? null : new UserSnapshot(getSnapshotFile(model, shardUrl.getKey()),
+                                                                           providerConfig.queryConfigurations.getSyncWatermarkColumn());
+                SearchIndex        searchIndex        = model.get(StorageProviderConfig.SEARCH_INDEX.name(), false)
+                                                        ? new SearchIndex(SearchUtil.getSearchedAttributes(providerConfig.queryConfigurations.getColumnsMapping()),
+                                                                          providerConfig.queryConfigurations.getProjectedAttributes(ProjectionProfile.SEARCH))
+                                                        : null;
+                RepositoryCaches   repositoryCaches   = new RepositoryCaches(providerConfig.queryConfigurations.getSearchCacheTtl(), clusterCaches,
+                                                                             userSnapshot, searchIndex);
+                providerConfig.shards.add(new Shard(shardUrl.getKey(), dataSourceProvider, repositoryCaches));
+                List<LocalUserCopy> localCopies = Stream.of(userSnapshot, searchIndex).filter(Objects::nonNull).collect(Collectors.toList());
+                if (!localCopies.isEmpty()) {
+                    LocalCopyRefresher refresher = new LocalCopyRefresher(poolName,
+                                                                          new UserRepository(dataSourceProvider, providerConfig.queryConfigurations, repositoryCaches),
+                                                                          localCopies, providerConfig.queryConfigurations.getSyncWatermarkColumn(),
+                                                                          providerConfig.queryConfigurations.getSyncWatermarkOverlap(),
+                                                                          model.get(StorageProviderConfig.SYNC_BATCH_SIZE.name(), 500),
+                                                                          model.get(StorageProviderConfig.SNAPSHOT_REFRESH_INTERVAL.name(), 300L) * 1000,
+                                                                          model.get(StorageProviderConfig.SNAPSHOT_RECONCILE_INTERVAL.name(), 3600L) * 1000);
+                    providerConfig.localCopyRefreshers.add(refresher);
+                    refresher.start();
+                }
+            }
+            providerConfig.shardRouter = new ShardRouter(ShardRouting.getByDescription(model.get(StorageProviderConfig.SHARD_ROUTING.name())),
+                                                         providerConfig.shards.stream().map(Shard::getName).collect(Collectors.toList()),
+                                                         parseProperties(model.getConfig().get(StorageProviderConfig.SHARD_EMAIL_DOMAINS.name())));
+            if (providerConfig.queryConfigurations.isRehashConfigured()) {
+                ShardedUserRepository repository = new ShardedUserRepository(providerConfig.shards, providerConfig.shardRouter, queryExecutor,
+                                                                              providerConfig.queryConfigurations);
+                Cache<String, Object> leaseCache = getWorkCache();
+                List<ClusterCaches>   leases     = providerConfig.shards.stream()
+                                                                        .map(shard -> leaseCache == null ? null : new ClusterCaches(leaseCache, model.getId(), shard.getName()))
+                                                                        .collect(Collectors.toList());
+                providerConfig.rehashJob = new RehashJob(repository, leases, model.getName(), providerConfig.queryConfigurations.getRehashFunction(),
+                                                         model.get(StorageProviderConfig.REHASH_BATCH_SIZE.name(), 100),
+                                                         model.get(StorageProviderConfig.REHASH_RATE.name(), 20),
+                                                         model.get(StorageProviderConfig.REHASH_LATENCY_CEILING.name(), 1000L));
+                providerConfig.rehashJob.start();
+            }
+            ChangeFeed changeFeed = ChangeFeed.getByDescription(model.get(StorageProviderConfig.CHANGE_FEED.name()));
+            if (changeFeed != ChangeFeed.NONE && sessionFactory != null) {
+                Cache<String, Object> leaseCache = getWorkCache();
+                for (int i = 0; i < providerConfig.shards.size(); i++) {
+                    Shard              shard    = providerConfig.shards.get(i);
+                    String             feedName = DEFAULT_SHARD.equals(shard.getName()) ? model.getName() : model.getName() + "-" + shard.getName();
+                    ChangeFeedListener listener = new ChangeFeedListener(feedName, changeFeed, shard.getDataSourceProvider(),
+                                                                         model.get(StorageProviderConfig.CHANGE_CHANNEL.name()),
+                                                                         model.get(StorageProviderConfig.CHANGE_LOG_QUERY.name()),
+                                                                         model.get(StorageProviderConfig.CHANGE_POLL_INTERVAL.name(), 5000L),
+                                                                         providerConfig.queryConfigurations.getQueryTimeout(OperationClass.ADMIN),
+                                                                         new UserCacheInvalidator(sessionFactory, model, shard.getRepositoryCaches(),
+                                                                                                  providerConfig.userVersions, providerConfig.shardRouter, i,
+                                                                                                  leaseCache == null ? null : new ClusterCaches(leaseCache, model.getId(), shard.getName())));
+                    providerConfig.changeFeedListeners.add(listener);
+                    listener.start();
+                }
+            }
+        } catch (RuntimeException e) {
+            providerConfig.close();
+            throw e;
+        }
         return providerConfig;
     }
     
+    private static Path getSnapshotFile(ComponentModel model, String shard) {
+        String directory = model.get(StorageProviderConfig.SNAPSHOT_DIRECTORY.name());
+        if (StringUtils.isBlank(directory)) {
+            throw new DBUserStorageException("The user snapshot needs a snapshot directory, readable by Keycloak only", null);
+        }
+        Path path = Paths.get(directory.trim());
+        try {
+            Files.createDirectories(path);
+        } catch (IOException e) {
+            throw new DBUserStorageException("Could not create the user snapshot directory " + path, e);
+        }
+        return path.resolve((model.getId() + "-" + shard).replaceAll("[^A-Za-z0-9_.-]", "_") + ".snapshot");
+    }
+    
+    /**
+     * Keycloak's replicated work cache, or {@code null} when Keycloak runs without Infinispan.
+     */
+    private Cache<String, Object> getWorkCache() {
+        if (sessionFactory == null) {
+            return null;
+        }
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            InfinispanConnectionProvider infinispan = session.getProvider(InfinispanConnectionProvider.class);
+            if (infinispan == null) {
+                log.warn("Infinispan is not available, the caches of this provider stay local to each node");
+                return null;
+            }
+            return infinispan.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+        });
+    }
+    
+    private static Map<String, String> parseProperties(List<String> properties) {
+        Map<String, String> parsed = new LinkedHashMap<>();
+        if (properties != null) {
+            for (String property : properties) {
+                int separator = property.indexOf('=');
+                if (separator > 0) {
+                    parsed.put(property.substring(0, separator).trim(), property.substring(separator + 1).trim());
+                }
+            }
+        }
+        return parsed;
+    }
+    
     @Override
     public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel model) throws ComponentValidationException {
         try {
             ProviderConfig old = providerConfigPerInstance.put(model.getId(), configure(model));
             if (old != null) {
-                old.dataSourceProvider.close();
+                old.close();
             }
         } catch (Exception e) {
             throw new ComponentValidationException(e.getMessage(), e);
         }
     }
     
+    /**
+     * Keeps the configuration built by {@link #validateConfiguration} for the new model, otherwise drops the old one so
+     * the next provider is built from the new model.
+     */
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        ProviderConfig current = providerConfigPerInstance.get(newModel.getId());
+        if (current != null && !current.config.equals(newModel.getConfig())) {
+            closeProviderConfig(newModel);
+        }
+    }
+    
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        closeProviderConfig(model);
+    }
+    
+    /**
+     * Stops the background jobs of a component and releases its connection pools.
+     */
+    private void closeProviderConfig(ComponentModel model) {
+        ProviderConfig providerConfig = providerConfigPerInstance.remove(model.getId());
+        if (providerConfig != null) {
+            log.infov("Closing configuration for model: id={0} name={1}", model.getId(), model.getName());
+            providerConfig.close();
+        }
+    }
+    
     @Override
     public String getId() {
         return "RDBMS";
@@ -97,6 +362,53 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                            .required(true)
                                            .add()
                                            .property()
+                                           .name(StorageProviderConfig.REPLICA_URLS.name())
+                                           .label("Read replica JDBC URLs")
+                                           .helpText("Optional JDBC connection strings of read-only replicas, using the same credentials as the main database. Lookups, searches and counts are balanced across the replicas that are reachable; password updates always go to the main database.")
+                                           .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.READ_YOUR_WRITES_WINDOW.name())
+                                           .label("Read-your-writes window (seconds)")
+                                           .helpText("After a password update, lookups of that user by id, username or email keep reading from the main database for this long, so replication lag cannot serve the old password hash.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("10")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.REPLICA_CONNECTION_TIMEOUT.name())
+                                           .label("Read replica connection timeout (ms)")
+                                           .helpText("How long a read waits for a new connection to a replica before skipping it for 30 seconds and trying the next one, or the main database. Keep it short so a replica that went down only delays the first reads; at least 250.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("1000")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.HEDGE_PERCENTILE.name())
+                                           .label("Hedged lookup percentile")
+                                           .helpText("When read replicas are configured, a login lookup that takes longer than this percentile of recent lookup latencies (e.g. 95) is sent to a second endpoint as well, and the first answer is used. 0 disables hedging.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.SHARD_URLS.name())
+                                           .label("Shard JDBC URLs")
+                                           .helpText("Optional further databases with the same schema holding part of the users, as 'shardName=jdbcUrl'. The main JDBC URL is the shard named 'default'. All shards use the same credentials and queries.")
+                                           .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.SHARD_ROUTING.name())
+                                           .label("Shard routing")
+                                           .helpText("How lookups by username or email find the shard owning a user. 'All shards' asks every shard in parallel and suits databases already split by region, id range or any other rule. 'Username hash' only suits users placed by the Java String.hashCode of their lower-cased username modulo the number of shards, in the order above. 'Email domain' uses the mapping below. A routed lookup that misses asks the other shards, and searches and counts always ask all of them. Whatever the rule, the ids of the users of the further shards are prefixed with the shard name (e.g. 'shardName:123'), while the ids of the main database keep their value, so adding a shard leaves the data Keycloak stores for existing users in place. Ids of the main database must therefore not start with the name of a further shard followed by ':'.")
+                                           .type(ProviderConfigProperty.LIST_TYPE)
+                                           .options(ShardRouting.getAllDescriptions())
+                                           .defaultValue(ShardRouting.ALL_SHARDS.getDesc())
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.SHARD_EMAIL_DOMAINS.name())
+                                           .label("Shard email domains")
+                                           .helpText("Shard of each email domain as 'domain=shardName', for 'Email domain' routing.")
+                                           .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                                           .add()
+                                           .property()
                                            .name(StorageProviderConfig.USER.name())
                                            .label("JDBC connection user")
                                            .helpText("JDBC connection user")
@@ -122,6 +434,89 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                            .required(true)
                                            .add()
                                            .property()
+                                           .name(StorageProviderConfig.DRIVER_PROPERTIES.name())
+                                           .label("JDBC driver properties")
+                                           .helpText("Driver connection properties as 'name=value'. Statement caching and protocol properties are already set for each RDBMS (e.g. MySQL 'cachePrepStmts', PostgreSQL 'prepareThreshold', Oracle 'oracle.jdbc.implicitStatementCacheSize'); entries here override them, and an empty value removes a default.")
+                                           .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.POOL_MIN_SIZE.name())
+                                           .label("Minimum pool size")
+                                           .helpText("Number of connections the pool keeps open when idle. The pool opens more connections on demand, up to the maximum size, and closes the ones above this number after a minute idle.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("2")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.POOL_MAX_SIZE.name())
+                                           .label("Maximum pool size")
+                                           .helpText("Upper bound for the number of connections of the pool on each Keycloak node.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("20")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.LOGIN_MAX_CONNECTIONS.name())
+                                           .label("Login lookups max connections")
+                                           .helpText("Maximum number of connections used at the same time by login lookups (by id, username, email and password hash) and password updates. Use 0 for no limit other than the pool size.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.LOGIN_CONNECTION_TIMEOUT.name())
+                                           .label("Login lookups connection timeout (ms)")
+                                           .helpText("Maximum time a login lookup waits for one of its connections when 'Login lookups max connections' is reached.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("10000")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.ADMIN_MAX_CONNECTIONS.name())
+                                           .label("Admin operations max connections")
+                                           .helpText("Maximum number of connections used at the same time by searches and counts, so slow admin console searches leave connections available for logins. Keep it below 'Maximum pool size'. Use 0 for no limit other than the pool size.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("5")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.ADMIN_CONNECTION_TIMEOUT.name())
+                                           .label("Admin operations connection timeout (ms)")
+                                           .helpText("Maximum time a search or count waits for one of its connections when 'Admin operations max connections' is reached.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("30000")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.LOGIN_QUERY_TIMEOUT.name())
+                                           .label("Login query timeout (seconds)")
+                                           .helpText("Statement timeout of lookups and password checks and updates. 0 lets them run without limit.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("5")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.ADMIN_QUERY_TIMEOUT.name())
+                                           .label("Admin query timeout (seconds)")
+                                           .helpText("Statement timeout of searches and counts. 0 lets them run without limit.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("30")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.CIRCUIT_BREAKER_FAILURE_RATE.name())
+                                           .label("Circuit breaker failure rate (%)")
+                                           .helpText("When at least this share of the last 20 login queries (10 at least) to a database failed or were slow, queries to it fail immediately for the open duration, so a sick database only fails federated logins instead of holding Keycloak threads. A single trial login query then decides whether it recovered. Admin queries and queries refused by a full bulkhead are not counted. 0 disables the circuit breaker.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("50")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.CIRCUIT_BREAKER_SLOW_CALL.name())
+                                           .label("Circuit breaker slow query threshold (ms)")
+                                           .helpText("Queries taking longer than this count as failures for the circuit breaker. 0 only counts errors and timeouts.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("2000")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.CIRCUIT_BREAKER_OPEN_DURATION.name())
+                                           .label("Circuit breaker open duration (seconds)")
+                                           .helpText("How long queries fail immediately once the circuit breaker opened, before a trial query is let through.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("30")
+                                           .add()
+                                           .property()
                                            .name(StorageProviderConfig.ALLOW_KEYCLOAK_DELETE.name())
                                            .label("Allow Keycloak's User Delete")
                                            .helpText("By default, clicking Delete on a user in Keycloak is not allowed.  Activate this option to allow to Delete Keycloak's version of the user (does not touch the user record in the linked RDBMS), e.g. to clear synching issues and allow the user to be synced from scratch from the RDBMS on next use, in Production or for testing.")
@@ -132,7 +527,14 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                            .name(StorageProviderConfig.ALLOW_DATABASE_TO_OVERWRITE_KEYCLOAK.name())
                                            .label("Allow DB Attributes to Overwrite Keycloak")
                                            // Technical details for the following comment: we aggregate both the existing Keycloak version and the DB version of an attribute in a Set, but since e.g. email is not a list of values on the Keycloak User, the new email is never set on it.
-                                           .helpText("By default, once a user is loaded in Keycloak, its attributes (e.g. 'email') stay as they are in Keycloak even if an attribute of the same name now returns a different value through the query.  Activate this option to have all attributes set in the SQL query to always overwrite the existing user attributes in Keycloak (e.g. if Keycloak user has email 'test@test.com' but the query fetches a field named 'email' that has a value 'example@exemple.com', the Keycloak user will now have email attribute = 'example@exemple.com'). This behavior works with NO_CAHCE configuration. In case you set this flag under a cached configuration, the user attributes will be reload if: 1) the cached value is older than 500ms and 2) username or e-mail does not match cached values.")
+                                           .helpText("By default, once a user is loaded in Keycloak, its attributes (e.g. 'email') stay as they are in Keycloak even if an attribute of the same name now returns a different value through the query.  Activate this option to have all attributes set in the SQL query to always overwrite the existing user attributes in Keycloak (e.g. if Keycloak user has email 'test@test.com' but the query fetches a field named 'email' that has a value 'example@exemple.com', the Keycloak user will now have email attribute = 'example@exemple.com'). This behavior works with NO_CAHCE configuration. In case you set this flag under a cached configuration, the user attributes will be reload if: 1) the cached value is older than the user reload staleness (500ms by default) and 2) username or e-mail does not match cached values, or the version probe query returns a new version.")
+                                           .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                           .defaultValue("false")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.MIGRATE_ON_LOGIN.name())
+                                           .label("Migrate users on login")
+                                           .helpText("Activate this option to move users to Keycloak on their first successful login: the user and its password, hashed with the realm's password policy, are stored in Keycloak and detached from this provider, so later logins no longer use the external database. Group, role and other Keycloak data of not imported users is not carried over.")
                                            .type(ProviderConfigProperty.BOOLEAN_TYPE)
                                            .defaultValue("false")
                                            .add()
@@ -191,6 +593,10 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                                 During attribute-based search, if the searched attribute is not defined in this list, no results will be returned.
                                                 Use 'true' and 'false' as strings for boolean values.
                                                 Use a float value representing a Unix timestamp (milliseconds since epoch) for datetime values.
+                                                Optionally append ':' and a JDBC type (e.g. 'username=my_username_column:VARCHAR') to bind lookup parameters with that type,
+                                                so the database does not convert the column and can still use its index.
+                                                Without it, the driver picks the type of each parameter.
+                                                jTDS sends strings as VARCHAR by default here; for NVARCHAR columns set 'sendStringParametersAsUnicode=true' in the driver properties.
                                            """)
                                            .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
                                            .defaultValue(List.of(
@@ -230,13 +636,254 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                            .type(ProviderConfigProperty.TEXT_TYPE)
                                            .defaultValue("")
                                            .add()
+                                           .property()
+                                           .name(StorageProviderConfig.FIND_VERSION.name())
+                                           .label("Find user version SQL")
+                                           .helpText("Optional query returning a single value that changes whenever the user changes, e.g. a row version or 'updated_at', by user id (e.g. 'select updated_at from users where \"id\" = ?'). With 'Allow DB Attributes to Overwrite Keycloak' on, a login then only reloads the cached user when its version changed, instead of on every login past the reload staleness.")
+                                           .type(ProviderConfigProperty.TEXT_TYPE)
+                                           .defaultValue("")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.SYNC_WATERMARK_COLUMN.name())
+                                           .label("Changed users watermark column")
+                                           .helpText("Column of the base query growing whenever a user changes, e.g. an 'updated_at' timestamp or a numeric row version. When set, the periodic changed users synchronization only imports rows past the last imported value, read in batches ordered by this column and 'id'. Declare its type in the columns mapping (e.g. 'updatedAt=updated_at:TIMESTAMP'). Rows where it is NULL are not synchronized incrementally.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.SYNC_WATERMARK_OVERLAP.name())
+                                           .label("Changed users watermark overlap")
+                                           .helpText("How far behind the last imported watermark each changed users synchronization starts reading again: seconds for timestamp and date columns, units for numeric row versions. A row whose transaction commits after a later row was read, with an earlier watermark, is only imported if it falls in this window, so make it longer than the longest transaction writing users. Rows read again are imported again.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("60")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.FIND_CHANGED_SINCE.name())
+                                           .label("Find changed users SQL")
+                                           .helpText("Optional query returning the same columns as the base query for the users whose watermark is at or after the ? placeholder (use >=). Lets the database use an index on the watermark column; when empty the base query is filtered instead.")
+                                           .type(ProviderConfigProperty.TEXT_TYPE)
+                                           .defaultValue("")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.REHASH_FUNCTION.name())
+                                           .label("Rehash legacy passwords with")
+                                           .helpText("Stronger algorithm used to upgrade the password hashes of a digest hash function (md* and sha*). A background job hashes every stored digest again with it and stores '{algorithm}hash', which is verified by computing the digest first, and new passwords are stored the same way. One Keycloak node of the cluster runs the job for each shard at a time, elected through Keycloak's work cache; the update query only replaces unchanged hashes, so a node taking over is safe.")
+                                           .type(ProviderConfigProperty.LIST_TYPE)
+                                           .options(QueryConfigurations.NO_REHASH, "Blowfish (bcrypt)", "Argon2id")
+                                           .defaultValue(QueryConfigurations.NO_REHASH)
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.REHASH_SOURCE_QUERY.name())
+                                           .label("Rehash source SQL")
+                                           .helpText("Query returning the 'id' and the password hash of every user, in this column order. The job reads it in batches ordered by id, from the start every time it starts: leave out the hashes already rehashed, which start with '{', so a restarted job only reads the users still to upgrade.")
+                                           .type(ProviderConfigProperty.TEXT_TYPE)
+                                           .defaultValue("select \"id\", hash_pwd from users where hash_pwd not like '{%'")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.REHASH_UPDATE_QUERY.name())
+                                           .label("Rehash update SQL")
+                                           .helpText("Query storing a rehashed password. Placeholders are substituted with the new hash, the id and the hash that was read, which must still match so a password changed meanwhile is not overwritten.")
+                                           .type(ProviderConfigProperty.TEXT_TYPE)
+                                           .defaultValue("update users set hash_pwd = ? where \"id\" = ? and hash_pwd = ?")
+                                           .add()
+
+                                           //PERFORMANCE
+
+                                           .property()
+                                           .name(StorageProviderConfig.SEARCH_UNION_REWRITE.name())
+                                           .label("Rewrite prefix search as UNION ALL")
+                                           .helpText("The free-text search matches username, email, first and last name with a single OR-combined condition; a keyword ending with '*' (e.g. 'jo*') only matches their start. Activate this option to run prefix searches as one query branch per mapped search column, combined with UNION ALL and de-duplicated by id, so each branch can use an index. Only useful with an index on the upper-cased value of every searched column that serves LIKE prefixes, e.g. 'create index on users (upper(username) text_pattern_ops)' on PostgreSQL; without them each branch scans the table. Searches matching anywhere in the columns cannot use such indexes and keep the single condition. Requires the base query to use the {columns} placeholder and the 'id' attribute to be mapped.")
+                                           .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                           .defaultValue("false")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.COUNT_WINDOW_TOTAL.name())
+                                           .label("Count search results with the page")
+                                           .helpText("Activate this option to add `COUNT(*) OVER()` to paged searches, so the total number of matching users is returned with the page itself. The total is kept for a few seconds and answers the count request for the same search without running the query again.")
+                                           .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                           .defaultValue("false")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.COUNT_STRATEGY.name())
+                                           .label("Total user count strategy")
+                                           .helpText("How the total number of users (counts without search criteria) is computed. 'Exact' runs the count query every time. 'Cached exact' keeps the exact count for the configured TTL and refreshes it in the background. 'Estimated from statistics' reads the row count from the database catalog statistics of the configured table, falling back to the exact count when no statistics are available.")
+                                           .type(ProviderConfigProperty.LIST_TYPE)
+                                           .options(CountStrategy.getAllDescriptions())
+                                           .defaultValue(CountStrategy.EXACT.getDesc())
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.COUNT_CACHE_TTL.name())
+                                           .label("Cached count TTL (seconds)")
+                                           .helpText("Age after which a cached total user count is refreshed in the background. Only used by the 'Cached exact' count strategy.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("300")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.COUNT_STATISTICS_TABLE.name())
+                                           .label("Statistics table name")
+                                           .helpText("Table whose catalog statistics are used by the 'Estimated from statistics' count strategy (`pg_class.reltuples`, `information_schema.tables`, Oracle `num_rows`, `syscat.tables`, `sys.partitions`). The estimate is only accurate if the base query selects every row of this table.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.SEARCH_CACHE_TTL.name())
+                                           .label("Search page cache TTL (seconds)")
+                                           .helpText("Time during which a page of search results is reused when the same search and page are requested again, e.g. while browsing users in the admin console. The cache is flushed when a password is updated or a user is deleted through this provider. Use 0 to disable.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.CLUSTER_CACHES.name())
+                                           .label("Share caches across the cluster")
+                                           .helpText("Keeps the cached total user count in Keycloak's replicated Infinispan work cache, so a single node computes it for the whole cluster, and makes an invalidation on any node (password update, user removal, database change feed) flush the search caches of every node. Users themselves are cached by Keycloak's user cache, which is already cluster-wide.")
+                                           .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                           .defaultValue("false")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.USER_SNAPSHOT.name())
+                                           .label("Local user snapshot")
+                                           .helpText("Keeps a copy of the users of the base query in a memory-mapped file on each node, indexed by id, username and email, written in the background from a streamed read of the base query. 'Fallback on database failure' answers user lookups from it when the database query fails. 'Serve lookups' answers them from it first and only queries the database for users it does not hold. Passwords are always checked against the database. With the watermark column set, changed users are applied at every refresh and deleted users are dropped at every reconcile interval; users reported by the database change feed are looked up live until then.")
+                                           .type(ProviderConfigProperty.LIST_TYPE)
+                                           .options(SnapshotMode.getAllDescriptions())
+                                           .defaultValue(SnapshotMode.DISABLED.getDesc())
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.SNAPSHOT_DIRECTORY.name())
+                                           .label("User snapshot directory")
+                                           .helpText("Directory of the user snapshot files, one per shard, required by the user snapshot. The files hold the user data in plain text: use a local directory only Keycloak can read, not a shared temporary directory. A snapshot found at startup is reused and brought up to date from its watermark, or without a watermark column if it is younger than the refresh interval.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.SEARCH_INDEX.name())
+                                           .label("In-memory search index")
+                                           .helpText("Keeps the users of the base query on the heap of each node, with a trigram index of username, first name, last name and email, and answers the free-text searches of the admin console, their counts and their pages from it, in username order. Attribute and exact searches, and searches made before the index is built, still query the database. The index holds the attributes selected by the search listing attributes and is refreshed like the user snapshot.")
+                                           .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                           .defaultValue("false")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.SNAPSHOT_REFRESH_INTERVAL.name())
+                                           .label("Local copies refresh interval (seconds)")
+                                           .helpText("Pause between two refreshes of the user snapshot and the search index: a full rebuild, or the changed users only if the watermark column is set.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("300")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.SNAPSHOT_RECONCILE_INTERVAL.name())
+                                           .label("Local copies reconcile interval (seconds)")
+                                           .helpText("With the watermark column set, pause between two checks of the ids of the user snapshot and the search index against the database, in batches of 500, which drop the users deleted since. 0 disables the check.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("3600")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.LOGIN_PROJECTION.name())
+                                           .label("Login lookup attributes")
+                                           .helpText("Attributes selected when looking up a user by username or email and when reloading a user during credential validation. 'id', 'username' and 'email' are always selected. Other mapped attributes are loaded only when Keycloak reads them. Leave empty to select every mapped attribute. Include 'ENABLED' if it is mapped, as it is checked on every login.")
+                                           .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.SEARCH_PROJECTION.name())
+                                           .label("Search listing attributes")
+                                           .helpText("Attributes selected by user searches and listings. 'id' and 'username' are always selected. Other mapped attributes are loaded only when Keycloak reads them, one query per user, so include every attribute shown in the listing. Leave empty to select every mapped attribute.")
+                                           .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.RELOAD_STALENESS.name())
+                                           .label("User reload staleness (ms)")
+                                           .helpText("With 'Allow DB Attributes to Overwrite Keycloak' on, a login checks a user cached by Keycloak against the database once it is older than this, reloading it or, if the version query is set, reading its version only. Use 0 to check on every login.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("500")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.CHANGE_FEED.name())
+                                           .label("Database change feed")
+                                           .helpText("How changes made directly in the database reach the caches. 'PostgreSQL LISTEN/NOTIFY' keeps one admin connection of each shard listening on the notification channel, whose payload is the id of a changed user (e.g. a trigger calling pg_notify('user_changes', NEW.id::text)). 'Change log table polling' runs the change log query at the poll interval. Changed users are evicted from Keycloak's user cache and from the search caches of this provider, so cache lifespans can be raised safely. Every node follows the feed and drops its own copies; a single node, elected through a lease in the work cache, evicts the changed users for the whole cluster.")
+                                           .type(ProviderConfigProperty.LIST_TYPE)
+                                           .options(ChangeFeed.getAllDescriptions())
+                                           .defaultValue(ChangeFeed.NONE.getDesc())
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.CHANGE_CHANNEL.name())
+                                           .label("Change notification channel")
+                                           .helpText("PostgreSQL channel listened to by the 'PostgreSQL LISTEN/NOTIFY' change feed.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("user_changes")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.CHANGE_LOG_QUERY.name())
+                                           .label("Change log SQL")
+                                           .helpText("Query of the 'Change log table polling' change feed returning the id of each changed user and a numeric change sequence, in this column order, for the changes after the ? placeholder ordered by sequence (e.g. 'select user_id, seq from user_changes where seq > ? order by seq'). Changes already in the log when Keycloak starts are skipped. Prune old rows regularly.")
+                                           .type(ProviderConfigProperty.TEXT_TYPE)
+                                           .defaultValue("")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.CHANGE_POLL_INTERVAL.name())
+                                           .label("Change log poll interval (ms)")
+                                           .helpText("Pause between two reads of the change log.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("5000")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.SEARCH_FETCH_SIZE.name())
+                                           .label("Search fetch size")
+                                           .helpText("Rows fetched per round trip by searches and listings, so the driver holds one batch of rows at a time instead of a second copy of the whole result. The users of the requested page are still all read into memory before being returned to Keycloak, so this does not help unpaged listings. MySQL also needs the driver property 'useCursorFetch=true'. 0 keeps the driver default.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.SYNC_BATCH_SIZE.name())
+                                           .label("Synchronization batch size")
+                                           .helpText("With 'Import users' on, synchronization reads the users of the base query through a cursor and imports them into Keycloak in transactions of this many users, so memory use stays bounded.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("500")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.REHASH_BATCH_SIZE.name())
+                                           .label("Rehash batch size")
+                                           .helpText("Password hashes read and written back in one JDBC batch and transaction by the rehash job.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("100")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.REHASH_RATE.name())
+                                           .label("Rehash rate (users per second)")
+                                           .helpText("Maximum number of users the rehash job processes per second on each shard, whichever node runs it. 0 disables the throttle.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("20")
+                                           .add()
+                                           .property()
+                                           .name(StorageProviderConfig.REHASH_LATENCY_CEILING.name())
+                                           .label("Rehash latency ceiling (ms)")
+                                           .helpText("Database time of a batch above which the rehash job backs off, doubling the pause up to a minute, so it yields to production traffic.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("1000")
+                                           .add()
 
                                            .build();
     }
     
     private static class ProviderConfig {
-        private DataSourceProvider  dataSourceProvider = new DataSourceProvider();
-        private QueryConfigurations queryConfigurations;
+        private final MultivaluedHashMap<String, String> config;
+        private final List<Shard>                        shards              = new ArrayList<>();
+        private final UserVersionCache                   userVersions        = new UserVersionCache();
+        private final List<ChangeFeedListener>           changeFeedListeners = new ArrayList<>();
+        private final List<LocalCopyRefresher>           localCopyRefreshers = new ArrayList<>();
+        private ShardRouter                              shardRouter;
+        private QueryConfigurations                      queryConfigurations;
+        private RehashJob                                rehashJob;
+        
+        private ProviderConfig(ComponentModel model) {
+            this.config = new MultivaluedHashMap<>(model.getConfig());
+        }
+        
+        private void close() {
+            if (rehashJob != null) {
+                rehashJob.close();
+            }
+            changeFeedListeners.forEach(ChangeFeedListener::close);
+            localCopyRefreshers.forEach(LocalCopyRefresher::close);
+            shards.forEach(Shard::close);
+        }
     }
     
     
@@ -0,0 +1,200 @@
+package org.opensingular.dbuserprovider;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.logging.Logger;
+import org.opensingular.dbuserprovider.persistence.ClusterCaches;
+import org.opensingular.dbuserprovider.persistence.ShardedUserRepository;
+import org.opensingular.dbuserprovider.util.HashUtil;
+
+/**
+ * Upgrades the legacy password hashes of the external database in the background, by hashing each stored digest
+ * again with the rehash function and writing it back in JDBC batches. Passwords are not known, so the new hash
+ * wraps the old one and is verified by computing the legacy digest first.
+ * <p>
+ * Users are read in id order and hashes already wrapped are skipped. The job keeps no checkpoint of its own: the
+ * source query can leave out the wrapped hashes, so a restarted job only reads the users still to upgrade. The job
+ * is throttled to a number of users per second and backs off while the database answers slower than the latency
+ * ceiling or fails.
+ * <p>
+ * Every node starts the job, but each shard is rehashed by the one node holding its rehash lease in the cluster, so
+ * the throttle applies to the shard rather than to each node. The other nodes wait for the lease and take over from
+ * the users still to upgrade if the holder stops.
+ */
+public class RehashJob implements Runnable, Closeable {
+    private static final Logger log = Logger.getLogger(DBUserStorageProvider.class);
+    private static final long   MIN_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long   MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    // renewed before every batch, so it outlasts the longest back-off
+    private static final long   LEASE_MILLIS       = TimeUnit.MINUTES.toMillis(5);
+    private static final long   LEASE_WAIT_MILLIS  = TimeUnit.SECONDS.toMillis(30);
+
+    private final ShardedUserRepository  repository;
+    private final List<ClusterCaches>    leases;
+    private final String                 node = UUID.randomUUID().toString();
+    private final String                 name;
+    private final String                 rehashFunction;
+    private final int                    batchSize;
+    private final int                    rate;
+    private final long                   latencyCeilingMillis;
+    private final Thread                 thread;
+    private       long                   backoffMillis;
+
+    /**
+     * @param leases cluster entries holding the rehash lease of each shard, or {@code null} entries if this node is alone
+     */
+    public RehashJob(ShardedUserRepository repository, List<ClusterCaches> leases, String name, String rehashFunction, int batchSize, int rate,
+                     long latencyCeilingMillis) {
+        this.repository           = repository;
+        this.leases               = leases;
+        this.name                 = name;
+        this.rehashFunction       = rehashFunction;
+        this.batchSize            = Math.max(1, batchSize);
+        this.rate                 = rate;
+        this.latencyCeilingMillis = latencyCeilingMillis;
+        this.thread               = new Thread(this, "rehash-" + name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        List<String>  shards  = repository.getShardNames();
+        List<Integer> pending = new LinkedList<>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            pending.add(shard);
+        }
+        try {
+            while (!pending.isEmpty()) {
+                boolean ran = false;
+                for (Iterator<Integer> it = pending.iterator(); it.hasNext(); ) {
+                    int shard = it.next();
+                    if (holdLease(shard)) {
+                        ran = true;
+                        try {
+                            if (rehash(shard, shards.get(shard))) {
+                                it.remove();
+                            }
+                        } finally {
+                            releaseLease(shard);
+                        }
+                    }
+                }
+                if (!ran) {
+                    log.debugv("Password rehash of {0} waiting for another node", name);
+                    Thread.sleep(LEASE_WAIT_MILLIS);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.infov("Password rehash of {0} stopped", name);
+        } catch (RuntimeException e) {
+            log.errorv(e, "Password rehash of {0} aborted", name);
+        }
+    }
+
+    /**
+     * @return whether every user of the shard was read, or {@code false} if another node took the lease over
+     */
+    private boolean rehash(int shard, String shardName) throws InterruptedException {
+        String after   = null;
+        long   started = System.nanoTime();
+        int    total   = 0;
+        log.infov("Starting password rehash of {0} shard {1}", name, shardName);
+        while (true) {
+            if (!holdLease(shard)) {
+                log.infov("Password rehash of {0} shard {1} taken over by another node after {2} passwords", name, shardName, total);
+                return false;
+            }
+            long           batchStarted = System.nanoTime();
+            List<String[]> rows         = repository.findPasswordHashes(shard, after, batchSize);
+            if (rows == null) {
+                backOff();
+                continue;
+            }
+            if (rows.isEmpty()) {
+                break;
+            }
+            long dbNanos = System.nanoTime() - batchStarted;
+
+            List<String[]> updates = new ArrayList<>(rows.size());
+            for (String[] row : rows) {
+                if (row[1] != null && !row[1].isEmpty() && !HashUtil.isWrapped(row[1])) {
+                    updates.add(new String[] { row[0], row[1], HashUtil.wrap(row[1], rehashFunction) });
+                }
+            }
+            if (!updates.isEmpty()) {
+                long writeStarted = System.nanoTime();
+                int  updated      = repository.updatePasswordHashes(shard, updates);
+                if (updated < 0) {
+                    // the batch was rolled back, read it again after backing off
+                    backOff();
+                    continue;
+                }
+                dbNanos += System.nanoTime() - writeStarted;
+                total   += updated;
+            }
+
+            after = rows.get(rows.size() - 1)[0];
+            log.debugv("Rehashed {0} passwords of {1} shard {2}, up to id {3}", total, name, shardName, after);
+
+            if (TimeUnit.NANOSECONDS.toMillis(dbNanos) > latencyCeilingMillis) {
+                backOff();
+            } else {
+                backoffMillis = 0;
+            }
+            if (rows.size() < batchSize) {
+                break;
+            }
+            throttle(rows.size(), batchStarted);
+        }
+        log.infov("Password rehash of {0} shard {1} finished in {2}s: {3} passwords rehashed", name, shardName,
+                  TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started), total);
+        return true;
+    }
+
+    private boolean holdLease(int shard) {
+        ClusterCaches lease = leases.get(shard);
+        return lease == null || lease.holdRehashLease(node, LEASE_MILLIS);
+    }
+
+    private void releaseLease(int shard) {
+        ClusterCaches lease = leases.get(shard);
+        if (lease != null) {
+            try {
+                lease.releaseRehashLease(node);
+            } catch (RuntimeException e) {
+                log.warnv("Could not release the password rehash lease of {0}: {1}", name, e.getMessage());
+            }
+        }
+    }
+
+    private void throttle(int users, long batchStarted) throws InterruptedException {
+        if (rate > 0) {
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batchStarted);
+            long budget  = users * 1000L / rate;
+            if (budget > elapsed) {
+                Thread.sleep(budget - elapsed);
+            }
+        }
+    }
+
+    private void backOff() throws InterruptedException {
+        backoffMillis = Math.min(MAX_BACKOFF_MILLIS, Math.max(MIN_BACKOFF_MILLIS, backoffMillis * 2));
+        log.debugv("Password rehash of {0} backing off for {1}ms", name, backoffMillis);
+        Thread.sleep(backoffMillis);
+    }
+
+    @Override
+    public void close() {
+        thread.interrupt();
+    }
+}
@@ -7,6 +7,7 @@ public enum StorageProviderConfig {
     RDBMS,
     ALLOW_KEYCLOAK_DELETE,
     ALLOW_DATABASE_TO_OVERWRITE_KEYCLOAK,
+    MIGRATE_ON_LOGIN,
     BASE_QUERY,
     COUNT,
     FIND_BY_ID,
@@ -15,5 +16,55 @@ public enum StorageProviderConfig {
     COLUMNS_MAPPING,
     FIND_PASSWORD_HASH,
     HASH_FUNCTION,
-    UPDATE_PASSWORD;
+    UPDATE_PASSWORD,
+    FIND_VERSION,
+    SYNC_WATERMARK_COLUMN,
+    SYNC_WATERMARK_OVERLAP,
+    FIND_CHANGED_SINCE,
+    REHASH_FUNCTION,
+    REHASH_SOURCE_QUERY,
+    REHASH_UPDATE_QUERY,
+    SEARCH_UNION_REWRITE,
+    COUNT_WINDOW_TOTAL,
+    COUNT_STRATEGY,
+    COUNT_CACHE_TTL,
+    COUNT_STATISTICS_TABLE,
+    SEARCH_CACHE_TTL,
+    CLUSTER_CACHES,
+    USER_SNAPSHOT,
+    SNAPSHOT_DIRECTORY,
+    SEARCH_INDEX,
+    SNAPSHOT_REFRESH_INTERVAL,
+    SNAPSHOT_RECONCILE_INTERVAL,
+    LOGIN_PROJECTION,
+    SEARCH_PROJECTION,
+    RELOAD_STALENESS,
+    CHANGE_FEED,
+    CHANGE_CHANNEL,
+    CHANGE_LOG_QUERY,
+    CHANGE_POLL_INTERVAL,
+    SEARCH_FETCH_SIZE,
+    SYNC_BATCH_SIZE,
+    REHASH_BATCH_SIZE,
+    REHASH_RATE,
+    REHASH_LATENCY_CEILING,
+    DRIVER_PROPERTIES,
+    POOL_MIN_SIZE,
+    POOL_MAX_SIZE,
+    LOGIN_MAX_CONNECTIONS,
+    LOGIN_CONNECTION_TIMEOUT,
+    ADMIN_MAX_CONNECTIONS,
+    ADMIN_CONNECTION_TIMEOUT,
+    LOGIN_QUERY_TIMEOUT,
+    ADMIN_QUERY_TIMEOUT,
+    CIRCUIT_BREAKER_FAILURE_RATE,
+    CIRCUIT_BREAKER_SLOW_CALL,
+    CIRCUIT_BREAKER_OPEN_DURATION,
+    REPLICA_URLS,
+    READ_YOUR_WRITES_WINDOW,
+    REPLICA_CONNECTION_TIMEOUT,
+    HEDGE_PERCENTILE,
+    SHARD_URLS,
+    SHARD_ROUTING,
+    SHARD_EMAIL_DOMAINS;
 }
\ No newline at end of file
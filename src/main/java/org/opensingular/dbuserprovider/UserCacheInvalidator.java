@@ -0,0 +1,111 @@
+package org.opensingular.dbuserprovider;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.infinispan.Cache;
+import org.jboss.logging.Logger;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.StorageId;
+import org.keycloak.storage.UserStoragePrivateUtil;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.opensingular.dbuserprovider.persistence.ClusterCaches;
+import org.opensingular.dbuserprovider.persistence.RepositoryCaches;
+import org.opensingular.dbuserprovider.persistence.ShardRouter;
+import org.opensingular.dbuserprovider.persistence.UserVersionCache;
+
+/**
+ * Drops the cached copies of users changed in the external database: their entries in Keycloak's user cache,
+ * which propagates the invalidation to the other nodes of the cluster, and the provider's own caches and local copies.
+ * <p>
+ * Every node is told about every change, so only the node holding the change feed lease evicts users from
+ * Keycloak's cache and flushes the caches of the cluster; the other nodes only drop what they hold themselves.
+ */
+public class UserCacheInvalidator implements Consumer<Set<String>> {
+    private static final Logger log          = Logger.getLogger(DBUserStorageProvider.class);
+    private static final long   LEASE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final ComponentModel         model;
+    private final RepositoryCaches       repositoryCaches;
+    private final UserVersionCache       userVersions;
+    private final ShardRouter            shardRouter;
+    private final int                    shard;
+    private final ClusterCaches          lease;
+    private final String                 node = UUID.randomUUID().toString();
+
+    /**
+     * @param shard index of the shard whose changed users are reported, whose ids are qualified by the router
+     * @param lease cluster entries holding the change feed lease, or {@code null} if this node is alone
+     */
+    public UserCacheInvalidator(KeycloakSessionFactory sessionFactory, ComponentModel model, RepositoryCaches repositoryCaches,
+                                UserVersionCache userVersions, ShardRouter shardRouter, int shard, ClusterCaches lease) {
+        this.sessionFactory   = sessionFactory;
+        this.model            = model;
+        this.repositoryCaches = repositoryCaches;
+        this.userVersions     = userVersions;
+        this.shardRouter      = shardRouter;
+        this.shard            = shard;
+        this.lease            = lease;
+    }
+
+    @Override
+    public void accept(Set<String> localIds) {
+        Set<String> ids = localIds.stream().map(id -> shardRouter.qualifyId(shard, id)).collect(Collectors.toSet());
+        ids.forEach(userVersions::invalidate);
+        if (lease != null && !lease.holdChangeFeedLease(node, LEASE_MILLIS)) {
+            repositoryCaches.invalidateUsersLocally(localIds);
+            return;
+        }
+        repositoryCaches.invalidateUsers(localIds);
+        boolean imported = new UserStorageProviderModel(model).isImportEnabled();
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                UserCache userCache = session.getProvider(UserCache.class);
+                RealmModel realm = session.realms().getRealm(model.getParentId());
+                if (userCache == null || realm == null) {
+                    return;
+                }
+                UserProvider localUsers = UserStoragePrivateUtil.userLocalStorage(session);
+                for (String id : ids) {
+                    if (imported) {
+                        localUsers.searchForUserByUserAttributeStream(realm, UserSynchronizer.EXTERNAL_ID_ATTRIBUTE, id)
+                                  .forEach(user -> userCache.evict(realm, user));
+                    } else {
+                        evictCached(session, userCache, realm, StorageId.keycloakId(model, id));
+                    }
+                }
+            });
+            log.debugv("Invalidated {0} changed users of {1}", ids.size(), model.getName());
+        } catch (RuntimeException e) {
+            log.errorv(e, "Could not invalidate {0} changed users of {1}", ids.size(), model.getName());
+        }
+    }
+
+    /**
+     * Evicts the cached model of a user, whose username and email are those of its username and email lookup
+     * entries. A user that is not cached is not read, which would load it from the database again.
+     */
+    private static void evictCached(KeycloakSession session, UserCache userCache, RealmModel realm, String keycloakId) {
+        InfinispanConnectionProvider infinispan = session.getProvider(InfinispanConnectionProvider.class);
+        Cache<String, ?>             users      = infinispan == null ? null : infinispan.getCache(InfinispanConnectionProvider.USER_CACHE_NAME);
+        if (users == null || !users.containsKey(keycloakId)) {
+            return;
+        }
+        UserModel cached = userCache.getUserById(realm, keycloakId);
+        if (cached != null) {
+            userCache.evict(realm, cached);
+        }
+    }
+}
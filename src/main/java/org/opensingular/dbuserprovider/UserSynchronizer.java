@@ -0,0 +1,235 @@
+package org.opensingular.dbuserprovider;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStoragePrivateUtil;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+import org.opensingular.dbuserprovider.persistence.ShardedUserRepository;
+import org.opensingular.dbuserprovider.util.WatermarkUtil;
+
+/**
+ * Imports the users of the external database into Keycloak's own store, so that a provider running in import
+ * mode serves most reads locally. Users are imported in batches, each batch in its own Keycloak transaction.
+ * <p>
+ * A full sync reads the base query through a cursor. A changed users sync reads, for each shard, the users past
+ * the watermark column value of the last user it imported, moved back by the configured overlap so that users
+ * committed late with an earlier watermark are still read. The watermarks are kept in realm attributes, written
+ * once at the end of a sync and only when they moved, since every write invalidates the cached realm on all nodes;
+ * an interrupted sync imports again the users read since the last sync, which is harmless.
+ */
+public class UserSynchronizer {
+    private static final Logger log = Logger.getLogger(DBUserStorageProvider.class);
+    // attribute of imported users holding their id in the external database
+    public static final String EXTERNAL_ID_ATTRIBUTE = "DB_ID";
+    private static final String WATERMARK_ATTRIBUTE_PREFIX = "singular-user-provider.watermark.";
+
+    private final ShardedUserRepository    repository;
+    private final KeycloakSessionFactory   sessionFactory;
+    private final String                   realmId;
+    private final UserStorageProviderModel model;
+    private final int                      batchSize;
+
+    public UserSynchronizer(ShardedUserRepository repository, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model,
+                            int batchSize) {
+        this.repository     = repository;
+        this.sessionFactory = sessionFactory;
+        this.realmId        = realmId;
+        this.model          = model;
+        this.batchSize      = Math.max(1, batchSize);
+    }
+
+    public SynchronizationResult syncAll() {
+        SynchronizationResult result  = new SynchronizationResult();
+        long                  started = System.nanoTime();
+        log.infov("Starting full synchronization of {0}", model.getName());
+        try {
+            repository.forEachUserBatch(batchSize, batch -> importBatch(batch, result, started));
+        } catch (RuntimeException e) {
+            log.errorv(e, "Full synchronization of {0} aborted", model.getName());
+            result.increaseFailed();
+        }
+        log.infov("Full synchronization of {0} finished in {1}s: {2}", model.getName(), TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started),
+                  result.getStatus());
+        return result;
+    }
+
+    public SynchronizationResult syncChanged() {
+        SynchronizationResult result  = new SynchronizationResult();
+        long                  started = System.nanoTime();
+        log.infov("Starting changed users synchronization of {0}", model.getName());
+        List<String>        shards     = repository.getShardNames();
+        Map<String, String> stored     = new HashMap<>();
+        Map<String, String> watermarks = new HashMap<>();
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                for (String shard : shards) {
+                    stored.put(shard, realm.getAttribute(watermarkKey(shard)));
+                }
+            });
+            watermarks.putAll(stored);
+            for (int shard = 0; shard < shards.size(); shard++) {
+                syncChanged(shard, shards.get(shard), watermarks, result, started);
+            }
+        } catch (RuntimeException e) {
+            log.errorv(e, "Changed users synchronization of {0} aborted", model.getName());
+            result.increaseFailed();
+        } finally {
+            saveWatermarks(stored, watermarks);
+        }
+        log.infov("Changed users synchronization of {0} finished in {1}s: {2}", model.getName(),
+                  TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started), result.getStatus());
+        return result;
+    }
+
+    /**
+     * Imports the changed users of a shard, moving its entry of {@code watermarks} past each imported batch.
+     */
+    private void syncChanged(int shard, String shardName, Map<String, String> watermarks, SynchronizationResult result, long started) {
+        String                    column    = repository.getWatermarkColumn();
+        String                    watermark = WatermarkUtil.rewind(watermarks.get(shardName), repository.getWatermarkOverlap());
+        String                    lastId    = null;
+        List<Map<String, String>> batch;
+        do {
+            batch = repository.findChangedSince(shard, watermark, lastId, batchSize);
+            if (batch == null) {
+                throw new DBUserStorageException("Could not read the changed users of shard " + shardName, null);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            if (!importBatch(batch, result, started)) {
+                // later batches would move the watermark past the failed users
+                return;
+            }
+            Map<String, String> last = batch.get(batch.size() - 1);
+            watermark = value(last, column);
+            lastId    = value(last, "id");
+            if (watermark != null && (watermarks.get(shardName) == null || WatermarkUtil.compare(watermark, watermarks.get(shardName)) > 0)) {
+                watermarks.put(shardName, watermark);
+            }
+        } while (batch.size() == batchSize);
+    }
+
+    private void saveWatermarks(Map<String, String> stored, Map<String, String> watermarks) {
+        if (stored.equals(watermarks)) {
+            return;
+        }
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                watermarks.forEach((shard, watermark) -> {
+                    if (watermark != null && !watermark.equals(stored.get(shard))) {
+                        realm.setAttribute(watermarkKey(shard), watermark);
+                    }
+                });
+            });
+        } catch (RuntimeException e) {
+            log.errorv(e, "Could not save the changed users watermarks of {0}", model.getName());
+        }
+    }
+
+    private String watermarkKey(String shardName) {
+        return WATERMARK_ATTRIBUTE_PREFIX + model.getId() + "." + shardName;
+    }
+
+    /**
+     * Imports a batch of users in one transaction.
+     *
+     * @return whether the batch was committed
+     */
+    private boolean importBatch(List<Map<String, String>> batch, SynchronizationResult result, long started) {
+        SynchronizationResult batchResult = new SynchronizationResult();
+        boolean               imported    = false;
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel   realm      = session.realms().getRealm(realmId);
+                UserProvider localUsers = UserStoragePrivateUtil.userLocalStorage(session);
+                for (Map<String, String> row : batch) {
+                    importUser(realm, localUsers, row, batchResult);
+                }
+            });
+            result.add(batchResult);
+            imported = true;
+        } catch (RuntimeException e) {
+            log.errorv(e, "Could not import a batch of {0} users", batch.size());
+            result.setFailed(result.getFailed() + batch.size());
+        }
+        int  processed = result.getAdded() + result.getUpdated() + result.getFailed();
+        long millis    = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        log.infov("Synchronized {0} users of {1} ({2} users/s)", processed, model.getName(), processed * 1000L / millis);
+        return imported;
+    }
+
+    private void importUser(RealmModel realm, UserProvider localUsers, Map<String, String> row, SynchronizationResult result) {
+        String username = StringUtils.trimToNull(value(row, UserModel.USERNAME));
+        if (username == null) {
+            result.increaseFailed();
+            return;
+        }
+        UserModel user = localUsers.getUserByUsername(realm, username);
+        if (user == null) {
+            user = localUsers.addUser(realm, username);
+            user.setFederationLink(model.getId());
+            user.setEnabled(true);
+            result.increaseAdded();
+        } else if (model.getId().equals(user.getFederationLink())) {
+            result.increaseUpdated();
+        } else {
+            log.warnv("User {0} already exists in Keycloak and is not linked to {1}, skipping it", username, model.getName());
+            result.increaseFailed();
+            return;
+        }
+        applyData(user, row);
+    }
+
+    /**
+     * Copies a row of the base query to an imported user; columns are matched ignoring case and underscores,
+     * as Keycloak reads them (e.g. FIRST_NAME for firstName).
+     */
+    static void applyData(UserModel user, Map<String, String> row) {
+        for (Map.Entry<String, String> column : row.entrySet()) {
+            String value = StringUtils.trimToNull(column.getValue());
+            switch (column.getKey().replace("_", "").toLowerCase()) {
+                case "id":
+                    user.setSingleAttribute(EXTERNAL_ID_ATTRIBUTE, value);
+                    break;
+                case "username":
+                    break;
+                case "email":
+                    user.setEmail(value);
+                    break;
+                case "firstname":
+                    user.setFirstName(value);
+                    break;
+                case "lastname":
+                    user.setLastName(value);
+                    break;
+                default:
+                    if (value == null) {
+                        user.removeAttribute(column.getKey());
+                    } else {
+                        user.setSingleAttribute(column.getKey(), value);
+                    }
+            }
+        }
+    }
+
+    private static String value(Map<String, String> row, String column) {
+        return row.entrySet().stream()
+                  .filter(e -> column.equalsIgnoreCase(e.getKey()))
+                  .map(Map.Entry::getValue)
+                  .findFirst().orElse(null);
+    }
+}
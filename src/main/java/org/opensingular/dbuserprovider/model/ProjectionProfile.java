@@ -0,0 +1,15 @@
+package org.opensingular.dbuserprovider.model;
+
+/**
+ * Operation types that select their own subset of the mapped columns in place of {columns}.
+ */
+public enum ProjectionProfile {
+    /** Lookups by username or email and the user reload done during credential validation. */
+    LOGIN,
+    /** Lookups by id, which back the full user profile. Always selects every mapped column. */
+    FULL,
+    /** Rows returned by user searches and listings. */
+    SEARCH,
+    /** Count queries, which only select {@code count(*)}. */
+    COUNT
+}
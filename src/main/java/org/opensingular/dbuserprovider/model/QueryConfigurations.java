@@ -1,11 +1,24 @@
 package org.opensingular.dbuserprovider.model;
 
+import java.sql.JDBCType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import org.keycloak.models.UserModel;
+import org.opensingular.dbuserprovider.persistence.CountStrategy;
+import org.opensingular.dbuserprovider.persistence.OperationClass;
 import org.opensingular.dbuserprovider.persistence.RDBMS;
+import org.opensingular.dbuserprovider.persistence.SnapshotMode;
+import org.opensingular.dbuserprovider.util.HashUtil;
 import org.opensingular.dbuserprovider.util.SearchUtil;
 
 public class QueryConfigurations {
@@ -22,6 +35,32 @@ public class QueryConfigurations {
     private final RDBMS RDBMS;
     private final boolean allowKeycloakDelete;
     private final boolean allowDatabaseToOverwriteKeycloak;
+    private final boolean searchUnionRewrite;
+    private final boolean countWindowTotal;
+    private final CountStrategy countStrategy;
+    private final long countCacheTtl;
+    private final String countStatisticsTable;
+    private final long searchCacheTtl;
+    private final int loginQueryTimeout;
+    private final int adminQueryTimeout;
+    private final int searchFetchSize;
+    private final String syncWatermarkColumn;
+    private final long syncWatermarkOverlap;
+    private final String findChangedSince;
+    private final boolean migrateOnLogin;
+    private final String rehashFunction;
+    private final String rehashSourceQuery;
+    private final String rehashUpdateQuery;
+    private final String findVersion;
+    private final long reloadStalenessMillis;
+    private final SnapshotMode snapshotMode;
+    private final Map<ProjectionProfile, Set<String>> projections = new EnumMap<>(ProjectionProfile.class);
+    private final Map<String, JDBCType> columnTypes = new HashMap<>();
+
+    public static final String NO_REHASH = "None";
+
+    // "column:TYPE", but not a PostgreSQL cast such as "column::text"
+    private static final Pattern COLUMN_TYPE = Pattern.compile("^(.*[^:]):([A-Za-z_]+)$");
 
     public QueryConfigurations(
         String baseQuery,
@@ -35,67 +74,228 @@ public class QueryConfigurations {
         String updatePassword,
         RDBMS RDBMS,
         boolean allowKeycloakDelete,
-        boolean allowDatabaseToOverwriteKeycloak
+        boolean allowDatabaseToOverwriteKeycloak,
+        boolean searchUnionRewrite,
+        boolean countWindowTotal,
+        CountStrategy countStrategy,
+        long countCacheTtl,
+        String countStatisticsTable,
+        long searchCacheTtl,
+        List<String> loginProjection,
+        List<String> searchProjection,
+        int loginQueryTimeout,
+        int adminQueryTimeout,
+        int searchFetchSize,
+        String syncWatermarkColumn,
+        long syncWatermarkOverlap,
+        String findChangedSince,
+        boolean migrateOnLogin,
+        String rehashFunction,
+        String rehashSourceQuery,
+        String rehashUpdateQuery,
+        String findVersion,
+        long reloadStalenessMillis,
+        SnapshotMode snapshotMode
     ) {
         this.baseQuery = baseQuery;
         this.count = count;
         this.findById = findById;
         this.findByUsername = findByUsername;
         this.findByEmail = findByEmail;
-        this.columnsMapping = columnsMapping.stream()
+        Map<String, String> mapping = columnsMapping.stream()
             .map(s -> s.split("="))
             .filter(arr -> arr.length == 2)
             .collect(Collectors.toMap(arr -> arr[0].trim(), arr -> arr[1].trim()));
+        this.columnsMapping = new HashMap<>();
+        mapping.forEach((attribute, column) -> {
+            Matcher matcher = COLUMN_TYPE.matcher(column);
+            JDBCType type = matcher.matches() ? toJdbcType(matcher.group(2)) : null;
+            if (type != null) {
+                this.columnsMapping.put(attribute, matcher.group(1).trim());
+                this.columnTypes.put(attribute, type);
+            } else {
+                this.columnsMapping.put(attribute, column);
+            }
+        });
         this.findPasswordHash = findPasswordHash;
         this.hashFunction = hashFunction;
         this.updatePassword = updatePassword;
         this.RDBMS = RDBMS;
         this.allowKeycloakDelete = allowKeycloakDelete;
         this.allowDatabaseToOverwriteKeycloak = allowDatabaseToOverwriteKeycloak;
+        this.searchUnionRewrite = searchUnionRewrite;
+        this.countWindowTotal = countWindowTotal;
+        this.countStrategy = countStrategy;
+        this.countCacheTtl = countCacheTtl;
+        this.countStatisticsTable = countStatisticsTable;
+        this.searchCacheTtl = searchCacheTtl;
+        Set<String> login = toProjection(loginProjection);
+        // the credential check compares the reloaded email with the cached one, which must not load the full user
+        if (login != null && this.columnsMapping.containsKey(UserModel.EMAIL)) {
+            login.add(UserModel.EMAIL);
+        }
+        this.projections.put(ProjectionProfile.LOGIN, login);
+        this.projections.put(ProjectionProfile.SEARCH, toProjection(searchProjection));
+        this.loginQueryTimeout = loginQueryTimeout;
+        this.adminQueryTimeout = adminQueryTimeout;
+        this.searchFetchSize = searchFetchSize;
+        this.syncWatermarkColumn = syncWatermarkColumn;
+        this.syncWatermarkOverlap = syncWatermarkOverlap;
+        this.findChangedSince = findChangedSince;
+        this.migrateOnLogin = migrateOnLogin;
+        this.rehashFunction = rehashFunction;
+        this.rehashSourceQuery = rehashSourceQuery;
+        this.rehashUpdateQuery = rehashUpdateQuery;
+        this.findVersion = findVersion;
+        this.reloadStalenessMillis = reloadStalenessMillis;
+        this.snapshotMode = snapshotMode;
+    }
+
+    private static JDBCType toJdbcType(String name) {
+        try {
+            return JDBCType.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
     public RDBMS getRDBMS() {
         return RDBMS;
     }
 
+    /**
+     * SQL type used to bind parameters compared with the given attribute's column: the type declared in the
+     * columns mapping, or {@code null} to let the driver decide.
+     */
+    public JDBCType getBindType(String attribute) {
+        return columnTypes.get(attribute);
+    }
+
+    public JDBCType getBindTypeForColumn(String column) {
+        return columnsMapping.entrySet().stream()
+            .filter(entry -> entry.getValue().equals(column))
+            .findFirst()
+            .map(entry -> getBindType(entry.getKey()))
+            .orElse(null);
+    }
+
+    private Set<String> toProjection(List<String> attributes) {
+        if (attributes == null) {
+            return null;
+        }
+        Set<String> projection = attributes.stream()
+            .map(String::trim)
+            .filter(columnsMapping::containsKey)
+            .collect(Collectors.toCollection(LinkedHashSet::new));
+        if (projection.isEmpty()) {
+            return null;
+        }
+        projection.add("id");
+        projection.add(UserModel.USERNAME);
+        return projection;
+    }
+
     public String getBaseQuery() {
-        return getBaseQuery(null);
+        return getBaseQuery((List<String>) null);
     }
 
     public String getBaseQuery(List<String> columns) {
         return replaceColumns(baseQuery, columns);
     }
 
+    public String getBaseQuery(ProjectionProfile profile) {
+        return getBaseQuery(getProjectedColumns(profile));
+    }
+
+    /**
+     * Base query returning every user, its {filters} placeholder matching every row.
+     */
+    public String getAllUsersQuery() {
+        return SearchUtil.create(getBaseQuery(), columnsMapping, Map.of()).getQuery();
+    }
+
+    public String getAllUsersQuery(ProjectionProfile profile) {
+        return SearchUtil.create(getBaseQuery(profile), columnsMapping, Map.of()).getQuery();
+    }
+
+    /**
+     * Attributes selected by the given profile, or every mapped attribute if the profile is not restricted.
+     */
+    public Set<String> getProjectedAttributes(ProjectionProfile profile) {
+        Set<String> projection = projections.get(profile);
+        return projection == null ? columnsMapping.keySet() : Collections.unmodifiableSet(projection);
+    }
+
+    /**
+     * Mapped attributes the given profile does not select, to be loaded on first access.
+     */
+    public Set<String> getLazyAttributes(ProjectionProfile profile) {
+        Set<String> projection = projections.get(profile);
+        if (projection == null) {
+            return Collections.emptySet();
+        }
+        return columnsMapping.keySet().stream()
+            .filter(attribute -> !projection.contains(attribute))
+            .collect(Collectors.toSet());
+    }
+
+    private List<String> getProjectedColumns(ProjectionProfile profile) {
+        if (profile == ProjectionProfile.COUNT) {
+            return List.of("count(*)");
+        }
+        Set<String> projection = projections.get(profile);
+        if (projection == null) {
+            return null;
+        }
+        List<String> columns = new ArrayList<>();
+        for (String attribute : projection) {
+            columns.add(String.format("%s as %s", columnsMapping.get(attribute), attribute));
+        }
+        return columns;
+    }
+
     public String getCount() {
         if (count == null || count.trim().isEmpty()) {
-            return getBaseQuery(List.of("count(*)"));
+            return getAllUsersQuery(ProjectionProfile.COUNT);
         }
 
         return count;
     }
 
     public String getFindById() {
+        return getFindById(ProjectionProfile.FULL);
+    }
+
+    public String getFindById(ProjectionProfile profile) {
         if (findById == null || findById.trim().isEmpty()) {
-            return SearchUtil.create(getBaseQuery(), columnsMapping, Map.of("id", "", UserModel.EXACT, "true")).getQuery();
+            return SearchUtil.create(getBaseQuery(profile), columnsMapping, Map.of("id", "", UserModel.EXACT, "true")).getQuery();
         }
 
-        return replaceColumns(findById, null);
+        return replaceColumns(findById, getProjectedColumns(profile));
     }
 
     public String getFindByUsername() {
+        return getFindByUsername(ProjectionProfile.FULL);
+    }
+
+    public String getFindByUsername(ProjectionProfile profile) {
         if (findByUsername == null || findByUsername.trim().isEmpty()) {
-            return SearchUtil.create(getBaseQuery(), columnsMapping, Map.of(UserModel.USERNAME, "", UserModel.EXACT, "true")).getQuery();
+            return SearchUtil.create(getBaseQuery(profile), columnsMapping, Map.of(UserModel.USERNAME, "", UserModel.EXACT, "true")).getQuery();
         }
 
-        return replaceColumns(findByUsername, null);
+        return replaceColumns(findByUsername, getProjectedColumns(profile));
     }
 
     public String getFindByEmail() {
+        return getFindByEmail(ProjectionProfile.FULL);
+    }
+
+    public String getFindByEmail(ProjectionProfile profile) {
         if (findByEmail == null || findByEmail.trim().isEmpty()) {
-            return SearchUtil.create(getBaseQuery(), columnsMapping, Map.of(UserModel.EMAIL, "", UserModel.EXACT, "true")).getQuery();
+            return SearchUtil.create(getBaseQuery(profile), columnsMapping, Map.of(UserModel.EMAIL, "", UserModel.EXACT, "true")).getQuery();
         }
 
-        return replaceColumns(findByEmail, null);
+        return replaceColumns(findByEmail, getProjectedColumns(profile));
     }
 
     public String replaceColumns(String query, List<String> columns) {
@@ -132,4 +332,104 @@ public class QueryConfigurations {
     public boolean getAllowDatabaseToOverwriteKeycloak() {
         return allowDatabaseToOverwriteKeycloak;
     }
+
+    public boolean getSearchUnionRewrite() {
+        return searchUnionRewrite;
+    }
+
+    public boolean getCountWindowTotal() {
+        return countWindowTotal;
+    }
+
+    public CountStrategy getCountStrategy() {
+        if (countStrategy == CountStrategy.ESTIMATED && (countStatisticsTable == null || countStatisticsTable.isBlank())) {
+            return CountStrategy.EXACT;
+        }
+        return countStrategy;
+    }
+
+    public long getCountCacheTtl() {
+        return countCacheTtl;
+    }
+
+    public String getCountStatisticsTable() {
+        return countStatisticsTable;
+    }
+
+    public long getSearchCacheTtl() {
+        return searchCacheTtl;
+    }
+
+    /**
+     * Statement timeout, in seconds, of the queries run for the given operation class (0 for none).
+     */
+    public int getQueryTimeout(OperationClass operationClass) {
+        return operationClass == OperationClass.LOGIN ? loginQueryTimeout : adminQueryTimeout;
+    }
+
+    public int getSearchFetchSize() {
+        return searchFetchSize;
+    }
+
+    public String getSyncWatermarkColumn() {
+        return syncWatermarkColumn;
+    }
+
+    public long getSyncWatermarkOverlap() {
+        return syncWatermarkOverlap;
+    }
+
+    public String getFindChangedSince() {
+        return findChangedSince;
+    }
+
+    public boolean getMigrateOnLogin() {
+        return migrateOnLogin;
+    }
+
+    /**
+     * Algorithm wrapping the legacy password hashes, or {@code null} to keep them as they are. Only digests
+     * can be wrapped, salted hashes are never upgraded.
+     */
+    public String getRehashFunction() {
+        if (rehashFunction == null || rehashFunction.isBlank() || rehashFunction.equals(NO_REHASH) || !HashUtil.isDigest(hashFunction)) {
+            return null;
+        }
+        return rehashFunction;
+    }
+
+    public String getRehashSourceQuery() {
+        return rehashSourceQuery;
+    }
+
+    public String getRehashUpdateQuery() {
+        return rehashUpdateQuery;
+    }
+
+    public String getFindVersion() {
+        return findVersion;
+    }
+
+    public boolean hasVersionProbe() {
+        return findVersion != null && !findVersion.isBlank();
+    }
+
+    /**
+     * Age of a user cached by Keycloak after which a login checks it against the database.
+     */
+    public long getReloadStalenessMillis() {
+        return reloadStalenessMillis;
+    }
+
+    public SnapshotMode getSnapshotMode() {
+        return snapshotMode;
+    }
+
+    /**
+     * Whether the background rehash job has everything it needs to run.
+     */
+    public boolean isRehashConfigured() {
+        return getRehashFunction() != null && rehashSourceQuery != null && !rehashSourceQuery.isBlank()
+            && rehashUpdateQuery != null && !rehashUpdateQuery.isBlank();
+    }
 }
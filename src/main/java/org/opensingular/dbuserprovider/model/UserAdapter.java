@@ -1,12 +1,15 @@
 package org.opensingular.dbuserprovider.model;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.lang3.StringUtils;
 import org.jboss.logging.Logger;
@@ -22,13 +25,31 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage {
     private static final Logger log = Logger.getLogger(DBUserStorageProvider.class);
     private final String keycloakId;
     private       String username;
+    private final boolean allowDatabaseToOverwriteKeycloak;
+    private final Supplier<Map<String, String>> fullUserLoader;
+    // normalized names of the mapped attributes not selected by the projection used to load this user
+    private       Set<String> lazyAttributes;
 
     public UserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, Map<String, String> data, boolean allowDatabaseToOverwriteKeycloak) {
+        this(session, realm, model, data, allowDatabaseToOverwriteKeycloak, Collections.emptySet(), null);
+    }
+
+    public UserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, Map<String, String> data, boolean allowDatabaseToOverwriteKeycloak,
+                       Set<String> lazyAttributes, Supplier<Map<String, String>> fullUserLoader) {
         super(session, realm, model);
         this.keycloakId = StorageId.keycloakId(model, data.get("id"));
         this.username = data.get(UserModel.USERNAME);
+        this.allowDatabaseToOverwriteKeycloak = allowDatabaseToOverwriteKeycloak;
+        this.fullUserLoader = fullUserLoader;
+        this.lazyAttributes = fullUserLoader == null
+            ? Collections.emptySet()
+            : lazyAttributes.stream().map(UserAdapter::normalize).collect(Collectors.toSet());
+        applyData(data);
+    }
+
+    private void applyData(Map<String, String> data) {
         try {
-          Map<String, List<String>> attributes = this.getAttributes();
+          Map<String, List<String>> attributes = super.getAttributes();
           for (Entry<String, String> e : data.entrySet()) {
               Set<String>  newValues = new HashSet<>();
               if (!allowDatabaseToOverwriteKeycloak) {
@@ -45,6 +66,44 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage {
         }
     }
 
+    /**
+     * Keycloak reads some attributes under other names than the mapped ones (e.g. FIRST_NAME for firstName),
+     * so lazy attributes are matched ignoring case and underscores.
+     */
+    private static String normalize(String attribute) {
+        return attribute.replace("_", "").toLowerCase();
+    }
+
+    private void loadLazyAttributes(String name) {
+        if (lazyAttributes.isEmpty() || (name != null && !lazyAttributes.contains(normalize(name)))) {
+            return;
+        }
+        lazyAttributes = Collections.emptySet();
+        log.debugv("loading lazy attributes: username={0}", username);
+        Map<String, String> data = fullUserLoader.get();
+        if (data != null) {
+            applyData(data);
+        }
+    }
+
+    @Override
+    public String getFirstAttribute(String name) {
+        loadLazyAttributes(name);
+        return super.getFirstAttribute(name);
+    }
+
+    @Override
+    public Stream<String> getAttributeStream(String name) {
+        loadLazyAttributes(name);
+        return super.getAttributeStream(name);
+    }
+
+    @Override
+    public Map<String, List<String>> getAttributes() {
+        loadLazyAttributes(null);
+        return super.getAttributes();
+    }
+
 
     @Override
     public String getId() {
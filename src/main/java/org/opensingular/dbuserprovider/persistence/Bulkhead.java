@@ -0,0 +1,67 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+/**
+ * Limits the number of connections one {@link OperationClass} may hold at the same time, so that
+ * slow operations of one class cannot take every connection of the pool.
+ */
+class Bulkhead {
+    private final OperationClass operationClass;
+    private final Semaphore      permits;
+    private final long           timeoutMillis;
+
+    Bulkhead(OperationClass operationClass, int permits, long timeoutMillis) {
+        this.operationClass = operationClass;
+        this.permits        = permits > 0 ? new Semaphore(permits, true) : null;
+        this.timeoutMillis  = timeoutMillis;
+    }
+
+    /**
+     * Waits for a permit of this bulkhead and borrows a connection; the permit is returned when the connection is closed.
+     */
+    Connection getConnection(DataSource dataSource) throws SQLException {
+        if (permits == null) {
+            return dataSource.getConnection();
+        }
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new BulkheadFullException(operationClass + " connections exhausted, request timed out after " + timeoutMillis + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BulkheadFullException("Interrupted while waiting for a " + operationClass + " connection", e);
+        }
+        Connection connection;
+        try {
+            connection = dataSource.getConnection();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return releasingOnClose(connection);
+    }
+
+    private Connection releasingOnClose(Connection connection) {
+        AtomicBoolean released = new AtomicBoolean(false);
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                if (method.getName().equals("close") && released.compareAndSet(false, true)) {
+                    permits.release();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,18 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Thrown when no permit of a {@link Bulkhead} frees up in time. It tells that the operation class is saturated,
+ * not that the database is unhealthy.
+ */
+class BulkheadFullException extends SQLTransientConnectionException {
+
+    BulkheadFullException(String message) {
+        super(message);
+    }
+
+    BulkheadFullException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,35 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public enum ChangeFeed {
+
+    NONE("None"),
+    LISTEN_NOTIFY("PostgreSQL LISTEN/NOTIFY"),
+    CHANGE_LOG("Change log table polling");
+
+    private final String desc;
+
+    ChangeFeed(String desc) {
+        this.desc = desc;
+    }
+
+    public static ChangeFeed getByDescription(String desc) {
+        for (ChangeFeed value : values()) {
+            if (value.desc.equals(desc)) {
+                return value;
+            }
+        }
+        return NONE;
+    }
+
+    public static List<String> getAllDescriptions() {
+        return Arrays.stream(values()).map(ChangeFeed::getDesc).collect(Collectors.toList());
+    }
+
+    public String getDesc() {
+        return desc;
+    }
+}
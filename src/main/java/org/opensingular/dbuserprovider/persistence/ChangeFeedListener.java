@@ -0,0 +1,173 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import org.jboss.logging.Logger;
+import org.opensingular.dbuserprovider.DBUserStorageException;
+import org.opensingular.dbuserprovider.DBUserStorageProvider;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Follows the changes of users in one database and reports the ids of the changed users, so cached copies can be
+ * invalidated as soon as they change instead of when they expire.
+ * <p>
+ * With PostgreSQL {@code LISTEN/NOTIFY}, one connection of the pool is kept listening on a channel whose
+ * notifications carry the id of a changed user. Otherwise a change log query returning the id of each changed user
+ * and an increasing change sequence is polled for rows past the last sequence seen. The listener reconnects after
+ * failures; changes made while it is disconnected are only caught up by the change log.
+ */
+public class ChangeFeedListener implements Runnable, Closeable {
+    private static final Logger  log                = Logger.getLogger(DBUserStorageProvider.class);
+    private static final Pattern CHANNEL            = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final int     NOTIFY_WAIT_MILLIS = 1000;
+    private static final int     MAX_CHANGES        = 1000;
+    private static final long    MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private final String                   name;
+    private final ChangeFeed               changeFeed;
+    private final DataSourceProvider       dataSourceProvider;
+    private final String                   channel;
+    private final String                   changeLogQuery;
+    private final long                     pollMillis;
+    private final int                      queryTimeout;
+    private final Consumer<Set<String>>    onChange;
+    private final Thread                   thread;
+    private volatile boolean               closed;
+    // last change sequence read from the change log, null until the first poll
+    private       Long                     lastSequence;
+
+    public ChangeFeedListener(String name, ChangeFeed changeFeed, DataSourceProvider dataSourceProvider, String channel, String changeLogQuery,
+                              long pollMillis, int queryTimeout, Consumer<Set<String>> onChange) {
+        if (changeFeed == ChangeFeed.LISTEN_NOTIFY && (channel == null || !CHANNEL.matcher(channel).matches())) {
+            throw new DBUserStorageException("Invalid notification channel name: " + channel, null);
+        }
+        if (changeFeed == ChangeFeed.CHANGE_LOG && (changeLogQuery == null || changeLogQuery.isBlank())) {
+            throw new DBUserStorageException("The change log query is required to poll the change log", null);
+        }
+        this.name               = name;
+        this.changeFeed         = changeFeed;
+        this.dataSourceProvider = dataSourceProvider;
+        this.channel            = channel;
+        this.changeLogQuery     = changeLogQuery;
+        this.pollMillis         = Math.max(100, pollMillis);
+        this.queryTimeout       = queryTimeout;
+        this.onChange           = onChange;
+        this.thread             = new Thread(this, "change-feed-" + name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        long backoffMillis = 0;
+        while (!closed) {
+            try {
+                if (changeFeed == ChangeFeed.LISTEN_NOTIFY) {
+                    listen();
+                } else {
+                    Thread.sleep(pollMillis);
+                    poll();
+                }
+                backoffMillis = 0;
+            } catch (InterruptedException e) {
+                return;
+            } catch (SQLException | RuntimeException e) {
+                if (closed) {
+                    return;
+                }
+                backoffMillis = Math.min(MAX_BACKOFF_MILLIS, Math.max(pollMillis, backoffMillis * 2));
+                log.warnv("Change feed of {0} failed, retrying in {1}ms: {2}", name, backoffMillis, e.getMessage());
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void listen() throws SQLException {
+        try (Connection c = dataSourceProvider.getConnection(OperationClass.ADMIN)) {
+            c.setAutoCommit(true);
+            try (Statement statement = c.createStatement()) {
+                statement.execute("LISTEN " + channel);
+            }
+            log.infov("Change feed of {0} listening on channel {1}", name, channel);
+            PGConnection pgConnection = c.unwrap(PGConnection.class);
+            while (!closed) {
+                PGNotification[] notifications = pgConnection.getNotifications(NOTIFY_WAIT_MILLIS);
+                if (notifications != null && notifications.length > 0) {
+                    Set<String> ids = new LinkedHashSet<>();
+                    for (PGNotification notification : notifications) {
+                        String id = notification.getParameter();
+                        if (id != null && !id.isBlank()) {
+                            ids.add(id.trim());
+                        }
+                    }
+                    report(ids);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the change log past the last sequence seen. The first poll only sets the starting sequence,
+     * as the caches of a starting node hold nothing older.
+     */
+    private void poll() throws SQLException {
+        boolean more = true;
+        while (more && !closed) {
+            Set<String> ids      = new LinkedHashSet<>();
+            long        sequence = lastSequence == null ? Long.MIN_VALUE : lastSequence;
+            int         rows     = 0;
+            try (Connection c = dataSourceProvider.getConnection(OperationClass.ADMIN);
+                 PreparedStatement statement = c.prepareStatement(changeLogQuery)) {
+                statement.setQueryTimeout(queryTimeout);
+                statement.setMaxRows(MAX_CHANGES);
+                statement.setLong(1, sequence);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        String id = rs.getString(1);
+                        if (id != null) {
+                            ids.add(id.trim());
+                        }
+                        sequence = Math.max(sequence, rs.getLong(2));
+                        rows++;
+                    }
+                }
+            }
+            if (lastSequence != null) {
+                report(ids);
+            }
+            lastSequence = sequence;
+            more         = rows == MAX_CHANGES;
+        }
+    }
+
+    private void report(Set<String> ids) {
+        if (!ids.isEmpty()) {
+            log.debugv("Change feed of {0}: {1} users changed", name, ids.size());
+            onChange.accept(ids);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,135 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.util.Arrays;
+
+import org.jboss.logging.Logger;
+import org.opensingular.dbuserprovider.DBUserStorageProvider;
+
+/**
+ * Stops sending queries to a database that keeps failing or answering slowly. Once enough of the recent
+ * queries failed or were slower than the slow call threshold, the circuit opens and queries fail immediately
+ * with a {@link CircuitOpenException}, so Keycloak threads are not held by a sick database. After the open
+ * duration a single trial query is let through: it closes the circuit if it succeeds in time and opens it again otherwise.
+ * <p>
+ * Only {@link OperationClass#LOGIN} queries are counted and run the trial query: admin queries are allowed a much
+ * longer timeout, so their slowness says nothing of the login path. They still fail fast while the circuit is not
+ * closed.
+ */
+public class CircuitBreaker {
+    private static final Logger log = Logger.getLogger(DBUserStorageProvider.class);
+    private static final int WINDOW    = 20;
+    private static final int MIN_CALLS = 10;
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String    name;
+    private final int       failureRatePercent;
+    private final long      slowCallMillis;
+    private final long      openMillis;
+    private final boolean[] failures = new boolean[WINDOW];
+    private       int       calls;
+    private       int       failed;
+    private       int       next;
+    private       State     state = State.CLOSED;
+    private       long      openedAt;
+    private       boolean   trialRunning;
+
+    /**
+     * @param failureRatePercent share of failed or slow queries among the recent ones that opens the circuit, 0 to disable it
+     */
+    public CircuitBreaker(String name, int failureRatePercent, long slowCallMillis, long openMillis) {
+        this.name               = name;
+        this.failureRatePercent = failureRatePercent;
+        this.slowCallMillis     = slowCallMillis;
+        this.openMillis         = openMillis;
+    }
+
+    /**
+     * Called before each query; fails fast while the circuit is open or its trial query is running.
+     */
+    synchronized void acquire(OperationClass operationClass) throws CircuitOpenException {
+        if (failureRatePercent <= 0) {
+            return;
+        }
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                throw new CircuitOpenException("Database of " + name + " is unavailable, circuit breaker open");
+            }
+            state        = State.HALF_OPEN;
+            trialRunning = false;
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialRunning || operationClass != OperationClass.LOGIN) {
+                throw new CircuitOpenException("Database of " + name + " is unavailable, circuit breaker trial query running");
+            }
+            trialRunning = true;
+        }
+    }
+
+    synchronized void onSuccess(OperationClass operationClass, long millis) {
+        if (operationClass == OperationClass.LOGIN) {
+            record(slowCallMillis > 0 && millis >= slowCallMillis);
+        }
+    }
+
+    synchronized void onFailure(OperationClass operationClass) {
+        if (operationClass == OperationClass.LOGIN) {
+            record(true);
+        }
+    }
+
+    /**
+     * Called for a query abandoned by the caller or refused by its bulkhead, which counts neither as a success nor
+     * as a failure.
+     */
+    synchronized void onCancelled(OperationClass operationClass) {
+        if (operationClass == OperationClass.LOGIN) {
+            trialRunning = false;
+        }
+    }
+
+    private void record(boolean failure) {
+        if (failureRatePercent <= 0) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            if (failure) {
+                open();
+            } else {
+                log.infov("Database of {0} recovered, closing circuit breaker", name);
+                reset(State.CLOSED);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            return;
+        }
+        if (calls == WINDOW && failures[next]) {
+            failed--;
+        }
+        failures[next] = failure;
+        next  = (next + 1) % WINDOW;
+        calls = Math.min(calls + 1, WINDOW);
+        if (failure) {
+            failed++;
+        }
+        if (calls >= MIN_CALLS && failed * 100 >= failureRatePercent * calls) {
+            open();
+        }
+    }
+
+    private void open() {
+        log.warnv("Queries of {0} keep failing or taking over {1}ms, opening circuit breaker for {2}ms", name, slowCallMillis, openMillis);
+        reset(State.OPEN);
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void reset(State newState) {
+        state        = newState;
+        trialRunning = false;
+        calls        = 0;
+        failed       = 0;
+        next         = 0;
+        Arrays.fill(failures, false);
+    }
+}
@@ -0,0 +1,13 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Thrown instead of running a query while the {@link CircuitBreaker} of its database is open.
+ */
+class CircuitOpenException extends SQLTransientConnectionException {
+
+    CircuitOpenException(String message) {
+        super(message);
+    }
+}
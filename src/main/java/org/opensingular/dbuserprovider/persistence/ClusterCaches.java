@@ -0,0 +1,97 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.Cache;
+
+/**
+ * Entries of one shard of a provider component in Keycloak's replicated work cache, shared by every node of the
+ * cluster: the total user count, so one node computes it for all, and a generation token replaced whenever a node
+ * invalidates its caches, so the other nodes flush theirs on their next read. It also holds the leases electing the
+ * node that propagates the changes reported by the database change feed to the whole cluster, and the node that
+ * rehashes the legacy passwords of the shard.
+ * <p>
+ * Only strings and numbers are stored, which Keycloak's cache marshalling handles without extra schemas.
+ */
+public class ClusterCaches {
+    private static final String KEY_PREFIX = "singular-user-provider.";
+
+    private final Cache<String, Object> cache;
+    private final String                generationKey;
+    private final String                countKey;
+    private final String                changeFeedLeaseKey;
+    private final String                rehashLeaseKey;
+
+    public ClusterCaches(Cache<String, Object> cache, String componentId, String shard) {
+        this.cache         = cache;
+        this.generationKey = KEY_PREFIX + componentId + "." + shard + ".generation";
+        this.countKey      = KEY_PREFIX + componentId + "." + shard + ".count";
+        this.changeFeedLeaseKey = KEY_PREFIX + componentId + "." + shard + ".change-feed-leader";
+        this.rehashLeaseKey     = KEY_PREFIX + componentId + "." + shard + ".rehash-leader";
+    }
+
+    /**
+     * Takes or renews the change feed lease for the given node.
+     *
+     * @return whether the node holds the lease
+     */
+    public boolean holdChangeFeedLease(String node, long leaseMillis) {
+        return holdLease(changeFeedLeaseKey, node, leaseMillis);
+    }
+
+    /**
+     * Takes or renews the password rehash lease for the given node.
+     *
+     * @return whether the node holds the lease
+     */
+    public boolean holdRehashLease(String node, long leaseMillis) {
+        return holdLease(rehashLeaseKey, node, leaseMillis);
+    }
+
+    /**
+     * Gives up the password rehash lease if the given node holds it, so another node can take it at once.
+     */
+    public void releaseRehashLease(String node) {
+        cache.remove(rehashLeaseKey, node);
+    }
+
+    private boolean holdLease(String key, String node, long leaseMillis) {
+        Object holder = cache.putIfAbsent(key, node, leaseMillis, TimeUnit.MILLISECONDS);
+        if (holder == null) {
+            return true;
+        }
+        return node.equals(holder) && cache.replace(key, node, node, leaseMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Token identifying the current state of the caches; {@code null} until a node invalidates them.
+     */
+    String getGeneration() {
+        return (String) cache.get(generationKey);
+    }
+
+    /**
+     * Starts a new generation, making every node flush its caches.
+     *
+     * @return the new generation
+     */
+    String nextGeneration() {
+        String generation = UUID.randomUUID().toString();
+        cache.put(generationKey, generation);
+        return generation;
+    }
+
+    Integer getCount() {
+        Object count = cache.get(countKey);
+        return count instanceof Integer ? (Integer) count : null;
+    }
+
+    void putCount(int count, long ttlMillis) {
+        cache.put(countKey, count, Math.max(1, ttlMillis), TimeUnit.MILLISECONDS);
+    }
+
+    void removeCount() {
+        cache.remove(countKey);
+    }
+}
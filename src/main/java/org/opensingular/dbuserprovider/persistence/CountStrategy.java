@@ -0,0 +1,35 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public enum CountStrategy {
+
+    EXACT("Exact"),
+    CACHED("Cached exact"),
+    ESTIMATED("Estimated from statistics");
+
+    private final String desc;
+
+    CountStrategy(String desc) {
+        this.desc = desc;
+    }
+
+    public static CountStrategy getByDescription(String desc) {
+        for (CountStrategy value : values()) {
+            if (value.desc.equals(desc)) {
+                return value;
+            }
+        }
+        return EXACT;
+    }
+
+    public static List<String> getAllDescriptions() {
+        return Arrays.stream(values()).map(CountStrategy::getDesc).collect(Collectors.toList());
+    }
+
+    public String getDesc() {
+        return desc;
+    }
+}
@@ -2,68 +2,217 @@ package org.opensingular.dbuserprovider.persistence;
 
 
 import java.io.Closeable;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
-import org.apache.commons.lang3.StringUtils;
 import org.jboss.logging.Logger;
 import org.opensingular.dbuserprovider.DBUserStorageProvider;
 
-import com.zaxxer.hikari.HikariConfig;
-import com.zaxxer.hikari.HikariDataSource;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
+/**
+ * Logical handle of one provider component on connection pools of the {@link DataSourceRegistry}.
+ * Components configured with the same JDBC target and pool settings share the same pool.
+ * <p>
+ * Writes always go to the primary pool. Reads are balanced across the healthy read replicas, if any are
+ * configured, except for users written through this component during the read-your-writes window.
+ */
 public class DataSourceProvider implements Closeable {
     private static final Logger log = Logger.getLogger(DBUserStorageProvider.class);
-    private static final SimpleDateFormat SIMPLE_DATE_FORMAT = new SimpleDateFormat("dd-MM-YYYY HH:mm:ss");
-    private final        ExecutorService  executor           = Executors.newFixedThreadPool(1);
-    private              HikariDataSource hikariDataSource;
+    private static final long UNHEALTHY_MILLIS = TimeUnit.SECONDS.toMillis(30);
     
-    public DataSourceProvider() {
+    private final DataSourceRegistry          registry;
+    private final CircuitBreaker              circuitBreaker;
+    private final AtomicInteger               nextReplica    = new AtomicInteger();
+    private final Map<SharedDataSource, Long> unhealthyUntil = new ConcurrentHashMap<>();
+    private       SharedDataSource            sharedDataSource;
+    private       List<SharedDataSource>      replicas       = Collections.emptyList();
+    private       Cache<String, Boolean>      recentWrites;
+    private volatile HedgingPolicy            hedgingPolicy  = new HedgingPolicy(0);
+    
+    public DataSourceProvider(DataSourceRegistry registry, CircuitBreaker circuitBreaker) {
+        this.registry       = registry;
+        this.circuitBreaker = circuitBreaker;
     }
     
     
     synchronized Optional<DataSource> getDataSource() {
-        return Optional.ofNullable(hikariDataSource);
+        return Optional.ofNullable(sharedDataSource).map(SharedDataSource::getDataSource);
     }
     
-    
-    public void configure(String url, RDBMS rdbms, String user, String pass, String name) {
-        HikariConfig hikariConfig = new HikariConfig();
-        hikariConfig.setUsername(user);
-        hikariConfig.setPassword(pass);
-        hikariConfig.setPoolName(StringUtils.capitalize("SINGULAR-USER-PROVIDER-" + name + SIMPLE_DATE_FORMAT.format(new Date())));
-        hikariConfig.setJdbcUrl(url);
-        hikariConfig.setConnectionTestQuery(rdbms.getTestString());
-        hikariConfig.setDriverClassName(rdbms.getDriver());
-        HikariDataSource newDS = new HikariDataSource(hikariConfig);
-        newDS.validate();
-        HikariDataSource old = this.hikariDataSource;
-        this.hikariDataSource = newDS;
-        disposeOldDataSource(old);
+    /**
+     * Borrows a connection to the primary database within the share of the pool reserved for the given operation class.
+     */
+    Connection getConnection(OperationClass operationClass) throws SQLException {
+        SharedDataSource current;
+        synchronized (this) {
+            current = sharedDataSource;
+        }
+        if (current == null) {
+            throw new SQLException("Data source not found");
+        }
+        return current.getConnection(operationClass);
     }
     
-    private void disposeOldDataSource(HikariDataSource old) {
-        executor.submit(() -> {
+    /**
+     * Borrows a connection for a read-only query, from a healthy replica when one is available.
+     *
+     * @param writeKey {@link #writeKey key} of the user the query reads, kept on the primary if it was written
+     *                 recently; may be {@code null}
+     */
+    Connection getReadConnection(OperationClass operationClass, String writeKey) throws SQLException {
+        List<SharedDataSource> endpoints = getReadEndpoints(writeKey);
+        for (int i = 0; i < endpoints.size() - 1; i++) {
             try {
-                if (old != null) {
-                    old.close();
+                return getConnection(endpoints.get(i), operationClass);
+            } catch (SQLException e) {
+                // already marked unhealthy, try the next endpoint
+            }
+        }
+        return getConnection(operationClass);
+    }
+    
+    /**
+     * Endpoints a read-only query may run on, in order of preference: the healthy replicas, rotated for
+     * balancing, followed by the primary. Only the primary is returned for users written recently.
+     */
+    List<SharedDataSource> getReadEndpoints(String writeKey) {
+        SharedDataSource       primary;
+        List<SharedDataSource> currentReplicas;
+        Cache<String, Boolean> currentWrites;
+        synchronized (this) {
+            primary         = sharedDataSource;
+            currentReplicas = replicas;
+            currentWrites   = recentWrites;
+        }
+        if (primary == null) {
+            return Collections.emptyList();
+        }
+        if (currentReplicas.isEmpty() || (writeKey != null && currentWrites.getIfPresent(writeKey) != null)) {
+            return List.of(primary);
+        }
+        List<SharedDataSource> endpoints = new ArrayList<>(currentReplicas.size() + 1);
+        long now   = System.currentTimeMillis();
+        int  start = Math.floorMod(nextReplica.getAndIncrement(), currentReplicas.size());
+        for (int i = 0; i < currentReplicas.size(); i++) {
+            SharedDataSource replica = currentReplicas.get((start + i) % currentReplicas.size());
+            if (unhealthyUntil.getOrDefault(replica, 0L) <= now) {
+                endpoints.add(replica);
+            }
+        }
+        endpoints.add(primary);
+        return endpoints;
+    }
+    
+    /**
+     * Borrows a connection from the given endpoint, marking it unhealthy for a while if it is a replica that fails.
+     * A replica whose bulkhead is full is busy rather than down, so it is not marked.
+     */
+    Connection getConnection(SharedDataSource endpoint, OperationClass operationClass) throws SQLException {
+        try {
+            return endpoint.getConnection(operationClass);
+        } catch (BulkheadFullException e) {
+            throw e;
+        } catch (SQLException e) {
+            if (endpoint != sharedDataSource) {
+                log.warnv("Read replica {0} unavailable, skipping it for {1}ms: {2}", endpoint.getPoolName(), UNHEALTHY_MILLIS, e.getMessage());
+                unhealthyUntil.put(endpoint, System.currentTimeMillis() + UNHEALTHY_MILLIS);
+            }
+            throw e;
+        }
+    }
+    
+    HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+    
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+    
+    /**
+     * Keeps reads of the given user on the primary for the read-your-writes window, whichever of the given keys
+     * they look it up by.
+     */
+    void markWritten(String... writeKeys) {
+        Cache<String, Boolean> currentWrites;
+        synchronized (this) {
+            currentWrites = recentWrites;
+        }
+        if (currentWrites != null) {
+            for (String writeKey : writeKeys) {
+                if (writeKey != null) {
+                    currentWrites.put(writeKey, Boolean.TRUE);
                 }
+            }
+        }
+    }
+    
+    /**
+     * @return the key under which reads of a user by the given attribute are tracked, or {@code null} for a
+     * {@code null} value
+     */
+    static String writeKey(String attribute, String value) {
+        return value == null ? null : attribute + ":" + value.toLowerCase(Locale.ROOT);
+    }
+    
+    
+    /**
+     * @param replicaConnectionTimeout milliseconds to wait for a new connection to a replica before skipping it
+     */
+    public void configure(String url, List<String> replicaUrls, long readYourWritesMillis, long replicaConnectionTimeout, double hedgePercentile,
+                          RDBMS rdbms, String user, String pass, String name, Map<String, String> driverProperties, PoolSettings poolSettings) {
+        SharedDataSource newDS = registry.acquire(url, rdbms, user, pass, name, driverProperties, poolSettings);
+        List<SharedDataSource> newReplicas = new ArrayList<>();
+        for (String replicaUrl : replicaUrls) {
+            try {
+                newReplicas.add(registry.acquire(replicaUrl, rdbms, user, pass, name + "-REPLICA-" + newReplicas.size(), driverProperties,
+                                                 poolSettings.withConnectionTimeout(replicaConnectionTimeout)));
             } catch (Exception e) {
-                log.error(e.getMessage(), e);
+                log.errorv(e, "Could not connect to read replica {0}, reads will not use it", replicaUrl);
             }
-        });
+        }
+        SharedDataSource       old;
+        List<SharedDataSource> oldReplicas;
+        synchronized (this) {
+            old                   = this.sharedDataSource;
+            oldReplicas           = this.replicas;
+            this.sharedDataSource = newDS;
+            this.replicas         = Collections.unmodifiableList(newReplicas);
+            this.recentWrites     = CacheBuilder.newBuilder()
+                                                .expireAfterWrite(Math.max(1, readYourWritesMillis), TimeUnit.MILLISECONDS)
+                                                .build();
+        }
+        unhealthyUntil.clear();
+        HedgingPolicy oldHedgingPolicy = hedgingPolicy;
+        hedgingPolicy = new HedgingPolicy(hedgePercentile);
+        oldHedgingPolicy.close();
+        if (old != null) {
+            registry.release(old);
+        }
+        oldReplicas.forEach(registry::release);
     }
     
     @Override
-    public void close() {
-        executor.shutdownNow();
-        if (hikariDataSource != null) {
-            hikariDataSource.close();
+    public synchronized void close() {
+        if (sharedDataSource != null) {
+            registry.release(sharedDataSource);
+            sharedDataSource = null;
         }
+        replicas.forEach(registry::release);
+        replicas = Collections.emptyList();
+        hedgingPolicy.close();
     }
 }
@@ -0,0 +1,151 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.logging.Logger;
+import org.opensingular.dbuserprovider.DBUserStorageProvider;
+
+/**
+ * Connection pools shared by every provider component pointing at the same JDBC target with the same pool
+ * settings. Pools are reference counted: each {@link DataSourceProvider} holds one reference and the pool is
+ * closed once the last component releases it.
+ * <p>
+ * Pools are built and validated outside the registry lock, so a slow or unreachable database does not hold up
+ * the components using other pools.
+ */
+public class DataSourceRegistry implements Closeable {
+    private static final Logger log = Logger.getLogger(DBUserStorageProvider.class);
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    private final Map<Key, SharedDataSource> pools    = new HashMap<>();
+    private final ExecutorService            executor = Executors.newFixedThreadPool(1);
+    private boolean                          closed;
+
+    SharedDataSource acquire(String url, RDBMS rdbms, String user, String pass, String name,
+                             Map<String, String> driverProperties, PoolSettings poolSettings) {
+        Key key = new Key(url, rdbms, user, pass, driverProperties, poolSettings);
+        synchronized (this) {
+            SharedDataSource shared = reference(key);
+            if (shared != null) {
+                log.infov("Reusing connection pool {0}", shared.getPoolName());
+                return shared;
+            }
+        }
+        SharedDataSource created = new SharedDataSource(key, url, rdbms, user, pass, name, driverProperties, poolSettings);
+        SharedDataSource shared;
+        synchronized (this) {
+            shared = reference(key);
+            if (shared == null) {
+                pools.put(key, created);
+                created.references++;
+                log.infov("Created connection pool {0}", created.getPoolName());
+                return created;
+            }
+        }
+        // another component built the same pool meanwhile
+        closeQuietly(created);
+        log.infov("Reusing connection pool {0}", shared.getPoolName());
+        return shared;
+    }
+
+    private SharedDataSource reference(Key key) {
+        if (closed) {
+            throw new IllegalStateException("Connection pool registry closed");
+        }
+        SharedDataSource shared = pools.get(key);
+        if (shared != null) {
+            shared.references++;
+        }
+        return shared;
+    }
+
+    synchronized void release(SharedDataSource shared) {
+        if (--shared.references > 0) {
+            return;
+        }
+        pools.remove(shared.getKey());
+        if (closed) {
+            closeQuietly(shared);
+        } else {
+            executor.submit(() -> closeQuietly(shared));
+        }
+    }
+
+    private static void closeQuietly(SharedDataSource shared) {
+        try {
+            shared.close();
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Closes the pools still registered after the pools already released finished closing.
+     */
+    @Override
+    public void close() {
+        List<SharedDataSource> remaining;
+        synchronized (this) {
+            closed    = true;
+            remaining = new ArrayList<>(pools.values());
+            pools.clear();
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warnv("Connection pools still closing after {0}s", CLOSE_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        remaining.forEach(DataSourceRegistry::closeQuietly);
+    }
+
+    static final class Key {
+        private final String              url;
+        private final RDBMS               rdbms;
+        private final String              user;
+        private final String              pass;
+        private final Map<String, String> driverProperties;
+        private final PoolSettings        poolSettings;
+
+        private Key(String url, RDBMS rdbms, String user, String pass, Map<String, String> driverProperties, PoolSettings poolSettings) {
+            this.url              = url;
+            this.rdbms            = rdbms;
+            this.user             = user;
+            this.pass             = pass;
+            this.driverProperties = new HashMap<>(driverProperties);
+            this.poolSettings     = poolSettings;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Objects.equals(url, other.url)
+                && rdbms == other.rdbms
+                && Objects.equals(user, other.user)
+                && Objects.equals(pass, other.pass)
+                && driverProperties.equals(other.driverProperties)
+                && poolSettings.equals(other.poolSettings);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, rdbms, user, driverProperties, poolSettings);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks recent lookup latencies of one provider component and tells after how long a lookup that has not
+ * returned yet should be repeated on a second endpoint.
+ */
+public class HedgingPolicy implements Closeable {
+    private static final int  WINDOW         = 512;
+    // below this number of samples the percentile is not meaningful and lookups are not hedged
+    private static final int  MIN_SAMPLES    = 20;
+    private static final long MIN_DELAY_MILLIS = 2;
+
+    private final double          percentile;
+    private final long[]          samples = new long[WINDOW];
+    private       int             count;
+    private       int             next;
+    private final ExecutorService executor;
+
+    /**
+     * @param percentile latency percentile (e.g. 95) after which a lookup is hedged, or 0 to disable hedging
+     */
+    public HedgingPolicy(double percentile) {
+        this.percentile = Math.min(percentile, 100);
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = isEnabled()
+            ? Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "singular-user-provider-hedged-read-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            })
+            : null;
+    }
+
+    public boolean isEnabled() {
+        return percentile > 0;
+    }
+
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % WINDOW;
+        count = Math.min(count + 1, WINDOW);
+    }
+
+    /**
+     * @return the delay before hedging a lookup, or -1 if not enough latencies were recorded yet
+     */
+    synchronized long getDelayMillis() {
+        if (count < MIN_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return Math.max(MIN_DELAY_MILLIS, sorted[Math.max(0, Math.min(index, count - 1))]);
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.logging.Logger;
+import org.opensingular.dbuserprovider.DBUserStorageException;
+import org.opensingular.dbuserprovider.DBUserStorageProvider;
+import org.opensingular.dbuserprovider.util.WatermarkUtil;
+
+/**
+ * Keeps the {@link LocalUserCopy} instances of one shard current. They are rebuilt from the base query, one after
+ * the other, when the refresher starts and at every refresh interval, unless a watermark column is configured:
+ * the changed users are then read past the highest watermark seen and applied, and the copies are only rebuilt
+ * once too many users changed. Users deleted from the database never show up as changed, so the ids of the
+ * copies are also checked against the database at every reconcile interval. A copy loaded from disk at startup
+ * is not rebuilt if it can be brought up to date from its watermark, or without one if it is younger than the
+ * refresh interval. Users reported changed by the change feed are reloaded by id within a second.
+ */
+public class LocalCopyRefresher implements Runnable, Closeable {
+    private static final Logger log         = Logger.getLogger(DBUserStorageProvider.class);
+    private static final int    MAX_CHANGED = 10000;
+    private static final long   TICK_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    // ids checked per query, below the IN list limits of the databases
+    private static final int    MAX_IDS     = 500;
+
+    private final String              name;
+    private final UserRepository      repository;
+    private final List<LocalUserCopy> copies;
+    private final String              watermarkColumn;
+    private final long                watermarkOverlap;
+    private final int                 batchSize;
+    private final long                refreshMillis;
+    private final long                reconcileMillis;
+    private final Thread              thread;
+    // position of the last user read, in watermark then id order
+    private       String              watermark;
+    private       String              lastId;
+
+    public LocalCopyRefresher(String name, UserRepository repository, List<LocalUserCopy> copies, String watermarkColumn,
+                              long watermarkOverlap, int batchSize, long refreshMillis, long reconcileMillis) {
+        this.name             = name;
+        this.repository       = repository;
+        this.copies           = copies;
+        this.watermarkColumn  = watermarkColumn == null || watermarkColumn.isBlank() ? null : watermarkColumn;
+        this.watermarkOverlap = watermarkOverlap;
+        this.batchSize        = Math.max(1, batchSize);
+        this.refreshMillis    = Math.max(TICK_MILLIS, refreshMillis);
+        this.reconcileMillis  = reconcileMillis;
+        this.thread           = new Thread(this, "local-copy-" + name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        boolean startup       = true;
+        boolean rebuild       = true;
+        long    nextRefresh   = 0;
+        long    nextReconcile = reconcileMillis > 0 ? System.currentTimeMillis() + reconcileMillis : Long.MAX_VALUE;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (System.currentTimeMillis() >= nextRefresh) {
+                    nextRefresh = System.currentTimeMillis() + refreshMillis;
+                    if (rebuild || watermarkColumn == null) {
+                        long loadedAt = rebuild(startup);
+                        if (loadedAt > 0) {
+                            // bring a reused copy up to date right away, or rebuild it once it is as old as a refresh
+                            nextRefresh = watermarkColumn == null ? loadedAt + refreshMillis : 0;
+                        }
+                        startup = false;
+                        rebuild = false;
+                    } else {
+                        applyChanges();
+                        if (copies.stream().anyMatch(c -> c.getChangedCount() > MAX_CHANGED)) {
+                            rebuild     = true;
+                            nextRefresh = 0;
+                        }
+                    }
+                }
+                if (watermarkColumn != null && !rebuild && System.currentTimeMillis() >= nextReconcile) {
+                    nextReconcile = System.currentTimeMillis() + reconcileMillis;
+                    reconcile();
+                }
+                reloadInvalidated();
+            } catch (IOException | RuntimeException e) {
+                log.warnv(e, "Could not refresh the local copies of the users of {0}", name);
+            }
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the copies, except at startup those loaded from disk that can be reused.
+     *
+     * @return when the oldest reused copy was written, or 0 if every copy was rebuilt
+     */
+    private long rebuild(boolean startup) throws IOException {
+        List<LocalUserCopy> rebuilt  = new ArrayList<>();
+        String[]            position = null;
+        long                loadedAt = 0;
+        for (LocalUserCopy copy : copies) {
+            if (startup && isReusable(copy)) {
+                position = copy.getLoadedPosition();
+                loadedAt = loadedAt == 0 ? copy.getLoadedAt() : Math.min(loadedAt, copy.getLoadedAt());
+                log.infov("Reusing the local copy of the users of {0} written at {1}", name, new Date(copy.getLoadedAt()));
+            } else {
+                rebuilt.add(copy);
+            }
+        }
+        // each copy reads the base query on its own, the first one tracks the watermark unless a reused copy,
+        // which is behind, sets it
+        for (int i = 0; i < rebuilt.size(); i++) {
+            rebuild(rebuilt.get(i), i == 0 && position == null);
+        }
+        if (position != null) {
+            watermark = position[0];
+            lastId    = position[1];
+        }
+        return loadedAt;
+    }
+
+    private boolean isReusable(LocalUserCopy copy) {
+        String[] position = copy.getLoadedPosition();
+        if (!copy.isAvailable() || position == null) {
+            return false;
+        }
+        return watermarkColumn == null ? System.currentTimeMillis() - copy.getLoadedAt() < refreshMillis : position[0] != null;
+    }
+
+    private void rebuild(LocalUserCopy copy, boolean trackWatermark) throws IOException {
+        String[] highest = new String[2];
+        copy.rebuild(consumer -> repository.forEachUserBatch(batchSize, batch -> {
+            if (trackWatermark && watermarkColumn != null) {
+                for (Map<String, String> user : batch) {
+                    String value = LocalUserCopy.value(user, watermarkColumn);
+                    if (value != null && (highest[0] == null || WatermarkUtil.compare(value, highest[0]) >= 0)) {
+                        highest[0] = value;
+                        highest[1] = LocalUserCopy.value(user, "id");
+                    }
+                }
+            }
+            consumer.accept(batch);
+        }));
+        if (trackWatermark) {
+            watermark = highest[0];
+            lastId    = highest[1];
+        }
+    }
+
+    private void applyChanges() {
+        // users committed late with an earlier watermark are read again within the overlap
+        String rewound = WatermarkUtil.rewind(watermark, watermarkOverlap);
+        if (rewound != null && !rewound.equals(watermark)) {
+            watermark = rewound;
+            lastId    = null;
+        }
+        List<Map<String, String>> batch;
+        do {
+            batch = repository.findChangedSince(watermark, lastId, batchSize);
+            if (batch == null) {
+                throw new DBUserStorageException("Could not read the changed users of " + name, null);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            for (LocalUserCopy copy : copies) {
+                copy.apply(batch);
+            }
+            Map<String, String> last = batch.get(batch.size() - 1);
+            watermark = LocalUserCopy.value(last, watermarkColumn);
+            lastId    = LocalUserCopy.value(last, "id");
+            log.debugv("Applied {0} changed users to the local copies of {1}", batch.size(), name);
+        } while (batch.size() == batchSize);
+    }
+
+    /**
+     * Drops the users of the copies the database no longer returns.
+     */
+    private void reconcile() {
+        for (LocalUserCopy copy : copies) {
+            List<String> ids     = new ArrayList<>(MAX_IDS);
+            int[]        removed = new int[1];
+            copy.forEachId(id -> {
+                ids.add(id);
+                if (ids.size() == MAX_IDS) {
+                    removed[0] += removeMissing(copy, ids);
+                    ids.clear();
+                }
+            });
+            removed[0] += removeMissing(copy, ids);
+            if (removed[0] > 0) {
+                log.infov("Removed {0} deleted users from a local copy of the users of {1}", removed[0], name);
+            }
+        }
+    }
+
+    private int removeMissing(LocalUserCopy copy, List<String> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        Set<String> existing = repository.findExistingIds(ids);
+        if (existing == null) {
+            throw new DBUserStorageException("Could not check the users of " + name, null);
+        }
+        int removed = 0;
+        for (String id : ids) {
+            if (!existing.contains(id)) {
+                copy.remove(id);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private void reloadInvalidated() {
+        for (LocalUserCopy copy : copies) {
+            List<Map<String, String>> reloaded = new ArrayList<>();
+            for (String id : copy.getInvalidated()) {
+                List<Map<String, String>> users = repository.queryUserById(id);
+                if (users == null) {
+                    // the database is unavailable, try again on the next tick
+                    return;
+                }
+                if (users.isEmpty()) {
+                    copy.remove(id);
+                } else {
+                    reloaded.add(users.get(0));
+                }
+            }
+            if (!reloaded.isEmpty()) {
+                copy.apply(reloaded);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        copies.forEach(LocalUserCopy::close);
+    }
+}
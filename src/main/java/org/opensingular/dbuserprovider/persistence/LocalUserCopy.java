@@ -0,0 +1,156 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Copy of the users of one shard held by the provider, rebuilt from the base query and kept current between
+ * rebuilds by a {@link LocalCopyRefresher}. Users changed since the last rebuild are kept on the heap with their
+ * new data; users reported changed without it, or removed, are outdated and must not be answered from the copy.
+ */
+public abstract class LocalUserCopy implements Closeable {
+    // users changed since the last rebuild, by id
+    protected final Map<String, Map<String, String>> changed     = new ConcurrentHashMap<>();
+    // users changed since the last rebuild whose new data is not known yet
+    private   final Set<String>                      invalidated = ConcurrentHashMap.newKeySet();
+    private   final Set<String>                      removed     = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Replaces the copy with the users fed to the given consumer.
+     *
+     * @param users called with the consumer to feed every user to, in batches
+     */
+    public abstract void rebuild(Consumer<Consumer<List<Map<String, String>>>> users) throws IOException;
+
+    /**
+     * Whether the copy was built or loaded and answers lookups.
+     */
+    public abstract boolean isAvailable();
+
+    /**
+     * Calls the action with the id of every user of the copy, except those already known to have changed.
+     */
+    public abstract void forEachId(Consumer<String> action);
+
+    /**
+     * @return when the copy loaded at startup was built, or 0 if none was loaded
+     */
+    public long getLoadedAt() {
+        return 0;
+    }
+
+    /**
+     * @return the watermark and id of the last changed user of the copy loaded at startup, either possibly
+     * {@code null}, or {@code null} if none was loaded
+     */
+    public String[] getLoadedPosition() {
+        return null;
+    }
+
+    /**
+     * Overrides the copy with the current data of changed users.
+     */
+    public void apply(List<Map<String, String>> users) {
+        for (Map<String, String> user : users) {
+            String id = value(user, "id");
+            if (id == null) {
+                continue;
+            }
+            Map<String, String> copy     = new HashMap<>(user);
+            Map<String, String> previous = changed.put(id, copy);
+            onChanged(id, previous, copy);
+            invalidated.remove(id);
+            removed.remove(id);
+        }
+    }
+
+    /**
+     * Marks users changed in the database, until their new data is applied or the copy rebuilt.
+     */
+    public void invalidate(Collection<String> ids) {
+        for (String id : ids) {
+            invalidated.add(id);
+            forget(id);
+        }
+    }
+
+    /**
+     * Drops a user deleted from the database.
+     */
+    public void remove(String id) {
+        removed.add(id);
+        invalidated.remove(id);
+        forget(id);
+    }
+
+    public Set<String> getInvalidated() {
+        return new HashSet<>(invalidated);
+    }
+
+    public int getChangedCount() {
+        return changed.size() + invalidated.size() + removed.size();
+    }
+
+    /**
+     * Whether the rebuilt copy of the user no longer holds its current data.
+     */
+    protected boolean isOutdated(String id) {
+        return changed.containsKey(id) || invalidated.contains(id) || removed.contains(id);
+    }
+
+    /**
+     * Called when the data of a changed user is replaced.
+     *
+     * @param previous former data of the user, or {@code null}
+     * @param current  new data of the user, or {@code null} if it is no longer known
+     */
+    protected void onChanged(String id, Map<String, String> previous, Map<String, String> current) {
+    }
+
+    /**
+     * Records the changes known before a rebuild starts, returning the action dropping them once it succeeded:
+     * the rebuilt copy holds them, but may not hold later ones.
+     */
+    protected Runnable captureChanges() {
+        Map<String, Map<String, String>> changedBefore     = new HashMap<>(changed);
+        Set<String>                      invalidatedBefore = new HashSet<>(invalidated);
+        Set<String>                      removedBefore     = new HashSet<>(removed);
+        return () -> {
+            changedBefore.forEach((id, user) -> {
+                if (changed.remove(id, user)) {
+                    onChanged(id, user, null);
+                }
+            });
+            invalidated.removeAll(invalidatedBefore);
+            removed.removeAll(removedBefore);
+        };
+    }
+
+    private void forget(String id) {
+        Map<String, String> previous = changed.remove(id);
+        if (previous != null) {
+            onChanged(id, previous, null);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    protected static String value(Map<String, String> row, String column) {
+        for (Map.Entry<String, String> e : row.entrySet()) {
+            if (column.equalsIgnoreCase(e.getKey())) {
+                return e.getValue();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,11 @@
+package org.opensingular.dbuserprovider.persistence;
+
+/**
+ * Classes of repository operations that get their own share of the connection pool.
+ */
+public enum OperationClass {
+    /** Latency-critical lookups used while authenticating: by id, username, email and password hash. */
+    LOGIN,
+    /** Searches, counts and other administrative operations. */
+    ADMIN
+}
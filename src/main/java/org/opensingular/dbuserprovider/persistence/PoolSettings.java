@@ -0,0 +1,83 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.util.Objects;
+
+/**
+ * Bounds within which {@link DataSourceProvider} sizes its connection pool, and the share of it each
+ * {@link OperationClass} may use. A permit count of 0 leaves the operation class unrestricted.
+ */
+public class PoolSettings {
+    private final int  minSize;
+    private final int  maxSize;
+    private final int  loginPermits;
+    private final long loginTimeout;
+    private final int  adminPermits;
+    private final long adminTimeout;
+    // wait for a new connection, the login timeout if 0
+    private final long connectionTimeout;
+
+    public PoolSettings(int minSize, int maxSize, int loginPermits, long loginTimeout, int adminPermits, long adminTimeout) {
+        this(minSize, maxSize, loginPermits, loginTimeout, adminPermits, adminTimeout, 0);
+    }
+
+    private PoolSettings(int minSize, int maxSize, int loginPermits, long loginTimeout, int adminPermits, long adminTimeout, long connectionTimeout) {
+        this.minSize           = Math.max(1, minSize);
+        this.maxSize           = Math.max(this.minSize, maxSize);
+        this.loginPermits      = loginPermits;
+        this.loginTimeout      = loginTimeout;
+        this.adminPermits      = adminPermits;
+        this.adminTimeout      = adminTimeout;
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    /**
+     * @return these settings with the given wait for a new connection, or these settings if it is not positive
+     */
+    public PoolSettings withConnectionTimeout(long connectionTimeout) {
+        return connectionTimeout <= 0 ? this
+                                      : new PoolSettings(minSize, maxSize, loginPermits, loginTimeout, adminPermits, adminTimeout, connectionTimeout);
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getPermits(OperationClass operationClass) {
+        return operationClass == OperationClass.LOGIN ? loginPermits : adminPermits;
+    }
+
+    public long getTimeout(OperationClass operationClass) {
+        return operationClass == OperationClass.LOGIN ? loginTimeout : adminTimeout;
+    }
+
+    public long getConnectionTimeout() {
+        return connectionTimeout > 0 ? connectionTimeout : loginTimeout;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PoolSettings)) {
+            return false;
+        }
+        PoolSettings other = (PoolSettings) o;
+        return minSize == other.minSize
+            && maxSize == other.maxSize
+            && loginPermits == other.loginPermits
+            && loginTimeout == other.loginTimeout
+            && adminPermits == other.adminPermits
+            && adminTimeout == other.adminTimeout
+            && connectionTimeout == other.connectionTimeout;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(minSize, maxSize, loginPermits, loginTimeout, adminPermits, adminTimeout, connectionTimeout);
+    }
+}
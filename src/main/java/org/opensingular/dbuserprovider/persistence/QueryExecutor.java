@@ -0,0 +1,117 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import org.jboss.logging.Logger;
+import org.opensingular.dbuserprovider.DBUserStorageException;
+import org.opensingular.dbuserprovider.DBUserStorageProvider;
+
+/**
+ * Runs independent repository queries of one operation in parallel. Tasks run on virtual threads when the JVM
+ * provides them (JDK 21 and later), so blocking JDBC calls do not hold platform threads, and on a cached pool of
+ * daemon threads otherwise.
+ * <p>
+ * Tasks must only do database work and return plain values: the Keycloak session is not thread safe, so models
+ * are built from the results on the calling thread, once {@link Scope#join()} returned.
+ */
+public class QueryExecutor implements Closeable {
+    private static final Logger log = Logger.getLogger(DBUserStorageProvider.class);
+
+    private final ExecutorService executor;
+
+    public QueryExecutor() {
+        ExecutorService virtualThreads = newVirtualThreadExecutor();
+        this.executor = virtualThreads != null
+                        ? virtualThreads
+                        : Executors.newCachedThreadPool(r -> {
+                            Thread thread = new Thread(r, "singular-user-provider-query");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // looked up reflectively, as the provider is built for JDK 17
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.debugv("Virtual threads not available, running parallel queries on platform threads");
+            return null;
+        }
+    }
+
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Opens a scope to fork the queries of one operation in.
+     */
+    public Scope open() {
+        return new Scope();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Group of queries forked by one operation, that is joined as a whole: when one of them fails the others are
+     * cancelled and the failure is thrown by {@link #join()}. Closing the scope cancels whatever still runs.
+     */
+    public class Scope implements AutoCloseable {
+        private final List<Future<?>> forked = new ArrayList<>();
+        private       boolean         joined;
+
+        /**
+         * @return the result of the task, available once the scope has been joined
+         */
+        public <T> Supplier<T> fork(Callable<T> task) {
+            Future<T> future = executor.submit(task);
+            forked.add(future);
+            return () -> {
+                if (!joined) {
+                    throw new IllegalStateException("Scope not joined");
+                }
+                try {
+                    return future.get();
+                } catch (ExecutionException | InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        }
+
+        public void join() {
+            try {
+                for (Future<?> future : forked) {
+                    future.get();
+                }
+                joined = true;
+            } catch (ExecutionException e) {
+                close();
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new DBUserStorageException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new DBUserStorageException("Interrupted while waiting for parallel queries", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            forked.forEach(future -> future.cancel(true));
+        }
+    }
+}
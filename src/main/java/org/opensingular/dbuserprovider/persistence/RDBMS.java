@@ -2,6 +2,7 @@ package org.opensingular.dbuserprovider.persistence;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import org.hibernate.dialect.DB2Dialect;
@@ -13,22 +14,59 @@ import org.hibernate.dialect.SQLServerDialect;
 
 public enum RDBMS {
 
-    POSTGRESQL("PostgreSQL 12+", org.postgresql.Driver.class.getName(), "SELECT 1", new PostgreSQLDialect()),
-    MYSQL("MySQL 8+", com.mysql.cj.jdbc.Driver.class.getName(), "SELECT 1", new MySQLDialect()),
-    ORACLE("Oracle 19+", oracle.jdbc.OracleDriver.class.getName(), "SELECT 1 FROM DUAL", new OracleDialect()),
-    IBMDB2("IBM DB2", com.ibm.db2.jcc.DB2Driver.class.getName(), "select * from sysibm.sysdummy1", new DB2Dialect()),
-    SQL_SERVER("MS SQL Server 2012+ (jtds)", net.sourceforge.jtds.jdbc.Driver.class.getName(), "SELECT 1", new SQLServerDialect());
+    POSTGRESQL("PostgreSQL 12+", org.postgresql.Driver.class.getName(), "SELECT 1", true, new PostgreSQLDialect(),
+               "SELECT CAST(reltuples AS BIGINT) FROM pg_class WHERE oid = to_regclass(?)", "UPPER(%s) COLLATE \"C\"",
+               Map.of(
+                   "prepareThreshold", "1"
+               )),
+    MYSQL("MySQL 8+", com.mysql.cj.jdbc.Driver.class.getName(), "SELECT 1", true, new MySQLDialect(),
+          "SELECT table_rows FROM information_schema.tables WHERE table_schema = DATABASE() AND table_name = ?", "CAST(UPPER(%s) AS BINARY)",
+          Map.of(
+              "useServerPrepStmts", "true",
+              "cachePrepStmts", "true",
+              "prepStmtCacheSize", "250",
+              "prepStmtCacheSqlLimit", "2048",
+              "cacheResultSetMetadata", "true",
+              "cacheServerConfiguration", "true",
+              "useLocalSessionState", "true",
+              "elideSetAutoCommits", "true",
+              "maintainTimeStats", "false"
+          )),
+    ORACLE("Oracle 19+", oracle.jdbc.OracleDriver.class.getName(), "SELECT 1 FROM DUAL", true, new OracleDialect(),
+           "SELECT num_rows FROM user_tables WHERE table_name = UPPER(?)", "NLSSORT(UPPER(%s), 'NLS_SORT=BINARY')",
+           Map.of(
+               "oracle.jdbc.implicitStatementCacheSize", "100",
+               "defaultRowPrefetch", "50"
+           )),
+    IBMDB2("IBM DB2", com.ibm.db2.jcc.DB2Driver.class.getName(), "select * from sysibm.sysdummy1", true, new DB2Dialect(),
+           "select card from syscat.tables where tabname = upper(?)", "UPPER(%s)",
+           Map.of()),
+    SQL_SERVER("MS SQL Server 2012+ (jtds)", net.sourceforge.jtds.jdbc.Driver.class.getName(), "SELECT 1", false, new SQLServerDialect(),
+               "SELECT SUM(p.rows) FROM sys.partitions p WHERE p.object_id = OBJECT_ID(?) AND p.index_id IN (0, 1)",
+               "UPPER(%s) COLLATE Latin1_General_BIN2",
+               Map.of(
+                   "sendStringParametersAsUnicode", "false"
+               ));
 
     private final String desc;
     private final String driver;
     private final String testString;
+    private final boolean jdbc4Validation;
     private final Dialect dialect;
+    private final String estimatedCountQuery;
+    private final String binaryUpperOrder;
+    private final Map<String, String> driverProperties;
 
-    RDBMS(String desc, String driver, String testString, Dialect dialect) {
+    RDBMS(String desc, String driver, String testString, boolean jdbc4Validation, Dialect dialect, String estimatedCountQuery,
+          String binaryUpperOrder, Map<String, String> driverProperties) {
         this.desc = desc;
         this.driver = driver;
         this.testString = testString;
+        this.jdbc4Validation = jdbc4Validation;
         this.dialect = dialect;
+        this.estimatedCountQuery = estimatedCountQuery;
+        this.binaryUpperOrder = binaryUpperOrder;
+        this.driverProperties = driverProperties;
     }
 
     public static RDBMS getByDescription(String desc) {
@@ -60,4 +98,36 @@ public enum RDBMS {
         return testString;
     }
 
+    /**
+     * Whether the driver implements JDBC4 {@code Connection.isValid()}, so connections can be validated without the test query.
+     */
+    public boolean isJdbc4Validation() {
+        return jdbc4Validation;
+    }
+
+    /**
+     * Query reading the row count the database keeps in its catalog statistics for the table given as parameter.
+     */
+    public String getEstimatedCountQuery() {
+        return estimatedCountQuery;
+    }
+
+    /**
+     * Expression ordering by the upper-cased value of a column in code point order, whatever the collation of the
+     * column, so rows sorted by several databases can be merged in Java.
+     */
+    public String getBinaryUpperOrder(String column) {
+        return String.format(binaryUpperOrder, column);
+    }
+
+    /**
+     * Driver connection properties enabling statement caching and protocol settings suited to repeated lookups,
+     * limited to those whose driver default differs.
+     * jTDS sends string parameters as VARCHAR rather than NVARCHAR, whose implicit conversion against VARCHAR
+     * columns prevents index seeks; set it back to true in the driver properties for NVARCHAR columns.
+     */
+    public Map<String, String> getDriverProperties() {
+        return driverProperties;
+    }
+
 }
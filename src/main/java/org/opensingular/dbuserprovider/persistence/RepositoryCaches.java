@@ -0,0 +1,128 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Objects;
+
+/**
+ * Caches shared by every {@link UserRepository} of one provider component. They live as long as
+ * the component configuration and are discarded with it.
+ * <p>
+ * With {@link ClusterCaches}, the total user count is shared by the nodes of the cluster and an invalidation
+ * on one node flushes the caches of every node. The optional {@link UserSnapshot} answers user lookups and the
+ * optional {@link SearchIndex} free-text searches.
+ */
+public class RepositoryCaches implements Closeable {
+    private final SearchTotalCache searchTotalCache = new SearchTotalCache();
+    private final UserCountCache   userCountCache;
+    private final SearchPageCache  searchPageCache;
+    private final ClusterCaches    clusterCaches;
+    private final UserSnapshot     userSnapshot;
+    private final SearchIndex      searchIndex;
+    // cluster generation the local caches were filled in
+    private volatile String        generation;
+
+    public RepositoryCaches(long searchCacheTtl) {
+        this(searchCacheTtl, null, null, null);
+    }
+
+    public RepositoryCaches(long searchCacheTtl, ClusterCaches clusterCaches, UserSnapshot userSnapshot, SearchIndex searchIndex) {
+        this.searchPageCache = new SearchPageCache(searchCacheTtl);
+        this.userCountCache  = new UserCountCache(clusterCaches);
+        this.clusterCaches   = clusterCaches;
+        this.userSnapshot    = userSnapshot;
+        this.searchIndex     = searchIndex;
+        this.generation      = clusterCaches == null ? null : clusterCaches.getGeneration();
+    }
+
+    public SearchTotalCache getSearchTotalCache() {
+        syncWithCluster();
+        return searchTotalCache;
+    }
+
+    public UserCountCache getUserCountCache() {
+        syncWithCluster();
+        return userCountCache;
+    }
+
+    public SearchPageCache getSearchPageCache() {
+        syncWithCluster();
+        return searchPageCache;
+    }
+
+    /**
+     * @return the snapshot of the users, or {@code null} if none is configured
+     */
+    public UserSnapshot getUserSnapshot() {
+        return userSnapshot;
+    }
+
+    /**
+     * @return the search index of the users, or {@code null} if none is configured
+     */
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * Drops what is cached about users changed in the database, on every node of the cluster.
+     */
+    public void invalidateUsers(Collection<String> ids) {
+        invalidateUsersLocally(ids);
+        publishInvalidation();
+    }
+
+    /**
+     * Drops what this node caches about users changed in the database, for changes every node is told about.
+     */
+    public void invalidateUsersLocally(Collection<String> ids) {
+        if (userSnapshot != null) {
+            userSnapshot.invalidate(ids);
+        }
+        if (searchIndex != null) {
+            searchIndex.invalidate(ids);
+        }
+        searchTotalCache.invalidateAll();
+        searchPageCache.invalidateAll();
+    }
+
+    /**
+     * Flushes the cached search results, which may hold users changed in the database.
+     */
+    public void invalidateSearches() {
+        searchTotalCache.invalidateAll();
+        searchPageCache.invalidateAll();
+        publishInvalidation();
+    }
+
+    public void invalidateAll() {
+        searchTotalCache.invalidateAll();
+        userCountCache.invalidate();
+        searchPageCache.invalidateAll();
+        publishInvalidation();
+    }
+
+    private void syncWithCluster() {
+        if (clusterCaches == null) {
+            return;
+        }
+        String current = clusterCaches.getGeneration();
+        if (!Objects.equals(current, generation)) {
+            generation = current;
+            searchTotalCache.invalidateAll();
+            userCountCache.invalidateLocally();
+            searchPageCache.invalidateAll();
+        }
+    }
+
+    private void publishInvalidation() {
+        if (clusterCaches != null) {
+            generation = clusterCaches.nextGeneration();
+        }
+    }
+
+    @Override
+    public void close() {
+        userCountCache.close();
+    }
+}
@@ -0,0 +1,265 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.UserModel;
+import org.opensingular.dbuserprovider.DBUserStorageProvider;
+import org.opensingular.dbuserprovider.util.SearchUtil;
+
+/**
+ * In-memory index of the users of one shard, answering the free-text searches of the admin console without
+ * querying the database. It matches like the generated SQL: the keyword is a case-insensitive substring of one
+ * of the searched attributes.
+ * <p>
+ * The users are held sorted by username like {@link ShardedUserRepository#BY_USERNAME} merges the shards, with
+ * only the attributes the search results select, and every trigram of their searched attributes points to the
+ * sorted list of users containing it. A keyword is looked up
+ * by intersecting the lists of its trigrams and checking the remaining users; keywords shorter than a trigram
+ * check every user. Users changed since the last rebuild are matched one by one.
+ */
+public class SearchIndex extends LocalUserCopy {
+    private static final Logger log  = Logger.getLogger(DBUserStorageProvider.class);
+    private static final int    GRAM = 3;
+
+    private final List<String> searchedAttributes;
+    // lower-cased attributes kept for the results
+    private final Set<String>  storedAttributes;
+    private volatile Index     current;
+
+    /**
+     * @param searchedAttributes attributes matched against the keyword
+     * @param storedAttributes   attributes selected by the search results
+     */
+    public SearchIndex(Collection<String> searchedAttributes, Collection<String> storedAttributes) {
+        this.searchedAttributes = new ArrayList<>(searchedAttributes);
+        this.storedAttributes   = storedAttributes.stream().map(a -> a.toLowerCase(Locale.ROOT)).collect(Collectors.toSet());
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return current != null;
+    }
+
+    @Override
+    public void forEachId(Consumer<String> action) {
+        Index index = current;
+        if (index == null) {
+            return;
+        }
+        for (Map<String, String> user : index.users) {
+            String id = value(user, "id");
+            if (id != null && !isOutdated(id)) {
+                action.accept(id);
+            }
+        }
+    }
+
+    /**
+     * @return the keyword of a free-text search the index can answer, empty to match every user, or {@code null}
+     * for attribute, exact and prefix searches
+     */
+    public static String getKeyword(Map<String, String> search) {
+        Map<String, String> normalized = SearchUtil.normalize(search);
+        String              keyword    = normalized.get(UserModel.SEARCH);
+        if (keyword == null || Boolean.parseBoolean(normalized.get(UserModel.EXACT)) || SearchUtil.isPrefixSearch(keyword)) {
+            return null;
+        }
+        for (String key : normalized.keySet()) {
+            if (!key.equals(UserModel.SEARCH) && !key.equals(UserModel.EXACT)) {
+                return null;
+            }
+        }
+        return keyword.equals("*") ? "" : keyword;
+    }
+
+    /**
+     * @param max maximum number of users, all of them if negative
+     * @return copies of the matching users in username order, or {@code null} if the index is not built yet
+     */
+    public List<Map<String, String>> search(String keyword, int first, int max) {
+        List<Map<String, String>> users = match(keyword);
+        if (users == null) {
+            return null;
+        }
+        int from = Math.min(Math.max(0, first), users.size());
+        int to   = max < 0 ? users.size() : (int) Math.min((long) from + max, users.size());
+        List<Map<String, String>> page = new ArrayList<>(to - from);
+        for (Map<String, String> user : users.subList(from, to)) {
+            page.add(new HashMap<>(user));
+        }
+        return page;
+    }
+
+    /**
+     * @return the number of matching users, or {@code null} if the index is not built yet
+     */
+    public Integer count(String keyword) {
+        List<Map<String, String>> users = match(keyword);
+        return users == null ? null : users.size();
+    }
+
+    private List<Map<String, String>> match(String keyword) {
+        Index index = current;
+        if (index == null) {
+            return null;
+        }
+        String                    needle = keyword.toUpperCase(Locale.ROOT);
+        List<Map<String, String>> users  = new ArrayList<>();
+        int[]                     docs   = index.candidates(needle);
+        int                       size   = docs == null ? index.users.length : docs.length;
+        for (int i = 0; i < size; i++) {
+            int doc = docs == null ? i : docs[i];
+            if (index.matches(doc, needle) && !isOutdated(value(index.users[doc], "id"))) {
+                users.add(index.users[doc]);
+            }
+        }
+        if (!changed.isEmpty()) {
+            for (Map<String, String> user : changed.values()) {
+                if (contains(fields(user), needle)) {
+                    users.add(store(user));
+                }
+            }
+            users.sort(ShardedUserRepository.BY_USERNAME);
+        }
+        return users;
+    }
+
+    /**
+     * Builds a new index from the given users and swaps it in.
+     */
+    @Override
+    public void rebuild(Consumer<Consumer<List<Map<String, String>>>> users) {
+        Runnable                  dropChanges = captureChanges();
+        List<Map<String, String>> rows        = new ArrayList<>();
+        users.accept(batch -> batch.forEach(user -> rows.add(store(user))));
+        rows.sort(ShardedUserRepository.BY_USERNAME);
+        current = new Index(rows);
+        dropChanges.run();
+        log.infov("Built user search index with {0} users and {1} trigrams", rows.size(), current.postings.size());
+    }
+
+    private Map<String, String> store(Map<String, String> user) {
+        Map<String, String> stored = new HashMap<>();
+        user.forEach((column, value) -> {
+            if (storedAttributes.contains(column.toLowerCase(Locale.ROOT))) {
+                stored.put(column, value);
+            }
+        });
+        return stored;
+    }
+
+    private String[] fields(Map<String, String> user) {
+        String[] fields = new String[searchedAttributes.size()];
+        for (int i = 0; i < fields.length; i++) {
+            String value = value(user, searchedAttributes.get(i));
+            fields[i] = value == null ? null : value.toUpperCase(Locale.ROOT);
+        }
+        return fields;
+    }
+
+    private static boolean contains(String[] fields, String needle) {
+        for (String field : fields) {
+            if (field != null && field.contains(needle)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long gram(String value, int start) {
+        return ((long) value.charAt(start) << 32) | ((long) value.charAt(start + 1) << 16) | value.charAt(start + 2);
+    }
+
+    private final class Index {
+        private final Map<String, String>[] users;
+        // upper-cased searched attributes of each user
+        private final String[][]            fields;
+        // ascending positions of the users containing each trigram
+        private final Map<Long, int[]>      postings;
+
+        @SuppressWarnings("unchecked")
+        private Index(List<Map<String, String>> rows) {
+            this.users  = rows.toArray(new Map[0]);
+            this.fields = new String[users.length][];
+            Map<Long, int[]> lists = new HashMap<>();
+            Map<Long, int[]> sizes = new HashMap<>();
+            for (int doc = 0; doc < users.length; doc++) {
+                fields[doc] = fields(users[doc]);
+                for (String field : fields[doc]) {
+                    for (int i = 0; field != null && i + GRAM <= field.length(); i++) {
+                        add(lists, sizes, gram(field, i), doc);
+                    }
+                }
+            }
+            lists.replaceAll((gram, docs) -> Arrays.copyOf(docs, sizes.get(gram)[0]));
+            this.postings = lists;
+        }
+
+        private void add(Map<Long, int[]> lists, Map<Long, int[]> sizes, long gram, int doc) {
+            int[] docs = lists.get(gram);
+            int[] size = sizes.computeIfAbsent(gram, g -> new int[1]);
+            if (docs == null) {
+                docs = new int[4];
+                lists.put(gram, docs);
+            } else if (docs[size[0] - 1] == doc) {
+                return;
+            } else if (size[0] == docs.length) {
+                docs = Arrays.copyOf(docs, docs.length * 2);
+                lists.put(gram, docs);
+            }
+            docs[size[0]++] = doc;
+        }
+
+        /**
+         * @return the users containing every trigram of the needle, or {@code null} if it is too short to tell
+         */
+        private int[] candidates(String needle) {
+            if (needle.length() < GRAM) {
+                return null;
+            }
+            int[] result = null;
+            for (int i = 0; i + GRAM <= needle.length(); i++) {
+                int[] docs = postings.get(gram(needle, i));
+                if (docs == null) {
+                    return new int[0];
+                }
+                result = result == null ? docs : intersect(result, docs);
+                if (result.length == 0) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        private boolean matches(int doc, String needle) {
+            return contains(fields[doc], needle);
+        }
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int   size   = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+}
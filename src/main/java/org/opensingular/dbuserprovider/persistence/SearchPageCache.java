@@ -0,0 +1,103 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.models.UserModel;
+import org.opensingular.dbuserprovider.util.PagingUtil.Pageable;
+import org.opensingular.dbuserprovider.util.SearchUtil;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Short-lived cache of paged search results, so the admin console can go back and forth between
+ * pages without running the search again. The cache is bounded by the total number of cached rows.
+ */
+public class SearchPageCache {
+    private static final long MAX_ROWS = 10000;
+
+    private final Cache<PageKey, List<Map<String, String>>> pages;
+
+    public SearchPageCache(long ttlMillis) {
+        this.pages = ttlMillis > 0
+            ? CacheBuilder.newBuilder()
+                .maximumWeight(MAX_ROWS)
+                .weigher((PageKey key, List<Map<String, String>> rows) -> rows.size() + 1)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .build()
+            : null;
+    }
+
+    public boolean isEnabled() {
+        return pages != null;
+    }
+
+    public Optional<List<Map<String, String>>> get(Map<String, String> search, Pageable pageable) {
+        if (pages == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(pages.getIfPresent(new PageKey(search, pageable)))
+                       .map(SearchPageCache::copy);
+    }
+
+    public void put(Map<String, String> search, Pageable pageable, List<Map<String, String>> rows) {
+        if (pages != null && rows != null) {
+            pages.put(new PageKey(search, pageable), Collections.unmodifiableList(copy(rows)));
+        }
+    }
+
+    public void invalidateAll() {
+        if (pages != null) {
+            pages.invalidateAll();
+        }
+    }
+
+    private static List<Map<String, String>> copy(List<Map<String, String>> rows) {
+        List<Map<String, String>> copy = new ArrayList<>(rows.size());
+        for (Map<String, String> row : rows) {
+            copy.add(new HashMap<>(row));
+        }
+        return copy;
+    }
+
+    private static final class PageKey {
+        private final Map<String, String> search;
+        private final boolean             exact;
+        private final int                 firstResult;
+        private final int                 maxResults;
+
+        private PageKey(Map<String, String> search, Pageable pageable) {
+            this.search      = SearchUtil.normalize(search);
+            this.exact       = Boolean.parseBoolean(this.search.get(UserModel.EXACT));
+            this.firstResult = pageable.getFirstResult();
+            this.maxResults  = pageable.getMaxResults();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof PageKey)) {
+                return false;
+            }
+            PageKey other = (PageKey) o;
+            return exact == other.exact
+                && firstResult == other.firstResult
+                && maxResults == other.maxResults
+                && search.equals(other.search);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(search, exact, firstResult, maxResults);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.opensingular.dbuserprovider.util.SearchUtil;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Keeps the totals computed with {@code COUNT(*) OVER()} by a paged search for a few seconds,
+ * so the count request the admin console sends for the same search does not run the query again.
+ */
+public class SearchTotalCache {
+    private static final long TTL_SECONDS = 10;
+    private static final long MAX_ENTRIES = 1000;
+
+    private final Cache<Map<String, String>, Integer> totals = CacheBuilder.newBuilder()
+        .maximumSize(MAX_ENTRIES)
+        .expireAfterWrite(TTL_SECONDS, TimeUnit.SECONDS)
+        .build();
+
+    public Optional<Integer> get(Map<String, String> search) {
+        return Optional.ofNullable(totals.getIfPresent(SearchUtil.normalize(search)));
+    }
+
+    public void put(Map<String, String> search, int total) {
+        totals.put(SearchUtil.normalize(search), total);
+    }
+
+    public void invalidateAll() {
+        totals.invalidateAll();
+    }
+}
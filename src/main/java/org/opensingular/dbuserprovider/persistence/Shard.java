@@ -0,0 +1,36 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.io.Closeable;
+
+/**
+ * One of the databases holding the users of a provider component, with its own connection pools and caches.
+ */
+public class Shard implements Closeable {
+    private final String             name;
+    private final DataSourceProvider dataSourceProvider;
+    private final RepositoryCaches   repositoryCaches;
+
+    public Shard(String name, DataSourceProvider dataSourceProvider, RepositoryCaches repositoryCaches) {
+        this.name               = name;
+        this.dataSourceProvider = dataSourceProvider;
+        this.repositoryCaches   = repositoryCaches;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public DataSourceProvider getDataSourceProvider() {
+        return dataSourceProvider;
+    }
+
+    public RepositoryCaches getRepositoryCaches() {
+        return repositoryCaches;
+    }
+
+    @Override
+    public void close() {
+        dataSourceProvider.close();
+        repositoryCaches.close();
+    }
+}
@@ -0,0 +1,111 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.OptionalInt;
+
+/**
+ * Finds the shard owning a user from the key the routing rule is based on. When that key is not known for a
+ * lookup (e.g. a lookup by email with username hash routing), or with {@link ShardRouting#ALL_SHARDS}, no shard is
+ * returned and the caller asks all of them.
+ * <p>
+ * Ids of the users of different shards may collide, so the ids of the users of the further shards are prefixed by
+ * the name of their shard when handed to Keycloak, e.g. {@code shardName:123}. The ids of the users of the first
+ * shard are left as they are, so adding a shard does not change the ids Keycloak already stores data under. Lookups
+ * by id are routed by the prefix, and ids without a known prefix belong to the first shard.
+ */
+public class ShardRouter {
+    private static final char ID_PREFIX_SEPARATOR = ':';
+
+    private final ShardRouting         routing;
+    private final List<String>         shardNames;
+    private final Map<String, Integer> domainShards = new HashMap<>();
+
+    /**
+     * @param emailDomains shard name of each email domain, only used with {@link ShardRouting#EMAIL_DOMAIN}
+     */
+    public ShardRouter(ShardRouting routing, List<String> shardNames, Map<String, String> emailDomains) {
+        this.routing    = routing;
+        this.shardNames = List.copyOf(shardNames);
+        emailDomains.forEach((domain, shard) -> {
+            int index = shardNames.indexOf(shard);
+            if (index < 0) {
+                throw new IllegalArgumentException("Unknown shard '" + shard + "' for email domain " + domain);
+            }
+            domainShards.put(domain.toLowerCase(Locale.ROOT), index);
+        });
+    }
+
+    public int getShardCount() {
+        return shardNames.size();
+    }
+
+    /**
+     * @param id id qualified by {@link #qualifyId}, routed before the username and email; may be {@code null}
+     */
+    public OptionalInt route(String id, String username, String email) {
+        if (shardNames.size() == 1) {
+            return OptionalInt.of(0);
+        }
+        OptionalInt byId = routeId(id);
+        if (byId.isPresent()) {
+            return byId;
+        }
+        switch (routing) {
+            case ALL_SHARDS:
+                return OptionalInt.empty();
+            case EMAIL_DOMAIN:
+                String address = email != null ? email : username;
+                int at = address == null ? -1 : address.lastIndexOf('@');
+                Integer shard = at < 0 ? null : domainShards.get(address.substring(at + 1).toLowerCase(Locale.ROOT));
+                return shard == null ? OptionalInt.empty() : OptionalInt.of(shard);
+            default:
+                // String.hashCode is specified, so the same user maps to the same shard on every node
+                return username == null
+                       ? OptionalInt.empty()
+                       : OptionalInt.of(Math.floorMod(username.toLowerCase(Locale.ROOT).hashCode(), shardNames.size()));
+        }
+    }
+
+    /**
+     * @return the shard of an id qualified by {@link #qualifyId}: the shard named by its prefix, otherwise the first
+     * shard; none for a {@code null} id with several shards
+     */
+    public OptionalInt routeId(String id) {
+        if (shardNames.size() == 1) {
+            return OptionalInt.of(0);
+        }
+        if (id == null) {
+            return OptionalInt.empty();
+        }
+        return OptionalInt.of(Math.max(0, prefixedShard(id)));
+    }
+
+    /**
+     * Id of a user of the given shard as handed to Keycloak, prefixed by the shard name unless it is the first one.
+     */
+    public String qualifyId(int shard, String id) {
+        return shard == 0 || id == null ? id : shardNames.get(shard) + ID_PREFIX_SEPARATOR + id;
+    }
+
+    /**
+     * Id in the database of its shard of an id qualified by {@link #qualifyId}.
+     */
+    public String localId(String id) {
+        if (id == null || prefixedShard(id) <= 0) {
+            return id;
+        }
+        return id.substring(id.indexOf(ID_PREFIX_SEPARATOR) + 1);
+    }
+
+    /**
+     * @return the further shard named by the prefix of the id, or -1
+     */
+    private int prefixedShard(String id) {
+        int separator = id.indexOf(ID_PREFIX_SEPARATOR);
+        int index     = separator < 0 ? -1 : shardNames.indexOf(id.substring(0, separator));
+        return index > 0 ? index : -1;
+    }
+}
@@ -0,0 +1,35 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public enum ShardRouting {
+
+    ALL_SHARDS("All shards"),
+    USERNAME_HASH("Username hash"),
+    EMAIL_DOMAIN("Email domain");
+
+    private final String desc;
+
+    ShardRouting(String desc) {
+        this.desc = desc;
+    }
+
+    public static ShardRouting getByDescription(String desc) {
+        for (ShardRouting value : values()) {
+            if (value.desc.equals(desc)) {
+                return value;
+            }
+        }
+        return ALL_SHARDS;
+    }
+
+    public static List<String> getAllDescriptions() {
+        return Arrays.stream(values()).map(ShardRouting::getDesc).collect(Collectors.toList());
+    }
+
+    public String getDesc() {
+        return desc;
+    }
+}
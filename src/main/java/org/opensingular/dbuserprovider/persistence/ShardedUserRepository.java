@@ -0,0 +1,295 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.UserModel;
+import org.opensingular.dbuserprovider.DBUserStorageException;
+import org.opensingular.dbuserprovider.DBUserStorageProvider;
+import org.opensingular.dbuserprovider.model.ProjectionProfile;
+import org.opensingular.dbuserprovider.model.QueryConfigurations;
+import org.opensingular.dbuserprovider.util.PagingUtil;
+
+/**
+ * Entry point of the provider to the users of all its shards. Lookups go to the shard given by the
+ * {@link ShardRouter} first, then to the other shards if it does not hold the user; when it cannot tell, and for
+ * searches and counts, the shards are queried in parallel. With a single shard every call goes straight to its
+ * {@link UserRepository}.
+ * <p>
+ * The ids of the users returned are qualified with their shard by {@link ShardRouter#qualifyId}, and every call
+ * taking an id goes to the shard of that id only.
+ */
+public class ShardedUserRepository {
+    private static final Logger log = Logger.getLogger(DBUserStorageProvider.class);
+    
+    /**
+     * Order of the results of {@link UserRepository#findUsersInUsernameOrder}, whose SQL sorts by the upper-cased
+     * username in code point order, so the merged pages keep the rows each shard returned.
+     */
+    public static final Comparator<Map<String, String>> BY_USERNAME =
+        Comparator.comparing(ShardedUserRepository::upperUsername, Comparator.nullsLast(ShardedUserRepository::compareCodePoints));
+    
+    private final List<String>         shardNames;
+    private final List<UserRepository> repositories;
+    private final ShardRouter          shardRouter;
+    private final QueryExecutor        queryExecutor;
+    private final QueryConfigurations  queryConfigurations;
+    
+    public ShardedUserRepository(List<Shard> shards, ShardRouter shardRouter, QueryExecutor queryExecutor, QueryConfigurations queryConfigurations) {
+        this.shardNames    = shards.stream().map(Shard::getName).collect(Collectors.toList());
+        this.repositories  = shards.stream()
+                                   .map(s -> new UserRepository(s.getDataSourceProvider(), queryConfigurations, s.getRepositoryCaches()))
+                                   .collect(Collectors.toList());
+        this.shardRouter   = shardRouter;
+        this.queryExecutor = queryExecutor;
+        this.queryConfigurations = queryConfigurations;
+    }
+    
+    
+    public Map<String, String> findUserById(String id, ProjectionProfile profile) {
+        OptionalInt shard = shardRouter.routeId(id);
+        return shard.isEmpty() ? null : qualify(shard.getAsInt(), repositories.get(shard.getAsInt()).findUserById(shardRouter.localId(id), profile));
+    }
+    
+    public String findVersion(String id) {
+        OptionalInt shard = shardRouter.routeId(id);
+        return shard.isEmpty() ? null : repositories.get(shard.getAsInt()).findVersion(shardRouter.localId(id));
+    }
+    
+    public Optional<Map<String, String>> findUserByUsername(String username, ProjectionProfile profile) {
+        return Optional.ofNullable(lookup(shardRouter.route(null, username, null), r -> r.findUserByUsername(username, profile).orElse(null)));
+    }
+    
+    public Optional<Map<String, String>> findUserByEmail(String email, ProjectionProfile profile) {
+        return Optional.ofNullable(lookup(shardRouter.route(null, null, email), r -> r.findUserByEmail(email, profile).orElse(null)));
+    }
+    
+    public int getUsersCount(Map<String, String> search) {
+        long total = fanOut(r -> r.getUsersCount(search)).stream().mapToLong(Integer::longValue).sum();
+        return (int) Math.min(total, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * With several shards, each one returns its first {@code firstResult + maxResults} users in username order and
+     * the requested page is cut from the merged result, so pages stay consistent across shards.
+     */
+    public List<Map<String, String>> findUsers(Map<String, String> search, PagingUtil.Pageable pageable) {
+        if (repositories.size() == 1) {
+            return repositories.get(0).findUsers(search, pageable);
+        }
+        int                             limit  = pageable == null ? -1 : pageable.getFirstResult() + pageable.getMaxResults();
+        List<List<Map<String, String>>> shards = fanOut(r -> r.findUsersInUsernameOrder(search, limit));
+        Stream<Map<String, String>> merged = IntStream.range(0, shards.size())
+                                                      .filter(i -> shards.get(i) != null)
+                                                      .boxed()
+                                                      .flatMap(i -> shards.get(i).stream().map(user -> qualify(i, user)))
+                                                      .sorted(BY_USERNAME);
+        if (pageable != null) {
+            merged = merged.skip(pageable.getFirstResult()).limit(pageable.getMaxResults());
+        }
+        return merged.collect(Collectors.toList());
+    }
+    
+    /**
+     * @param id external id of the user, routing to its shard; may be {@code null}
+     */
+    public boolean validateCredentials(String id, String username, String password) {
+        OptionalInt shard = owningShard(id, username);
+        return shard.isPresent() && repositories.get(shard.getAsInt()).validateCredentials(username, password);
+    }
+    
+    /**
+     * @param id    external id of the user, routing to its shard; may be {@code null}
+     * @param email email of the user, kept with the id and username to route its next reads; may be {@code null}
+     */
+    public boolean updateCredentials(String id, String username, String email, String password) {
+        OptionalInt shard = owningShard(id, username);
+        return shard.isPresent() && repositories.get(shard.getAsInt())
+                                                .updateCredentials(id == null ? null : shardRouter.localId(id), username, email, password);
+    }
+    
+    /**
+     * Finds the single shard holding a user: the shard of its id, else the routed shard if it holds the username,
+     * else the one shard of all holding it. A username held by several shards is ambiguous and has no owner, so a
+     * password is never checked against another user's hash.
+     */
+    private OptionalInt owningShard(String id, String username) {
+        OptionalInt shard = shardRouter.routeId(id);
+        if (shard.isPresent()) {
+            return shard;
+        }
+        OptionalInt routed = shardRouter.route(null, username, null);
+        if (routed.isPresent() && repositories.get(routed.getAsInt()).findUserByUsername(username, ProjectionProfile.LOGIN).isPresent()) {
+            return routed;
+        }
+        List<Boolean> found = fanOut(r -> r.findUserByUsername(username, ProjectionProfile.LOGIN).isPresent());
+        int           owner = found.indexOf(Boolean.TRUE);
+        if (owner < 0) {
+            log.warnv("No shard holds user {0}", username);
+            return OptionalInt.empty();
+        }
+        if (found.lastIndexOf(Boolean.TRUE) != owner) {
+            log.warnv("User {0} exists on several shards, rejecting its credentials", username);
+            return OptionalInt.empty();
+        }
+        return OptionalInt.of(owner);
+    }
+    
+    /**
+     * Reads every user of every shard, one shard after the other; see {@link UserRepository#forEachUserBatch}.
+     */
+    public void forEachUserBatch(int batchSize, Consumer<List<Map<String, String>>> batchConsumer) {
+        for (int i = 0; i < repositories.size(); i++) {
+            int shard = i;
+            repositories.get(i).forEachUserBatch(batchSize, batch -> batchConsumer.accept(qualify(shard, batch)));
+        }
+    }
+    
+    public List<String> getShardNames() {
+        return shardNames;
+    }
+    
+    public String getWatermarkColumn() {
+        return queryConfigurations.getSyncWatermarkColumn();
+    }
+
+    public long getWatermarkOverlap() {
+        return queryConfigurations.getSyncWatermarkOverlap();
+    }
+    
+    /**
+     * Reads the next batch of changed users of one shard; see {@link UserRepository#findChangedSince}.
+     *
+     * @param lastId id of the last user read, as returned
+     */
+    public List<Map<String, String>> findChangedSince(int shard, String lastWatermark, String lastId, int limit) {
+        return qualify(shard, repositories.get(shard).findChangedSince(lastWatermark, lastId == null ? null : shardRouter.localId(lastId), limit));
+    }
+    
+    public List<String[]> findPasswordHashes(int shard, String afterId, int limit) {
+        return repositories.get(shard).findPasswordHashes(afterId, limit);
+    }
+    
+    public int updatePasswordHashes(int shard, List<String[]> rows) {
+        return repositories.get(shard).updatePasswordHashes(rows);
+    }
+    
+    public boolean removeUser() {
+        boolean allowed = true;
+        for (UserRepository repository : repositories) {
+            // every shard flushes its caches
+            allowed &= repository.removeUser();
+        }
+        return allowed;
+    }
+    
+    /**
+     * Runs a lookup on the routed shard, then on every other shard returning the first user found: a routing rule
+     * that does not match how the users were placed only costs a wider lookup.
+     */
+    private Map<String, String> lookup(OptionalInt shard, Function<UserRepository, Map<String, String>> query) {
+        if (shard.isPresent()) {
+            Map<String, String> user = qualify(shard.getAsInt(), query.apply(repositories.get(shard.getAsInt())));
+            if (user != null || repositories.size() == 1) {
+                return user;
+            }
+            log.debugv("User not found on routed shard {0}, asking the others", shardNames.get(shard.getAsInt()));
+        }
+        CompletionService<Map<String, String>> completion = new ExecutorCompletionService<>(queryExecutor.getExecutor());
+        List<Future<Map<String, String>>>      lookups    = new ArrayList<>(repositories.size());
+        for (int i = 0; i < repositories.size(); i++) {
+            if (shard.isPresent() && shard.getAsInt() == i) {
+                continue;
+            }
+            int shardIndex = i;
+            lookups.add(completion.submit(() -> qualify(shardIndex, query.apply(repositories.get(shardIndex)))));
+        }
+        try {
+            for (int i = 0; i < lookups.size(); i++) {
+                try {
+                    Map<String, String> result = completion.take().get();
+                    if (result != null) {
+                        return result;
+                    }
+                } catch (ExecutionException e) {
+                    log.warnv("Lookup failed on one shard: {0}", e.getCause().getMessage());
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DBUserStorageException("Interrupted while looking up a user on the shards", e);
+        } finally {
+            lookups.forEach(f -> f.cancel(true));
+        }
+    }
+    
+    /**
+     * Runs a query on every shard in parallel and returns the results in shard order.
+     */
+    private <T> List<T> fanOut(Function<UserRepository, T> query) {
+        if (repositories.size() == 1) {
+            return Collections.singletonList(query.apply(repositories.get(0)));
+        }
+        try (QueryExecutor.Scope scope = queryExecutor.open()) {
+            List<Supplier<T>> forked = new ArrayList<>(repositories.size());
+            repositories.forEach(r -> forked.add(scope.fork(() -> query.apply(r))));
+            scope.join();
+            List<T> results = new ArrayList<>(forked.size());
+            forked.forEach(result -> results.add(result.get()));
+            return results;
+        }
+    }
+    
+    private List<Map<String, String>> qualify(int shard, List<Map<String, String>> users) {
+        if (users == null || repositories.size() == 1) {
+            return users;
+        }
+        return users.stream().map(user -> qualify(shard, user)).collect(Collectors.toList());
+    }
+    
+    /**
+     * @return a copy of the user with its id qualified by its shard, as cached rows must not be changed
+     */
+    private Map<String, String> qualify(int shard, Map<String, String> user) {
+        if (user == null || repositories.size() == 1) {
+            return user;
+        }
+        Map<String, String> qualified = new HashMap<>(user);
+        qualified.replaceAll((column, value) -> "id".equalsIgnoreCase(column) ? shardRouter.qualifyId(shard, value) : value);
+        return qualified;
+    }
+    
+    private static int compareCodePoints(String a, String b) {
+        return Arrays.compare(a.codePoints().toArray(), b.codePoints().toArray());
+    }
+    
+    private static String upperUsername(Map<String, String> user) {
+        return user.entrySet().stream()
+                   .filter(e -> UserModel.USERNAME.equalsIgnoreCase(e.getKey()))
+                   .map(Map.Entry::getValue)
+                   .filter(Objects::nonNull)
+                   .map(username -> username.toUpperCase(Locale.ROOT))
+                   .findFirst().orElse(null);
+    }
+}
@@ -0,0 +1,96 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * A Hikari pool registered in {@link DataSourceRegistry}, sized between the bounds of its {@link PoolSettings}: Hikari
+ * opens connections up to the maximum size on demand and closes the idle ones above the minimum size after the idle
+ * timeout.
+ */
+class SharedDataSource implements Closeable {
+    private static final SimpleDateFormat SIMPLE_DATE_FORMAT = new SimpleDateFormat("dd-MM-YYYY HH:mm:ss");
+    private static final long IDLE_TIMEOUT_MILLIS  = TimeUnit.MINUTES.toMillis(1);
+    private static final long KEEPALIVE_MILLIS     = TimeUnit.MINUTES.toMillis(5);
+    private static final long MIN_CONNECTION_TIMEOUT_MILLIS = 250;
+
+    private final DataSourceRegistry.Key key;
+    private final HikariDataSource       hikariDataSource;
+    private final Map<OperationClass, Bulkhead> bulkheads = new EnumMap<>(OperationClass.class);
+    // guarded by the registry
+    int references;
+
+    SharedDataSource(DataSourceRegistry.Key key, String url, RDBMS rdbms, String user, String pass, String name,
+                     Map<String, String> driverProperties, PoolSettings poolSettings) {
+        this.key = key;
+        for (OperationClass operationClass : OperationClass.values()) {
+            bulkheads.put(operationClass, new Bulkhead(operationClass, poolSettings.getPermits(operationClass), poolSettings.getTimeout(operationClass)));
+        }
+        HikariDataSource newDS = new HikariDataSource(hikariConfig(url, rdbms, user, pass, name, driverProperties, poolSettings));
+        newDS.validate();
+        this.hikariDataSource = newDS;
+    }
+
+    static HikariConfig hikariConfig(String url, RDBMS rdbms, String user, String pass, String name,
+                                     Map<String, String> driverProperties, PoolSettings poolSettings) {
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setUsername(user);
+        hikariConfig.setPassword(pass);
+        hikariConfig.setPoolName(StringUtils.capitalize("SINGULAR-USER-PROVIDER-" + name + SIMPLE_DATE_FORMAT.format(new Date())));
+        hikariConfig.setJdbcUrl(url);
+        // drivers implementing JDBC4 Connection.isValid() are validated without an extra query round trip
+        if (!rdbms.isJdbc4Validation()) {
+            hikariConfig.setConnectionTestQuery(rdbms.getTestString());
+        }
+        hikariConfig.setDriverClassName(rdbms.getDriver());
+        hikariConfig.setMinimumIdle(poolSettings.getMinSize());
+        hikariConfig.setMaximumPoolSize(poolSettings.getMaxSize());
+        hikariConfig.setIdleTimeout(IDLE_TIMEOUT_MILLIS);
+        hikariConfig.setKeepaliveTime(KEEPALIVE_MILLIS);
+        // bound the wait for a pooled connection by the login deadline, or the shorter replica timeout, instead of Hikari's default 30s
+        hikariConfig.setConnectionTimeout(Math.max(MIN_CONNECTION_TIMEOUT_MILLIS, poolSettings.getConnectionTimeout()));
+        Map<String, String> properties = new HashMap<>(rdbms.getDriverProperties());
+        properties.putAll(driverProperties);
+        properties.forEach((property, value) -> {
+            if (StringUtils.isNotBlank(value)) {
+                hikariConfig.addDataSourceProperty(property, value);
+            }
+        });
+        return hikariConfig;
+    }
+
+    DataSourceRegistry.Key getKey() {
+        return key;
+    }
+
+    String getPoolName() {
+        return hikariDataSource.getPoolName();
+    }
+
+    DataSource getDataSource() {
+        return hikariDataSource;
+    }
+
+    Connection getConnection(OperationClass operationClass) throws SQLException {
+        return bulkheads.get(operationClass).getConnection(hikariDataSource);
+    }
+
+    @Override
+    public void close() {
+        hikariDataSource.close();
+    }
+}
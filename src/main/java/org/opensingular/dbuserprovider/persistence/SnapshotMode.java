@@ -0,0 +1,35 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public enum SnapshotMode {
+
+    DISABLED("Disabled"),
+    FALLBACK("Fallback on database failure"),
+    SERVE("Serve lookups");
+
+    private final String desc;
+
+    SnapshotMode(String desc) {
+        this.desc = desc;
+    }
+
+    public static SnapshotMode getByDescription(String desc) {
+        for (SnapshotMode value : values()) {
+            if (value.desc.equals(desc)) {
+                return value;
+            }
+        }
+        return DISABLED;
+    }
+
+    public static List<String> getAllDescriptions() {
+        return Arrays.stream(values()).map(SnapshotMode::getDesc).collect(Collectors.toList());
+    }
+
+    public String getDesc() {
+        return desc;
+    }
+}
@@ -0,0 +1,99 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import org.jboss.logging.Logger;
+import org.opensingular.dbuserprovider.DBUserStorageProvider;
+
+/**
+ * Holds the exact total of users for the {@link CountStrategy#CACHED} strategy. Only the first
+ * call waits for the database; once the value is older than the TTL it keeps being served while
+ * a single background refresh runs.
+ * <p>
+ * With {@link ClusterCaches}, a count computed by any node is served by all of them until it expires.
+ */
+public class UserCountCache implements Closeable {
+    private static final Logger log = Logger.getLogger(DBUserStorageProvider.class);
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "singular-user-provider-count-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private final ClusterCaches clusterCaches;
+    private volatile Integer count;
+    private volatile long    loadedAt;
+
+    public UserCountCache() {
+        this(null);
+    }
+
+    public UserCountCache(ClusterCaches clusterCaches) {
+        this.clusterCaches = clusterCaches;
+    }
+
+    public int get(long ttlMillis, Supplier<Integer> loader) {
+        if (clusterCaches != null) {
+            Integer shared = clusterCaches.getCount();
+            if (shared != null) {
+                return shared;
+            }
+        }
+        Integer current = count;
+        if (current == null) {
+            synchronized (this) {
+                current = count;
+                if (current == null) {
+                    current = store(loader.get(), ttlMillis);
+                }
+                return current;
+            }
+        }
+        if (System.currentTimeMillis() - loadedAt > ttlMillis && refreshing.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                try {
+                    store(loader.get(), ttlMillis);
+                } catch (Exception e) {
+                    log.error(e.getMessage(), e);
+                } finally {
+                    refreshing.set(false);
+                }
+            });
+        }
+        return current;
+    }
+
+    public void invalidate() {
+        count = null;
+        if (clusterCaches != null) {
+            clusterCaches.removeCount();
+        }
+    }
+
+    /**
+     * Drops the count of this node only, after another node invalidated the shared one.
+     */
+    void invalidateLocally() {
+        count = null;
+    }
+
+    private Integer store(Integer value, long ttlMillis) {
+        Integer stored = value == null ? 0 : value;
+        loadedAt = System.currentTimeMillis();
+        count = stored;
+        if (clusterCaches != null) {
+            clusterCaches.putCount(stored, ttlMillis);
+        }
+        return stored;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -1,11 +1,14 @@
 package org.opensingular.dbuserprovider.persistence;
 
 import java.sql.Connection;
+import java.sql.JDBCType;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -13,52 +16,82 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import javax.sql.DataSource;
 
 import org.jboss.logging.Logger;
+import org.keycloak.models.UserModel;
 import org.opensingular.dbuserprovider.DBUserStorageException;
 import org.opensingular.dbuserprovider.DBUserStorageProvider;
+import org.opensingular.dbuserprovider.model.ProjectionProfile;
 import org.opensingular.dbuserprovider.model.QueryConfigurations;
 import org.opensingular.dbuserprovider.util.HashUtil;
 import org.opensingular.dbuserprovider.util.PagingUtil;
 import org.opensingular.dbuserprovider.util.PagingUtil.Pageable;
 import org.opensingular.dbuserprovider.util.SearchUtil;
+import org.opensingular.dbuserprovider.util.SearchUtil.SearchParameter;
 import org.opensingular.dbuserprovider.util.SearchUtil.SearchQuery;
 
 
 public class UserRepository {
     private static final Logger log = Logger.getLogger(DBUserStorageProvider.class);
+    private static final String TOTAL_COLUMN = "ky_total";
     
     private final DataSourceProvider  dataSourceProvider;
     private final QueryConfigurations queryConfigurations;
+    private final RepositoryCaches    repositoryCaches;
     
-    public UserRepository(DataSourceProvider dataSourceProvider, QueryConfigurations queryConfigurations) {
+    public UserRepository(DataSourceProvider dataSourceProvider, QueryConfigurations queryConfigurations, RepositoryCaches repositoryCaches) {
         this.dataSourceProvider  = dataSourceProvider;
         this.queryConfigurations = queryConfigurations;
+        this.repositoryCaches    = repositoryCaches;
     }
     
     
-    private <T> T doQuery(String query, Pageable pageable, Function<ResultSet, T> resultTransformer, Object... params) {
+    private <T> T doQuery(OperationClass operationClass, String query, Pageable pageable, Function<ResultSet, T> resultTransformer, Object... params) {
+        return doReadQuery(operationClass, null, query, pageable, resultTransformer, params);
+    }
+    
+    /**
+     * Runs a read-only query looking one user up by the given attribute, which stays on the primary database right
+     * after that user was written.
+     */
+    private <T> T doUserQuery(OperationClass operationClass, String attribute, String value, String query, Function<ResultSet, T> resultTransformer) {
+        return doReadQuery(operationClass, DataSourceProvider.writeKey(attribute, value), query, null, resultTransformer, typed(attribute, value));
+    }
+    
+    private <T> T doReadQuery(OperationClass operationClass, String writeKey, String query, Pageable pageable, Function<ResultSet, T> resultTransformer,
+                              Object... params) {
         Optional<DataSource> dataSourceOpt = dataSourceProvider.getDataSource();
         if (dataSourceOpt.isPresent()) {
-            DataSource dataSource = dataSourceOpt.get();
-            try (Connection c = dataSource.getConnection()) {
-                if (pageable != null) {
-                    query = PagingUtil.formatScriptWithPageable(query, pageable, queryConfigurations.getRDBMS());
-                }
-                log.infov("Query: {0} params: {1} ", query, Arrays.toString(params));
-                try (PreparedStatement statement = c.prepareStatement(query)) {
-                    if (params != null) {
-                        for (int i = 1; i <= params.length; i++) {
-                            statement.setObject(i, params[i - 1]);
-                        }
-                    }
-                    try (ResultSet rs = statement.executeQuery()) {
-                        return resultTransformer.apply(rs);
-                    }
+            String sql = pageable != null ? PagingUtil.formatScriptWithPageable(query, pageable, queryConfigurations.getRDBMS()) : query;
+            log.infov("Query: {0} params: {1} ", sql, Arrays.toString(params));
+            try {
+                if (operationClass != OperationClass.LOGIN) {
+                    return runQuery(operationClass, () -> dataSourceProvider.getReadConnection(operationClass, writeKey), sql, null, resultTransformer, params);
                 }
+                HedgingPolicy          hedgingPolicy = dataSourceProvider.getHedgingPolicy();
+                List<SharedDataSource> endpoints     = dataSourceProvider.getReadEndpoints(writeKey);
+                long                   delay         = hedgingPolicy.isEnabled() && endpoints.size() > 1 ? hedgingPolicy.getDelayMillis() : -1;
+                long                   started       = System.nanoTime();
+                T result = delay < 0
+                           ? runQuery(operationClass, () -> dataSourceProvider.getReadConnection(operationClass, writeKey), sql, null, resultTransformer, params)
+                           : runHedgedQuery(hedgingPolicy, delay, endpoints, sql, resultTransformer, params);
+                hedgingPolicy.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                return result;
+            } catch (CircuitOpenException e) {
+                log.debug(e.getMessage());
             } catch (SQLException e) {
                 log.error(e.getMessage(), e);
             }
@@ -67,21 +100,158 @@ public class UserRepository {
         return null;
     }
     
+    /**
+     * Runs a query within the statement timeout of its operation class, reporting its outcome to the circuit breaker.
+     */
+    private <T> T runQuery(OperationClass operationClass, ConnectionSupplier connectionSupplier, String query, AtomicReference<Statement> running,
+                           Function<ResultSet, T> resultTransformer, Object... params) throws SQLException {
+        CircuitBreaker circuitBreaker = dataSourceProvider.getCircuitBreaker();
+        circuitBreaker.acquire(operationClass);
+        long started = System.nanoTime();
+        try (Connection c = connectionSupplier.get()) {
+            int fetchSize = operationClass == OperationClass.ADMIN ? queryConfigurations.getSearchFetchSize() : 0;
+            if (fetchSize > 0) {
+                // PostgreSQL only reads through a cursor inside a transaction; the pool rolls it back when the connection is returned
+                c.setAutoCommit(false);
+            }
+            try (PreparedStatement statement = c.prepareStatement(query)) {
+                if (running != null) {
+                    running.set(statement);
+                }
+                statement.setQueryTimeout(queryConfigurations.getQueryTimeout(operationClass));
+                if (fetchSize > 0) {
+                    statement.setFetchSize(fetchSize);
+                }
+                bindParameters(statement, params);
+                try (ResultSet rs = statement.executeQuery()) {
+                    T result = resultTransformer.apply(rs);
+                    circuitBreaker.onSuccess(operationClass, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                    return result;
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            // the slower query of a hedged lookup is interrupted and cancelled on purpose, and a full bulkhead only
+            // means the operation class is saturated: neither says anything of the database
+            if (Thread.currentThread().isInterrupted() || e instanceof BulkheadFullException) {
+                circuitBreaker.onCancelled(operationClass);
+            } else {
+                circuitBreaker.onFailure(operationClass);
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * Runs a login lookup on the first endpoint and, if it has not answered within the hedging delay (or failed),
+     * once more on the second one. The first answer wins and the statement still running elsewhere is cancelled.
+     */
+    private <T> T runHedgedQuery(HedgingPolicy hedgingPolicy, long delay, List<SharedDataSource> endpoints, String query,
+                                 Function<ResultSet, T> resultTransformer, Object... params) throws SQLException {
+        CompletionService<T>             completion = new ExecutorCompletionService<>(hedgingPolicy.getExecutor());
+        List<Future<T>>                  attempts   = new ArrayList<>(2);
+        List<AtomicReference<Statement>> statements = new ArrayList<>(2);
+        Function<SharedDataSource, Callable<T>> attempt = endpoint -> {
+            AtomicReference<Statement> running = new AtomicReference<>();
+            statements.add(running);
+            return () -> runQuery(OperationClass.LOGIN, () -> dataSourceProvider.getConnection(endpoint, OperationClass.LOGIN), query, running, resultTransformer, params);
+        };
+        try {
+            attempts.add(completion.submit(attempt.apply(endpoints.get(0))));
+            Future<T> done = completion.poll(delay, TimeUnit.MILLISECONDS);
+            if (done == null) {
+                log.debugv("Lookup did not answer within {0}ms, hedging it on {1}", delay, endpoints.get(1).getPoolName());
+                attempts.add(completion.submit(attempt.apply(endpoints.get(1))));
+            }
+            int failed = 0;
+            while (true) {
+                if (done == null) {
+                    done = completion.take();
+                }
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    failed++;
+                    if (attempts.size() < 2) {
+                        attempts.add(completion.submit(attempt.apply(endpoints.get(1))));
+                    } else if (failed >= attempts.size()) {
+                        throw unwrap(e.getCause());
+                    }
+                    done = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a hedged lookup", e);
+        } finally {
+            for (int i = 0; i < attempts.size(); i++) {
+                if (!attempts.get(i).isDone()) {
+                    attempts.get(i).cancel(true);
+                    cancel(statements.get(i).get());
+                }
+            }
+        }
+    }
+    
+    private static SQLException unwrap(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        return cause instanceof SQLException ? (SQLException) cause : new SQLException(cause.getMessage(), cause);
+    }
+    
+    private static void cancel(Statement statement) {
+        if (statement == null) {
+            return;
+        }
+        try {
+            statement.cancel();
+        } catch (SQLException e) {
+            log.debugv("Could not cancel the slower hedged lookup: {0}", e.getMessage());
+        }
+    }
+    
+    private void bindParameters(PreparedStatement statement, Object... params) throws SQLException {
+        if (params == null) {
+            return;
+        }
+        for (int i = 1; i <= params.length; i++) {
+            Object param = params[i - 1];
+            if (param instanceof TypedParameter) {
+                TypedParameter typed = (TypedParameter) param;
+                if (typed.type != null) {
+                    statement.setObject(i, typed.value, typed.type.getVendorTypeNumber());
+                } else {
+                    statement.setObject(i, typed.value);
+                }
+            } else {
+                statement.setObject(i, param);
+            }
+        }
+    }
+    
+    private TypedParameter typed(String attribute, Object value) {
+        return new TypedParameter(value, queryConfigurations.getBindType(attribute));
+    }
+    
+    private Object[] typedParams(SearchQuery searchQuery) {
+        SearchParameter[] params = searchQuery.getParams();
+        if (params == null) {
+            return null;
+        }
+        Object[] typedParams = new Object[params.length];
+        for (int i = 0; i < params.length; i++) {
+            typedParams[i] = new TypedParameter(params[i].getValue(), queryConfigurations.getBindTypeForColumn(params[i].getColumn()));
+        }
+        return typedParams;
+    }
+    
     @SuppressWarnings("UseSpecificCatch")
     private List<Map<String, String>> readMap(ResultSet rs) {
         try {
             List<Map<String, String>> data         = new ArrayList<>();
-            Set<String>               columnsFound = new HashSet<>();
-            for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
-                String columnLabel = rs.getMetaData().getColumnLabel(i);
-                columnsFound.add(columnLabel);
-            }
+            Set<String>               columnsFound = readColumns(rs);
             while (rs.next()) {
-                Map<String, String> result = new HashMap<>();
-                for (String col : columnsFound) {
-                    result.put(col, rs.getString(col));
-                }
-                data.add(result);
+                data.add(readRow(rs, columnsFound));
             }
             log.infov("Result count: {0}", data.size());
             return data;
@@ -110,6 +280,22 @@ public class UserRepository {
     }
     
     @SuppressWarnings("UseSpecificCatch")
+    private static Set<String> readColumns(ResultSet rs) throws SQLException {
+        Set<String> columnsFound = new HashSet<>();
+        for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+            columnsFound.add(rs.getMetaData().getColumnLabel(i));
+        }
+        return columnsFound;
+    }
+    
+    private static Map<String, String> readRow(ResultSet rs, Set<String> columns) throws SQLException {
+        Map<String, String> result = new HashMap<>();
+        for (String col : columns) {
+            result.put(col, rs.getString(col));
+        }
+        return result;
+    }
+    
     private String readString(ResultSet rs) {
         try {
             return rs.next() ? rs.getString(1) : null;
@@ -118,52 +304,288 @@ public class UserRepository {
         }
     }
     
+    private SearchQuery createSearchQuery(Map<String, String> search) {
+        return SearchUtil.create(queryConfigurations.getBaseQuery(ProjectionProfile.SEARCH), queryConfigurations.getColumnsMapping(), search,
+                                 queryConfigurations.getSearchUnionRewrite(), queryConfigurations.getProjectedAttributes(ProjectionProfile.SEARCH));
+    }
+    
     public List<Map<String, String>> getAllUsers() {
-        return doQuery(queryConfigurations.getBaseQuery(), null, this::readMap);
+        return doQuery(OperationClass.ADMIN, queryConfigurations.getAllUsersQuery(), null, this::readMap);
+    }
+    
+    /**
+     * Reads every user of the base query through a cursor and hands them to the consumer in batches of
+     * {@code batchSize}, so only one batch is held in memory. The query runs without statement timeout.
+     */
+    public void forEachUserBatch(int batchSize, Consumer<List<Map<String, String>>> batchConsumer) {
+        String query = queryConfigurations.getAllUsersQuery();
+        log.infov("Query: {0}", query);
+        try (Connection c = dataSourceProvider.getReadConnection(OperationClass.ADMIN, null)) {
+            // PostgreSQL only reads through a cursor inside a transaction; the pool rolls it back when the connection is returned
+            c.setAutoCommit(false);
+            try (PreparedStatement statement = c.prepareStatement(query)) {
+                statement.setFetchSize(batchSize);
+                try (ResultSet rs = statement.executeQuery()) {
+                    Set<String>               columns = readColumns(rs);
+                    List<Map<String, String>> batch   = new ArrayList<>(batchSize);
+                    while (rs.next()) {
+                        batch.add(readRow(rs, columns));
+                        if (batch.size() == batchSize) {
+                            batchConsumer.accept(batch);
+                            batch = new ArrayList<>(batchSize);
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        batchConsumer.accept(batch);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new DBUserStorageException(e.getMessage(), e);
+        }
     }
     
     public int getUsersCount(Map<String, String> search) {
         if (search == null || search.isEmpty()) {
-            return Optional.ofNullable(doQuery(queryConfigurations.getCount(), null, this::readInt)).orElse(0);
+            switch (queryConfigurations.getCountStrategy()) {
+                case CACHED:
+                    return repositoryCaches.getUserCountCache().get(queryConfigurations.getCountCacheTtl(), this::getExactUsersCount);
+                case ESTIMATED:
+                    return getEstimatedUsersCount();
+                default:
+                    return getExactUsersCount();
+            }
         } else {
-            SearchQuery searchQuery = SearchUtil.create(queryConfigurations.getBaseQuery(), queryConfigurations.getColumnsMapping(), search);
+            SearchIndex searchIndex = repositoryCaches.getSearchIndex();
+            String      keyword     = searchIndex == null ? null : SearchIndex.getKeyword(search);
+            Integer     indexed     = keyword == null ? null : searchIndex.count(keyword);
+            if (indexed != null) {
+                return indexed;
+            }
+            Optional<Integer> cachedTotal = repositoryCaches.getSearchTotalCache().get(search);
+            if (cachedTotal.isPresent()) {
+                log.debugv("Count answered from paged search total: {0}", cachedTotal.get());
+                return cachedTotal.get();
+            }
+            SearchQuery searchQuery = createSearchQuery(search);
             String query = String.format("select count(*) from (%s) count", searchQuery.getQuery());
-            return Optional.ofNullable(doQuery(query, null, this::readInt, searchQuery.getParams())).orElse(0);
+            return Optional.ofNullable(doQuery(OperationClass.ADMIN, query, null, this::readInt, typedParams(searchQuery))).orElse(0);
+        }
+    }
+    
+    private int getExactUsersCount() {
+        return Optional.ofNullable(doQuery(OperationClass.ADMIN, queryConfigurations.getCount(), null, this::readInt)).orElse(0);
+    }
+    
+    private int getEstimatedUsersCount() {
+        // read as string, as getInt would turn a missing statistic (NULL) into 0
+        String estimate = doQuery(OperationClass.ADMIN, queryConfigurations.getRDBMS().getEstimatedCountQuery(), null, this::readString, queryConfigurations.getCountStatisticsTable());
+        long rows = estimate == null ? -1 : Long.parseLong(estimate.trim());
+        if (rows < 0) {
+            log.debugv("No statistics found for table {0}, falling back to exact count", queryConfigurations.getCountStatisticsTable());
+            return getExactUsersCount();
+        }
+        return (int) Math.min(rows, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Reads the next batch of users in watermark column and id order, after the given keyset position. Users whose
+     * watermark is NULL are left out.
+     *
+     * @param lastWatermark watermark of the last user read, {@code null} to start with the first user
+     * @param lastId        id of the last user read
+     */
+    public List<Map<String, String>> findChangedSince(String lastWatermark, String lastId, int limit) {
+        String       column  = queryConfigurations.getSyncWatermarkColumn();
+        JDBCType     type    = queryConfigurations.getBindTypeForColumn(column);
+        String       changed = queryConfigurations.getFindChangedSince();
+        List<Object> params  = new ArrayList<>();
+        String       source  = queryConfigurations.getAllUsersQuery();
+        if (lastWatermark != null && changed != null && !changed.isBlank()) {
+            source = changed;
+            params.add(new TypedParameter(lastWatermark, type));
+        }
+        String keyset = "k.%1$s is not null";
+        if (lastWatermark != null) {
+            keyset = "k.%1$s > ? or (k.%1$s = ? and k.id > ?)";
+            params.add(new TypedParameter(lastWatermark, type));
+            params.add(new TypedParameter(lastWatermark, type));
+            params.add(typed("id", lastId));
         }
+        String query = String.format("select k.* from (%2$s) k where " + keyset + " order by k.%1$s, k.id", column, source);
+        return doQuery(OperationClass.ADMIN, query, new PagingUtil.Pageable(0, limit), this::readMap, params.toArray());
     }
     
     public Map<String, String> findUserById(String id) {
-        return Optional.ofNullable(doQuery(queryConfigurations.getFindById(), null, this::readMap, id))
-                       .orElse(Collections.emptyList())
-                       .stream().findFirst().orElse(null);
+        return findUserById(id, ProjectionProfile.FULL);
+    }
+    
+    public Map<String, String> findUserById(String id, ProjectionProfile profile) {
+        return findUser(s -> s.findById(id),
+                        () -> doUserQuery(OperationClass.LOGIN, "id", id, queryConfigurations.getFindById(profile), this::readMap))
+            .orElse(null);
+    }
+    
+    /**
+     * Reads the version of a user with the version probe query.
+     *
+     * @return the version, or {@code null} if the user was not found or the query failed
+     */
+    public String findVersion(String id) {
+        return doUserQuery(OperationClass.LOGIN, "id", id, queryConfigurations.getFindVersion(), this::readString);
+    }
+    
+    /**
+     * Reads a user by id from the database only, with every column of the base query.
+     *
+     * @return the user, an empty list if it does not exist, or {@code null} if the query failed
+     */
+    List<Map<String, String>> queryUserById(String id) {
+        return doQuery(OperationClass.ADMIN, queryConfigurations.getFindById(ProjectionProfile.FULL), null, this::readMap, typed("id", id));
+    }
+
+    /**
+     * Reads which of the given users the base query still returns.
+     *
+     * @return the ids found, or {@code null} if the query failed
+     */
+    Set<String> findExistingIds(Collection<String> ids) {
+        String query = String.format("select k.id from (%s) k where k.id in (%s)", queryConfigurations.getAllUsersQuery(),
+                                     String.join(",", Collections.nCopies(ids.size(), "?")));
+        List<Map<String, String>> rows = doQuery(OperationClass.ADMIN, query, null, this::readMap,
+                                                 ids.stream().map(id -> typed("id", id)).toArray());
+        return rows == null ? null : rows.stream().map(row -> row.values().iterator().next()).collect(Collectors.toSet());
     }
     
     public Optional<Map<String, String>> findUserByUsername(String username) {
-        return Optional.ofNullable(doQuery(queryConfigurations.getFindByUsername(), null, this::readMap, username))
-                       .orElse(Collections.emptyList())
-                       .stream().findFirst();
+        return findUserByUsername(username, ProjectionProfile.FULL);
+    }
+    
+    public Optional<Map<String, String>> findUserByUsername(String username, ProjectionProfile profile) {
+        return findUser(s -> s.findByUsername(username),
+                        () -> doUserQuery(OperationClass.LOGIN, UserModel.USERNAME, username, queryConfigurations.getFindByUsername(profile), this::readMap));
     }
     
     public Optional<Map<String, String>> findUserByEmail(String email) {
-        return Optional.ofNullable(doQuery(queryConfigurations.getFindByEmail(), null, this::readMap, email))
-            .orElse(Collections.emptyList())
-            .stream().findFirst();
+        return findUserByEmail(email, ProjectionProfile.FULL);
+    }
+    
+    public Optional<Map<String, String>> findUserByEmail(String email, ProjectionProfile profile) {
+        return findUser(s -> s.findByEmail(email),
+                        () -> doUserQuery(OperationClass.LOGIN, UserModel.EMAIL, email, queryConfigurations.getFindByEmail(profile), this::readMap));
+    }
+    
+    /**
+     * Looks a user up in the snapshot first when it serves lookups, otherwise in the database, falling back to the
+     * snapshot when the query fails.
+     */
+    private Optional<Map<String, String>> findUser(Function<UserSnapshot, Map<String, String>> snapshotLookup,
+                                                   Supplier<List<Map<String, String>>> query) {
+        UserSnapshot snapshot = repositoryCaches.getUserSnapshot();
+        if (snapshot != null && queryConfigurations.getSnapshotMode() == SnapshotMode.SERVE) {
+            Map<String, String> user = snapshotLookup.apply(snapshot);
+            if (user != null) {
+                return Optional.of(user);
+            }
+        }
+        List<Map<String, String>> users = query.get();
+        if (users == null && snapshot != null) {
+            Map<String, String> user = snapshotLookup.apply(snapshot);
+            if (user != null) {
+                log.debugv("User answered from the snapshot after a failed query");
+            }
+            return Optional.ofNullable(user);
+        }
+        return Optional.ofNullable(users).orElse(Collections.emptyList()).stream().findFirst();
     }
 
     public List<Map<String, String>> findUsers(Map<String, String> search, PagingUtil.Pageable pageable) {
         if (search == null || search.isEmpty()) {
-            return doQuery(queryConfigurations.getBaseQuery(), pageable, this::readMap);
+            return doQuery(OperationClass.ADMIN, queryConfigurations.getAllUsersQuery(ProjectionProfile.SEARCH), pageable, this::readMap);
         }
-        SearchQuery searchQuery = SearchUtil.create(queryConfigurations.getBaseQuery(), queryConfigurations.getColumnsMapping(), search);
-        return doQuery(searchQuery.getQuery(), pageable, this::readMap, searchQuery.getParams());
+        if (pageable == null) {
+            List<Map<String, String>> indexed = searchIndex(search, 0, -1);
+            if (indexed != null) {
+                return indexed;
+            }
+            SearchQuery searchQuery = createSearchQuery(search);
+            return doQuery(OperationClass.ADMIN, searchQuery.getQuery(), null, this::readMap, typedParams(searchQuery));
+        }
+        List<Map<String, String>> indexed = searchIndex(search, pageable.getFirstResult(), pageable.getMaxResults());
+        if (indexed != null) {
+            return indexed;
+        }
+        SearchPageCache searchPageCache = repositoryCaches.getSearchPageCache();
+        Optional<List<Map<String, String>>> cachedPage = searchPageCache.get(search, pageable);
+        if (cachedPage.isPresent()) {
+            log.debugv("Search page answered from cache: {0} users", cachedPage.get().size());
+            return cachedPage.get();
+        }
+        SearchQuery searchQuery = createSearchQuery(search);
+        List<Map<String, String>> users = queryConfigurations.getCountWindowTotal()
+            ? findUsersWithTotal(search, searchQuery, pageable)
+            : doQuery(OperationClass.ADMIN, searchQuery.getQuery(), pageable, this::readMap, typedParams(searchQuery));
+        searchPageCache.put(search, pageable, users);
+        return users;
+    }
+
+    /**
+     * Finds the first {@code limit} users matching the search (all of them if {@code limit} is negative) in username
+     * order, so the results of several shards can be merged into pages.
+     */
+    public List<Map<String, String>> findUsersInUsernameOrder(Map<String, String> search, int limit) {
+        List<Map<String, String>> indexed = search == null || search.isEmpty() ? null : searchIndex(search, 0, limit);
+        if (indexed != null) {
+            return indexed;
+        }
+        SearchQuery searchQuery = search == null || search.isEmpty() ? null : createSearchQuery(search);
+        String query = String.format("select s.* from (%s) s order by %s",
+                                     searchQuery == null ? queryConfigurations.getAllUsersQuery(ProjectionProfile.SEARCH) : searchQuery.getQuery(),
+                                     queryConfigurations.getRDBMS().getBinaryUpperOrder("s." + UserModel.USERNAME));
+        return doQuery(OperationClass.ADMIN, query, limit < 0 ? null : new PagingUtil.Pageable(0, limit), this::readMap,
+                       searchQuery == null ? new Object[0] : typedParams(searchQuery));
+    }
+
+    /**
+     * Answers a free-text search from the search index, in username order.
+     *
+     * @return the users, or {@code null} if there is no index, it is not built yet or it cannot answer the search
+     */
+    private List<Map<String, String>> searchIndex(Map<String, String> search, int first, int max) {
+        SearchIndex searchIndex = repositoryCaches.getSearchIndex();
+        String      keyword     = searchIndex == null ? null : SearchIndex.getKeyword(search);
+        return keyword == null ? null : searchIndex.search(keyword, first, max);
+    }
+
+    private List<Map<String, String>> findUsersWithTotal(Map<String, String> search, SearchQuery searchQuery, PagingUtil.Pageable pageable) {
+        String query = String.format("select q.*, count(*) over() %s from (%s) q", TOTAL_COLUMN, searchQuery.getQuery());
+        List<Map<String, String>> users = doQuery(OperationClass.ADMIN, query, pageable, this::readMap, typedParams(searchQuery));
+        if (users == null) {
+            return null;
+        }
+        String total = null;
+        for (Map<String, String> user : users) {
+            Optional<String> totalKey = user.keySet().stream().filter(TOTAL_COLUMN::equalsIgnoreCase).findFirst();
+            if (totalKey.isPresent()) {
+                total = user.remove(totalKey.get());
+            }
+        }
+        if (total != null) {
+            repositoryCaches.getSearchTotalCache().put(search, Integer.parseInt(total.trim()));
+        }
+        return users;
     }
     
     public boolean validateCredentials(String username, String password) {
-        String hash = Optional.ofNullable(doQuery(queryConfigurations.getFindPasswordHash(), null, this::readString, username)).orElse("");
+        String hash = Optional.ofNullable(doUserQuery(OperationClass.LOGIN, UserModel.USERNAME, username, queryConfigurations.getFindPasswordHash(), this::readString)).orElse("");
         return HashUtil.verify(hash, password, queryConfigurations.getHashFunction());
     }
     
-    public boolean updateCredentials(String username, String password) {
+    /**
+     * @param id    id of the user, whose lookups by id then stay on the primary; may be {@code null}
+     * @param email email of the user, whose lookups by email then stay on the primary; may be {@code null}
+     */
+    public boolean updateCredentials(String id, String username, String email, String password) {
         String query = queryConfigurations.getUpdatePassword();
         if (query == null || query.isBlank()) {
             throw new UnsupportedOperationException("Password update not supported");
@@ -174,27 +596,147 @@ public class UserRepository {
             throw new RuntimeException("Data source not found");
         }
 
-        DataSource dataSource = dataSourceOpt.get();
-        try (Connection c = dataSource.getConnection()) {
+        CircuitBreaker circuitBreaker = dataSourceProvider.getCircuitBreaker();
+        long           started;
+        try {
+            circuitBreaker.acquire(OperationClass.LOGIN);
+            started = System.nanoTime();
+        } catch (CircuitOpenException e) {
+            log.debug(e.getMessage());
+            return false;
+        }
+        try (Connection c = dataSourceProvider.getConnection(OperationClass.LOGIN)) {
             log.infov("Query: {0}", query);
             try (PreparedStatement statement = c.prepareStatement(query)) {
-                statement.setObject(1, HashUtil.hash(password, queryConfigurations.getHashFunction()));
-                statement.setObject(2, username);
+                statement.setQueryTimeout(queryConfigurations.getQueryTimeout(OperationClass.LOGIN));
+                bindParameters(statement,
+                               HashUtil.hash(password, queryConfigurations.getHashFunction(), queryConfigurations.getRehashFunction()),
+                               typed(UserModel.USERNAME, username));
                 boolean updated = statement.executeUpdate() > 0;
+                circuitBreaker.onSuccess(OperationClass.LOGIN, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
                 if (!updated) {
                     throw new RuntimeException("Password update failed");
                 }
+                dataSourceProvider.markWritten(DataSourceProvider.writeKey("id", id),
+                                               DataSourceProvider.writeKey(UserModel.USERNAME, username),
+                                               DataSourceProvider.writeKey(UserModel.EMAIL, email));
+                repositoryCaches.invalidateAll();
                 
                 return true;
             }
+        } catch (BulkheadFullException e) {
+            circuitBreaker.onCancelled(OperationClass.LOGIN);
+            log.error(e.getMessage(), e);
         } catch (SQLException e) {
+            circuitBreaker.onFailure(OperationClass.LOGIN);
             log.error(e.getMessage(), e);
         }
         
         return false;
     }
     
+    /**
+     * Reads the next batch of ids and password hashes of the rehash source query, in id order after {@code afterId}.
+     *
+     * @return id and hash of each user, or {@code null} if the query failed
+     */
+    public List<String[]> findPasswordHashes(String afterId, int limit) {
+        String source = queryConfigurations.getRehashSourceQuery();
+        if (afterId == null) {
+            return doQuery(OperationClass.ADMIN, String.format("select r.* from (%s) r order by r.id", source), new PagingUtil.Pageable(0, limit),
+                           this::readHashes);
+        }
+        return doQuery(OperationClass.ADMIN, String.format("select r.* from (%s) r where r.id > ? order by r.id", source), new PagingUtil.Pageable(0, limit),
+                       this::readHashes, typed("id", afterId));
+    }
+    
+    private List<String[]> readHashes(ResultSet rs) {
+        try {
+            List<String[]> hashes = new ArrayList<>();
+            while (rs.next()) {
+                hashes.add(new String[] { rs.getString(1), rs.getString(2) });
+            }
+            return hashes;
+        } catch (Exception e) {
+            throw new DBUserStorageException(e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Writes new password hashes in one JDBC batch and transaction. The rehash update query only changes a row whose
+     * hash is still the one read, so passwords changed in between are kept. Lookups by id of the users of the batch then
+     * stay on the primary for the read-your-writes window.
+     *
+     * @param rows id, current hash and new hash of each user
+     * @return number of users updated, or -1 if the batch failed
+     */
+    public int updatePasswordHashes(List<String[]> rows) {
+        String         query          = queryConfigurations.getRehashUpdateQuery();
+        CircuitBreaker circuitBreaker = dataSourceProvider.getCircuitBreaker();
+        long           started;
+        try {
+            circuitBreaker.acquire(OperationClass.ADMIN);
+            started = System.nanoTime();
+        } catch (CircuitOpenException e) {
+            log.debug(e.getMessage());
+            return -1;
+        }
+        try (Connection c = dataSourceProvider.getConnection(OperationClass.ADMIN)) {
+            log.infov("Query: {0} batch: {1}", query, rows.size());
+            c.setAutoCommit(false);
+            try (PreparedStatement statement = c.prepareStatement(query)) {
+                statement.setQueryTimeout(queryConfigurations.getQueryTimeout(OperationClass.ADMIN));
+                for (String[] row : rows) {
+                    bindParameters(statement, row[2], typed("id", row[0]), row[1]);
+                    statement.addBatch();
+                }
+                int updated = 0;
+                for (int count : statement.executeBatch()) {
+                    updated += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(0, count);
+                }
+                c.commit();
+                circuitBreaker.onSuccess(OperationClass.ADMIN, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                dataSourceProvider.markWritten(rows.stream().map(row -> DataSourceProvider.writeKey("id", row[0])).toArray(String[]::new));
+                return updated;
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            }
+        } catch (BulkheadFullException e) {
+            circuitBreaker.onCancelled(OperationClass.ADMIN);
+            log.error(e.getMessage(), e);
+        } catch (SQLException e) {
+            circuitBreaker.onFailure(OperationClass.ADMIN);
+            log.error(e.getMessage(), e);
+        }
+        return -1;
+    }
+    
     public boolean removeUser() {
-        return queryConfigurations.getAllowKeycloakDelete();
+        boolean allowed = queryConfigurations.getAllowKeycloakDelete();
+        if (allowed) {
+            repositoryCaches.invalidateAll();
+        }
+        return allowed;
+    }
+    
+    private static class TypedParameter {
+        private final Object   value;
+        private final JDBCType type;
+        
+        private TypedParameter(Object value, JDBCType type) {
+            this.value = value;
+            this.type  = type;
+        }
+        
+        @Override
+        public String toString() {
+            return String.valueOf(value);
+        }
+    }
+    
+    @FunctionalInterface
+    private interface ConnectionSupplier {
+        Connection get() throws SQLException;
     }
 }
@@ -0,0 +1,489 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.UserModel;
+import org.opensingular.dbuserprovider.DBUserStorageProvider;
+import org.opensingular.dbuserprovider.util.WatermarkUtil;
+
+/**
+ * Copy of the users of one shard in a memory-mapped file, answering lookups by id, username and email without
+ * querying the database and with almost no heap: the rows and the indexes live off-heap in the page cache.
+ * <p>
+ * The file holds a header, the rows of the base query, each as its length followed by its columns as
+ * length-prefixed UTF-8 strings, then one open-addressing hash table of row offsets per key, probed linearly,
+ * and a last record with the time the file was written and the watermark and id of its last changed user.
+ * Usernames and emails are indexed lower-cased. A file is never modified: a rebuild writes a new one and
+ * replaces it atomically, so the previous snapshot keeps answering until then and is reused after a restart.
+ * The previous file is unmapped once the lookups reading it are done.
+ * <p>
+ * Lookups of users changed since the file was written are answered with their new data when it is known, and
+ * otherwise miss, so they go to the database.
+ */
+public class UserSnapshot extends LocalUserCopy {
+    private static final Logger   log          = Logger.getLogger(DBUserStorageProvider.class);
+    private static final int      MAGIC        = 0x55534e32;
+    // magic, row count, table capacity, offsets of the id, username and email tables and of the metadata record
+    private static final int      HEADER_BYTES = 7 * Integer.BYTES;
+    private static final int      ID           = 0;
+    private static final int      USERNAME     = 1;
+    private static final int      EMAIL        = 2;
+    private static final String[] KEYS         = { "id", UserModel.USERNAME, UserModel.EMAIL };
+    private static final String   WRITTEN_AT   = "writtenAt";
+    private static final String   WATERMARK    = "watermark";
+
+    private final Path                file;
+    private final String              watermarkColumn;
+    private volatile MappedSnapshot   current;
+    // metadata of the file found at startup
+    private       long                loadedAt;
+    private       String[]            loadedPosition;
+    // ids of the changed users by lower-cased username and email
+    private final Map<String, String> changedByUsername = new ConcurrentHashMap<>();
+    private final Map<String, String> changedByEmail    = new ConcurrentHashMap<>();
+
+    /**
+     * @param watermarkColumn column whose highest value is recorded in the file, or {@code null}
+     */
+    public UserSnapshot(Path file, String watermarkColumn) {
+        this.file            = file;
+        this.watermarkColumn = watermarkColumn == null || watermarkColumn.isBlank() ? null : watermarkColumn;
+        if (Files.isRegularFile(file)) {
+            MappedSnapshot loaded = null;
+            try {
+                loaded = MappedSnapshot.map(file);
+                Map<String, String> metadata = loaded.read(loaded.metadata);
+                loadedAt       = Long.parseLong(metadata.get(WRITTEN_AT));
+                loadedPosition = new String[] { metadata.get(WATERMARK), metadata.get(KEYS[ID]) };
+                current        = loaded;
+                log.infov("Loaded user snapshot {0} with {1} users", file, loaded.count);
+            } catch (IOException | RuntimeException e) {
+                if (loaded != null) {
+                    loaded.release();
+                }
+                log.warnv("Ignoring unreadable user snapshot {0}: {1}", file, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return current != null;
+    }
+
+    @Override
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+    @Override
+    public String[] getLoadedPosition() {
+        return loadedPosition;
+    }
+
+    @Override
+    public void forEachId(Consumer<String> action) {
+        MappedSnapshot snapshot = retainCurrent();
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            for (int i = 0, offset = HEADER_BYTES; i < snapshot.count; i++, offset += Integer.BYTES + snapshot.buffer.getInt(offset)) {
+                String id = value(snapshot.read(offset), KEYS[ID]);
+                if (id != null && !isOutdated(id)) {
+                    action.accept(id);
+                }
+            }
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * @return a copy of the user, or {@code null} if the snapshot cannot answer for it
+     */
+    public Map<String, String> findById(String id) {
+        return find(ID, id);
+    }
+
+    public Map<String, String> findByUsername(String username) {
+        return find(USERNAME, username);
+    }
+
+    public Map<String, String> findByEmail(String email) {
+        return find(EMAIL, email);
+    }
+
+    private Map<String, String> find(int key, String value) {
+        if (value == null) {
+            return null;
+        }
+        String changedId = key == ID ? value : (key == USERNAME ? changedByUsername : changedByEmail).get(lower(value));
+        if (changedId != null) {
+            Map<String, String> user = changed.get(changedId);
+            if (user != null && matches(key, user, value)) {
+                return new HashMap<>(user);
+            }
+        }
+        MappedSnapshot snapshot = retainCurrent();
+        if (snapshot == null) {
+            return null;
+        }
+        Map<String, String> user;
+        try {
+            user = snapshot.find(key, value);
+        } finally {
+            snapshot.release();
+        }
+        if (user == null) {
+            return null;
+        }
+        return isOutdated(value(user, KEYS[ID])) ? null : user;
+    }
+
+    /**
+     * @return the mapped file, which stays mapped until released, or {@code null} if there is none
+     */
+    private MappedSnapshot retainCurrent() {
+        while (true) {
+            MappedSnapshot snapshot = current;
+            if (snapshot == null || snapshot.retain()) {
+                return snapshot;
+            }
+        }
+    }
+
+    /**
+     * Writes a new snapshot file from the given users and maps it.
+     */
+    @Override
+    public void rebuild(Consumer<Consumer<List<Map<String, String>>>> users) throws IOException {
+        Runnable dropChanges = captureChanges();
+        Path     temp        = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try (Writer writer = new Writer(temp, watermarkColumn)) {
+            users.accept(batch -> batch.forEach(writer::write));
+            writer.finish();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        MappedSnapshot written  = MappedSnapshot.map(file);
+        MappedSnapshot previous = current;
+        current = written;
+        if (previous != null) {
+            previous.release();
+        }
+        dropChanges.run();
+        log.infov("Wrote user snapshot {0} with {1} users ({2} bytes)", file, written.count, written.buffer.capacity());
+    }
+
+    /**
+     * Unmaps the file once the lookups reading it are done.
+     */
+    @Override
+    public void close() {
+        MappedSnapshot snapshot = current;
+        current = null;
+        if (snapshot != null) {
+            snapshot.release();
+        }
+    }
+
+    @Override
+    protected void onChanged(String id, Map<String, String> previous, Map<String, String> current) {
+        if (previous != null) {
+            unindex(changedByUsername, value(previous, KEYS[USERNAME]), id);
+            unindex(changedByEmail, value(previous, KEYS[EMAIL]), id);
+        }
+        if (current != null) {
+            index(changedByUsername, value(current, KEYS[USERNAME]), id);
+            index(changedByEmail, value(current, KEYS[EMAIL]), id);
+        }
+    }
+
+    private static void index(Map<String, String> index, String key, String id) {
+        if (key != null) {
+            index.put(lower(key), id);
+        }
+    }
+
+    private static void unindex(Map<String, String> index, String key, String id) {
+        if (key != null) {
+            index.remove(lower(key), id);
+        }
+    }
+
+    private static boolean matches(int key, Map<String, String> user, String value) {
+        String stored = value(user, KEYS[key]);
+        return stored != null && (key == ID ? stored.equals(value) : stored.equalsIgnoreCase(value));
+    }
+
+    private static String lower(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    private static String normalize(int key, String value) {
+        return key == ID ? value : lower(value);
+    }
+
+    private static int hash(String key) {
+        // murmur3 finalizer, spreading String.hashCode over the low bits used as slot
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static final class MappedSnapshot {
+        private final MappedByteBuffer buffer;
+        private final int              count;
+        private final int              capacity;
+        private final int[]            tables;
+        private final int              metadata;
+        // lookups reading the buffer, plus one until it is replaced
+        private final AtomicInteger    references = new AtomicInteger(1);
+
+        private MappedSnapshot(MappedByteBuffer buffer) throws IOException {
+            if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+                throw new IOException("not a user snapshot");
+            }
+            this.buffer   = buffer;
+            this.count    = buffer.getInt(4);
+            this.capacity = buffer.getInt(8);
+            this.tables   = new int[] { buffer.getInt(12), buffer.getInt(16), buffer.getInt(20) };
+            this.metadata = buffer.getInt(24);
+        }
+
+        private boolean retain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void release() {
+            if (references.decrementAndGet() == 0) {
+                unmap(buffer);
+            }
+        }
+
+        /**
+         * Releases the mapping now rather than when the buffer is garbage collected, which may be long after
+         * the file was replaced and deleted.
+         */
+        private static void unmap(MappedByteBuffer buffer) {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field    theUnsafe   = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                log.debugv("Could not unmap a user snapshot, leaving it to the garbage collector: {0}", e.getMessage());
+            }
+        }
+
+        private static MappedSnapshot map(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return new MappedSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+
+        private Map<String, String> find(int key, String value) {
+            String normalized = normalize(key, value);
+            int    mask       = capacity - 1;
+            int    slot       = hash(normalized) & mask;
+            for (int probes = 0; probes < capacity; probes++) {
+                int offset = buffer.getInt(tables[key] + slot * Integer.BYTES);
+                if (offset == 0) {
+                    return null;
+                }
+                Map<String, String> user = read(offset - 1);
+                if (matches(key, user, value)) {
+                    return user;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        private Map<String, String> read(int offset) {
+            byte[] record = new byte[buffer.getInt(offset)];
+            buffer.get(offset + Integer.BYTES, record);
+            ByteBuffer          in      = ByteBuffer.wrap(record);
+            int                 columns = in.getInt();
+            Map<String, String> user    = new HashMap<>(columns * 2);
+            for (int i = 0; i < columns; i++) {
+                user.put(readString(in), readString(in));
+            }
+            return user;
+        }
+
+        private static String readString(ByteBuffer in) {
+            int length = in.getInt();
+            if (length < 0) {
+                return null;
+            }
+            String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return value;
+        }
+    }
+
+    /**
+     * Streams the rows to the file and collects the hash and offset of each key, from which the tables are
+     * written at the end.
+     */
+    private static final class Writer implements Closeable {
+        private final Path             file;
+        private final String           watermarkColumn;
+        private final DataOutputStream out;
+        private final long[][]         entries  = { new long[1024], new long[1024], new long[1024] };
+        private final int[]            sizes    = new int[3];
+        private       long             position = HEADER_BYTES;
+        private       int              count;
+        // watermark and id of the last changed user written
+        private       String           watermark;
+        private       String           lastId;
+
+        private Writer(Path file, String watermarkColumn) throws IOException {
+            this.file            = file;
+            this.watermarkColumn = watermarkColumn;
+            this.out             = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+            out.write(new byte[HEADER_BYTES]);
+        }
+
+        private void write(Map<String, String> user) {
+            try {
+                byte[] record = encode(user);
+                int    offset = checkedPosition(position + Integer.BYTES + record.length);
+                for (int key = ID; key <= EMAIL; key++) {
+                    String value = value(user, KEYS[key]);
+                    if (value != null) {
+                        add(key, ((long) hash(normalize(key, value)) << 32) | offset);
+                    }
+                }
+                out.writeInt(record.length);
+                out.write(record);
+                position += Integer.BYTES + record.length;
+                count++;
+                String value = watermarkColumn == null ? null : value(user, watermarkColumn);
+                if (value != null && (watermark == null || WatermarkUtil.compare(value, watermark) >= 0)) {
+                    watermark = value;
+                    lastId    = value(user, KEYS[ID]);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private int checkedPosition(long end) throws IOException {
+            if (end >= Integer.MAX_VALUE) {
+                throw new IOException("user snapshot larger than 2GB");
+            }
+            return (int) position;
+        }
+
+        private void add(int key, long entry) {
+            if (sizes[key] == entries[key].length) {
+                entries[key] = Arrays.copyOf(entries[key], sizes[key] * 2);
+            }
+            entries[key][sizes[key]++] = entry;
+        }
+
+        private void finish() throws IOException {
+            int   capacity = Math.max(16, Integer.highestOneBit(Math.max(1, count) * 2 - 1) << 1);
+            int[] tables   = new int[3];
+            for (int key = ID; key <= EMAIL; key++) {
+                tables[key] = checkedPosition(position + (long) capacity * Integer.BYTES);
+                int[] slots = new int[capacity];
+                int   mask  = capacity - 1;
+                for (int i = 0; i < sizes[key]; i++) {
+                    long entry = entries[key][i];
+                    int  slot  = (int) (entry >>> 32) & mask;
+                    while (slots[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    slots[slot] = (int) entry + 1;
+                }
+                for (int slot : slots) {
+                    out.writeInt(slot);
+                }
+                position += (long) capacity * Integer.BYTES;
+            }
+            Map<String, String> metadata = new HashMap<>();
+            metadata.put(WRITTEN_AT, Long.toString(System.currentTimeMillis()));
+            metadata.put(WATERMARK, watermark);
+            metadata.put(KEYS[ID], lastId);
+            byte[] record         = encode(metadata);
+            int    metadataOffset = checkedPosition(position + Integer.BYTES + record.length);
+            out.writeInt(record.length);
+            out.write(record);
+            out.close();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(count).putInt(capacity)
+                      .putInt(tables[ID]).putInt(tables[USERNAME]).putInt(tables[EMAIL]).putInt(metadataOffset).flip();
+                channel.write(header, 0);
+                channel.force(true);
+            }
+        }
+
+        private static byte[] encode(Map<String, String> user) {
+            int size = Integer.BYTES;
+            byte[][] strings = new byte[user.size() * 2][];
+            int i = 0;
+            for (Map.Entry<String, String> column : user.entrySet()) {
+                strings[i++] = column.getKey().getBytes(StandardCharsets.UTF_8);
+                strings[i++] = column.getValue() == null ? null : column.getValue().getBytes(StandardCharsets.UTF_8);
+            }
+            for (byte[] string : strings) {
+                size += Integer.BYTES + (string == null ? 0 : string.length);
+            }
+            ByteBuffer record = ByteBuffer.allocate(size).putInt(user.size());
+            for (byte[] string : strings) {
+                if (string == null) {
+                    record.putInt(-1);
+                } else {
+                    record.putInt(string.length).put(string);
+                }
+            }
+            return record.array();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
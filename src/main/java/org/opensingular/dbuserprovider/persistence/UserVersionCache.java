@@ -0,0 +1,34 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Last version of each user returned by the version probe query when the user was reloaded, so a login can tell
+ * from the version alone whether the user cached by Keycloak is still current.
+ */
+public class UserVersionCache {
+    private static final long MAX_ENTRIES = 100000;
+
+    private final Cache<String, String> versions = CacheBuilder.newBuilder()
+        .maximumSize(MAX_ENTRIES)
+        .build();
+
+    public String get(String id) {
+        return versions.getIfPresent(id);
+    }
+
+    public void put(String id, String version) {
+        if (version != null) {
+            versions.put(id, version);
+        }
+    }
+
+    public void invalidate(String id) {
+        versions.invalidate(id);
+    }
+
+    public void invalidateAll() {
+        versions.invalidateAll();
+    }
+}
@@ -4,6 +4,8 @@ import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.Map;
 import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.binary.StringUtils;
@@ -28,6 +30,11 @@ public class HashUtil {
         Argon2Types.ARGON2id, Argon2Factory.create(Argon2Types.ARGON2id)
     );
     
+    // legacy digest hashed again by the rehash job: "{wrapping algorithm}wrapped hash"
+    private static final Pattern WRAPPED = Pattern.compile("^\\{([^}]+)}(.+)$", Pattern.DOTALL);
+    // bcrypt only takes the first 72 bytes of its input, and the library rejects longer ones
+    private static final int     BCRYPT_MAX_BYTES = 72;
+    
     private static boolean isArgon2(String alg) {
         return alg.contains("Argon2");
     }
@@ -56,7 +63,47 @@ public class HashUtil {
         return Hex.encodeHexString(digest.digest(pwdBytes));
     }
 
+    /**
+     * Hashes the password with the given algorithm and, if a wrapping algorithm is given, the result again with it.
+     */
+    public static String hash(String plain, String alg, String wrapAlg) {
+        return wrapAlg == null || wrapAlg.isBlank() ? hash(plain, alg) : wrap(hash(plain, alg), wrapAlg);
+    }
+
+    /**
+     * Hashes a stored legacy digest again with a stronger algorithm, so it can be upgraded without knowing the password.
+     */
+    public static String wrap(String legacyHash, String wrapAlg) {
+        return "{" + wrapAlg + "}" + hash(wrapInput(legacyHash, wrapAlg), wrapAlg);
+    }
+
+    /**
+     * Digests too long for bcrypt (sha384, sha512 and their sha3 variants in hex) are reduced to their SHA-256 first.
+     */
+    private static String wrapInput(String legacyHash, String wrapAlg) {
+        if (isBlowfish(wrapAlg) && StringUtils.getBytesUtf8(legacyHash).length > BCRYPT_MAX_BYTES) {
+            return DigestUtils.sha256Hex(legacyHash);
+        }
+        return legacyHash;
+    }
+
+    /**
+     * Whether the algorithm is an unsalted digest, the only kind whose hashes can be wrapped.
+     */
+    public static boolean isDigest(String alg) {
+        return !isBlowfish(alg) && !isArgon2(alg) && !alg.equals("PBKDF2-SHA256");
+    }
+
+    public static boolean isWrapped(String hash) {
+        return WRAPPED.matcher(hash).matches();
+    }
+
     public static boolean verify(String hash, String plain, String alg) {
+        Matcher wrapped = WRAPPED.matcher(hash);
+        if (wrapped.matches()) {
+            return verify(wrapped.group(2), wrapInput(hash(plain, alg), wrapped.group(1)), wrapped.group(1));
+        }
+
         if (isBlowfish(alg)) {
             return !hash.isEmpty() && BCrypt.verifyer().verify(plain.toCharArray(), hash).verified;
         } 
@@ -25,6 +25,14 @@ public class PagingUtil {
             this.firstResult = firstResult;
             this.maxResults = maxResults;
         }
+
+        public int getFirstResult() {
+            return firstResult;
+        }
+
+        public int getMaxResults() {
+            return maxResults;
+        }
     }
 
     public static String formatScriptWithPageable(String query, Pageable pageable, RDBMS RDBMS) {
@@ -1,5 +1,7 @@
 package org.opensingular.dbuserprovider.util;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
@@ -17,14 +19,29 @@ public class SearchUtil {
     );
 
     public static SearchQuery create(String baseQuery, Map<String, String> columnsMap, Map<String, String> searchCriteria) {
+        return create(baseQuery, columnsMap, searchCriteria, false, null);
+    }
+
+    /**
+     * A free-text keyword ending with '*' (e.g. {@code jo*}) is a prefix search; any other keyword matches
+     * anywhere in the searched columns.
+     *
+     * The criteria are {@link #normalize normalized} first, so the query matches the cached results it keys.
+     *
+     * @param unionRewrite       run prefix searches as one UNION ALL branch per search column
+     * @param selectedAttributes attributes selected by {@code baseQuery}, or {@code null} if it selects every mapped attribute
+     */
+    public static SearchQuery create(String baseQuery, Map<String, String> columnsMap, Map<String, String> criteria,
+                                     boolean unionRewrite, Collection<String> selectedAttributes) {
         final String PLACEHOLDER = "__KY_DB_FILTERS__";
+        Map<String, String> searchCriteria = normalize(criteria);
 
         String escapedQuery = baseQuery.replace("{{filters}}", PLACEHOLDER);
         String allResultQuery = escapedQuery.replace("{filters}", "1=1").replace(PLACEHOLDER, "{filters}");
         String noResultQuery = escapedQuery.replace("{filters}", "1=0").replace(PLACEHOLDER, "{filters}");
 
         if (
-            searchCriteria == null || searchCriteria.isEmpty() 
+            searchCriteria.isEmpty() 
             || columnsMap == null || columnsMap.isEmpty()
             || !escapedQuery.contains("{filters}")
         ) {
@@ -43,25 +60,68 @@ public class SearchUtil {
         }
         
         boolean isExact = Boolean.parseBoolean(searchConfig.getOrDefault(UserModel.EXACT, "false"));
+        boolean isPrefix = false;
         if (isAttributeSearch) {
             parameters.putAll(getAttributeParameters(columnsMap, searchMap));
         } else {
             String keyword = searchConfig.getOrDefault(UserModel.SEARCH, "");
-            if (keyword.trim().isEmpty() || keyword.trim().equals("*")) {
+            if (keyword.isEmpty() || keyword.equals("*")) {
                 return new SearchQuery(allResultQuery, null);
             }
-            parameters.putAll(getSearchParameters(columnsMap, keyword));
+            isPrefix = !isExact && isPrefixSearch(keyword);
+            parameters.putAll(getSearchParameters(columnsMap, isPrefix ? keyword.substring(0, keyword.length() - 1) : keyword));
         }
 
         if (parameters.isEmpty()) {
             return new SearchQuery(noResultQuery, null);
         }
 
+        SearchParameter[] params = getParameters(parameters, isExact, isPrefix);
+        if (unionRewrite && isPrefix && parameters.size() > 1 && columnsMap.containsKey("id")) {
+            return buildUnionQuery(escapedQuery, PLACEHOLDER, selectedAttributes == null ? columnsMap.keySet() : selectedAttributes, params, isExact);
+        }
+
         String conditionString = buildCondition(parameters, isExact, isAttributeSearch);
-        Object[] paramValues = getParameterValues(parameters, isExact);
         String replacedQuery = baseQuery.replace("{filters}", conditionString).replace(PLACEHOLDER, "{filters}");
 
-        return new SearchQuery(replacedQuery, paramValues);
+        return new SearchQuery(replacedQuery, params);
+    }
+
+    /**
+     * Reduces search criteria to the entries that affect the generated query, in a stable order,
+     * so that equivalent searches can share cached results.
+     */
+    public static Map<String, String> normalize(Map<String, String> searchCriteria) {
+        SortedMap<String, String> normalized = new TreeMap<>();
+        if (searchCriteria == null) {
+            return normalized;
+        }
+        searchCriteria.forEach((key, value) -> {
+            if (!key.startsWith("keycloak.") || key.equals(UserModel.SEARCH) || key.equals(UserModel.EXACT)) {
+                normalized.put(key, value == null ? "" : value.trim());
+            }
+        });
+        if (normalized.containsKey(UserModel.EXACT)) {
+            normalized.put(UserModel.EXACT, String.valueOf(Boolean.parseBoolean(normalized.get(UserModel.EXACT))));
+        }
+        return normalized;
+    }
+
+    /**
+     * Whether a free-text keyword only matches the start of the searched columns, which it does when it ends
+     * with its only '*'.
+     */
+    public static boolean isPrefixSearch(String keyword) {
+        return keyword != null && keyword.length() > 1 && keyword.indexOf('*') == keyword.length() - 1;
+    }
+
+    /**
+     * Mapped attributes matched by free-text searches.
+     */
+    public static Set<String> getSearchedAttributes(Map<String, String> columnsMap) {
+        return columnsMap.keySet().stream()
+            .filter(USER_SEARCH_ATTRIBUTES::contains)
+            .collect(Collectors.toSet());
     }
 
     private static Map<String, String> filterSearch(Map<String, String> searchCriteria, boolean isConfig) {
@@ -92,23 +152,42 @@ public class SearchUtil {
             .collect(Collectors.joining(combinator));
     }
 
-    private static Object[] getParameterValues(Map<String, String> parameters, boolean isExact) {
-        return parameters.values().stream()
-            .map(value -> (isExact || value == null) 
-                ? value 
-                : "%" + value.toUpperCase().replace("!", "!!")
+    /**
+     * Rewrites an OR-combined prefix search into one branch per column combined with UNION ALL, so each
+     * branch can use an index on the upper-cased value of its own column. Without such indexes every branch
+     * scans the table, which is more work than the single OR condition. Rows matched by more than one branch
+     * are de-duplicated by id; pagination is applied by the caller to the combined result.
+     */
+    private static SearchQuery buildUnionQuery(String escapedQuery, String placeholder, Collection<String> selectedAttributes,
+                                               SearchParameter[] params, boolean isExact) {
+        String branches = Arrays.stream(params)
+            .map(param -> buildCondition(Map.of(param.getColumn(), ""), isExact, false))
+            .map(condition -> escapedQuery.replace("{filters}", condition).replace(placeholder, "{filters}"))
+            .collect(Collectors.joining(" UNION ALL "));
+        String columns = String.join(", ", selectedAttributes);
+        String query = String.format(
+            "select %s from (select u.*, row_number() over (partition by u.id order by u.id) ky_rn from (%s) u) d where ky_rn = 1",
+            columns, branches);
+        return new SearchQuery(query, params);
+    }
+
+    private static SearchParameter[] getParameters(Map<String, String> parameters, boolean isExact, boolean isPrefix) {
+        return parameters.entrySet().stream()
+            .map(entry -> new SearchParameter(entry.getKey(), (isExact || entry.getValue() == null)
+                ? entry.getValue()
+                : (isPrefix ? "" : "%") + entry.getValue().toUpperCase().replace("!", "!!")
                     .replace("%", "!%")
                     .replace("_", "!_")
                     .replace("[", "![") + "%"
-            )
-            .toArray();
+            ))
+            .toArray(SearchParameter[]::new);
     }
     
     public static class SearchQuery {
         private final String query;
-        private final Object[] params;
+        private final SearchParameter[] params;
 
-        private SearchQuery(String query, Object[] params) {
+        private SearchQuery(String query, SearchParameter[] params) {
             this.query = query;
             this.params = params;
         }
@@ -117,8 +196,32 @@ public class SearchUtil {
             return query;
         }
     
-        public Object[] getParams() {
+        /**
+         * Parameters of the query in placeholder order, or {@code null} if it has none.
+         */
+        public SearchParameter[] getParams() {
             return params;
         }
     }
-}
\ No newline at end of file
+
+    public static class SearchParameter {
+        private final String column;
+        private final String value;
+
+        private SearchParameter(String column, String value) {
+            this.column = column;
+            this.value = value;
+        }
+
+        /**
+         * Column the parameter is compared with.
+         */
+        public String getColumn() {
+            return column;
+        }
+
+        public String getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.opensingular.dbuserprovider.util;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+
+public class WatermarkUtil {
+
+    // dates and timestamps as read by JDBC drivers, e.g. '2024-01-31 10:00:00.123' or '2024-01-31 10:00:00+01'
+    private static final DateTimeFormatter TIMESTAMP = new DateTimeFormatterBuilder()
+        .append(DateTimeFormatter.ISO_LOCAL_DATE)
+        .optionalStart().appendLiteral(' ').optionalEnd()
+        .optionalStart().appendLiteral('T').optionalEnd()
+        .optionalStart().append(DateTimeFormatter.ISO_LOCAL_TIME).optionalEnd()
+        .optionalStart().appendOffset("+HH:mm", "Z").optionalEnd()
+        .optionalStart().appendOffset("+HH", "Z").optionalEnd()
+        .toFormatter();
+    private static final DateTimeFormatter LOCAL_TIMESTAMP  = DateTimeFormatter.ofPattern("uuuu-MM-dd HH:mm:ss.SSSSSSSSS");
+    private static final DateTimeFormatter OFFSET_TIMESTAMP = DateTimeFormatter.ofPattern("uuuu-MM-dd HH:mm:ss.SSSSSSSSSxxx");
+
+    /**
+     * Compares watermarks as numbers when both are, otherwise as text, which orders the timestamps read by JDBC.
+     */
+    public static int compare(String a, String b) {
+        try {
+            return new BigDecimal(a.trim()).compareTo(new BigDecimal(b.trim()));
+        } catch (NumberFormatException e) {
+            return a.compareTo(b);
+        }
+    }
+
+    /**
+     * Moves a watermark back by the given overlap: seconds for dates and timestamps, units for numbers.
+     *
+     * @return the earlier watermark, or the watermark itself if it is neither a number nor a date
+     */
+    public static String rewind(String watermark, long overlap) {
+        if (watermark == null || overlap <= 0) {
+            return watermark;
+        }
+        String value = watermark.trim();
+        try {
+            return new BigDecimal(value).subtract(BigDecimal.valueOf(overlap)).toPlainString();
+        } catch (NumberFormatException e) {
+            // not a number, try a date
+        }
+        try {
+            TemporalAccessor parsed = TIMESTAMP.parse(value);
+            if (!parsed.isSupported(ChronoField.NANO_OF_DAY)) {
+                return LocalDate.from(parsed).minusDays((overlap + 86399) / 86400).toString();
+            }
+            if (parsed.isSupported(ChronoField.OFFSET_SECONDS)) {
+                return OffsetDateTime.from(parsed).minusSeconds(overlap).format(OFFSET_TIMESTAMP);
+            }
+            return LocalDateTime.from(parsed).minusSeconds(overlap).format(LOCAL_TIMESTAMP);
+        } catch (DateTimeParseException e) {
+            return watermark;
+        }
+    }
+}
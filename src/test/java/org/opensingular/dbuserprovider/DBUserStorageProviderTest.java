@@ -0,0 +1,153 @@
+package org.opensingular.dbuserprovider;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.credential.CredentialInput;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.SubjectCredentialManager;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.storage.DatastoreProvider;
+import org.keycloak.storage.datastore.DefaultDatastoreProvider;
+import org.opensingular.dbuserprovider.model.ProjectionProfile;
+import org.opensingular.dbuserprovider.model.QueryConfigurations;
+import org.opensingular.dbuserprovider.persistence.QueryExecutor;
+import org.opensingular.dbuserprovider.persistence.ShardedUserRepository;
+import org.opensingular.dbuserprovider.persistence.UserVersionCache;
+
+/**
+ * Migrates users on login into a mocked local store, in the transaction Keycloak opens on a mocked session.
+ */
+public class DBUserStorageProviderTest {
+    private static final String FEDERATED_ID = "f:component:42";
+    private static final String IMPORTED_ID  = "6f1c2a4e-8d0b-4f5e-9a3c-1b2d3e4f5a6b";
+
+    private ShardedUserRepository repository;
+    private RealmModel            realm;
+    private UserProvider          localUsers;
+    private UserCache             userCache;
+    private DBUserStorageProvider provider;
+
+    @Before
+    public void createProvider() {
+        repository = mock(ShardedUserRepository.class);
+        realm      = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("realm");
+        localUsers = mock(UserProvider.class);
+        userCache  = mock(UserCache.class);
+
+        KeycloakSession jobSession = mock(KeycloakSession.class);
+        when(jobSession.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+        RealmProvider realms = mock(RealmProvider.class);
+        when(realms.getRealm("realm")).thenReturn(realm);
+        when(jobSession.realms()).thenReturn(realms);
+        DefaultDatastoreProvider datastore = mock(DefaultDatastoreProvider.class);
+        when(datastore.userLocalStorage()).thenReturn(localUsers);
+        when(jobSession.getProvider(DatastoreProvider.class)).thenReturn(datastore);
+        KeycloakSessionFactory sessionFactory = mock(KeycloakSessionFactory.class);
+        when(sessionFactory.create()).thenReturn(jobSession);
+
+        KeycloakSession session = mock(KeycloakSession.class);
+        when(session.getKeycloakSessionFactory()).thenReturn(sessionFactory);
+        when(session.getProvider(UserCache.class)).thenReturn(userCache);
+
+        QueryConfigurations queryConfigurations = mock(QueryConfigurations.class);
+        when(queryConfigurations.getMigrateOnLogin()).thenReturn(true);
+        when(queryConfigurations.getLazyAttributes(any(ProjectionProfile.class))).thenReturn(Set.of());
+        provider = new DBUserStorageProvider(session, new ComponentModel(), repository, mock(QueryExecutor.class), queryConfigurations,
+                                             mock(UserVersionCache.class));
+    }
+
+    @Test
+    public void copiesAFederatedUserToKeycloakOnLogin() {
+        UserModel user = user(FEDERATED_ID);
+        when(user.getAttributes()).thenReturn(Map.of("id", List.of("42"), UserModel.USERNAME, List.of("john"), "department", List.of("sales")));
+        when(repository.validateCredentials("42", "john", "secret")).thenReturn(true);
+        UserModel local = localUser();
+        when(localUsers.addUser(realm, "john")).thenReturn(local);
+
+        assertTrue(provider.isValid(realm, user, UserCredentialModel.password("secret")));
+
+        verify(local).setEmail("john@example.com");
+        verify(local).setEnabled(true);
+        verify(local).setAttribute("department", List.of("sales"));
+        verify(local, never()).setAttribute(eq("id"), any());
+        verify(local.credentialManager()).updateCredential(any(CredentialInput.class));
+        verify(userCache).evict(realm, user);
+    }
+
+    @Test
+    public void unlinksAUserImportedBySynchronization() {
+        UserModel user = user(IMPORTED_ID);
+        when(user.getFirstAttribute(UserSynchronizer.EXTERNAL_ID_ATTRIBUTE)).thenReturn("42");
+        when(repository.validateCredentials("42", "john", "secret")).thenReturn(true);
+        UserModel local = localUser();
+        when(localUsers.getUserById(realm, IMPORTED_ID)).thenReturn(local);
+
+        assertTrue(provider.isValid(realm, user, UserCredentialModel.password("secret")));
+
+        verify(local).setFederationLink(null);
+        verify(local).removeAttribute(UserSynchronizer.EXTERNAL_ID_ATTRIBUTE);
+        verify(local.credentialManager()).updateCredential(any(CredentialInput.class));
+        verify(localUsers, never()).addUser(any(), anyString());
+    }
+
+    @Test
+    public void leavesUsersAlreadyInKeycloakAlone() {
+        UserModel user = user(FEDERATED_ID);
+        when(repository.validateCredentials("42", "john", "secret")).thenReturn(true);
+        UserModel existing = localUser();
+        when(localUsers.getUserByUsername(realm, "john")).thenReturn(existing);
+
+        assertTrue(provider.isValid(realm, user, UserCredentialModel.password("secret")));
+
+        verify(localUsers, never()).addUser(any(), anyString());
+        verify(existing.credentialManager(), never()).updateCredential(any());
+    }
+
+    @Test
+    public void migratesNothingOnAWrongPassword() {
+        UserModel user = user(FEDERATED_ID);
+
+        assertFalse(provider.isValid(realm, user, UserCredentialModel.password("wrong")));
+
+        verify(localUsers, never()).addUser(any(), anyString());
+        verify(userCache, never()).evict(any(), any());
+    }
+
+    private static UserModel user(String id) {
+        UserModel user = mock(UserModel.class);
+        when(user.getId()).thenReturn(id);
+        when(user.getUsername()).thenReturn("john");
+        when(user.getEmail()).thenReturn("john@example.com");
+        when(user.isEnabled()).thenReturn(true);
+        return user;
+    }
+
+    private static UserModel localUser() {
+        UserModel local = mock(UserModel.class);
+        when(local.credentialManager()).thenReturn(mock(SubjectCredentialManager.class));
+        return local;
+    }
+}
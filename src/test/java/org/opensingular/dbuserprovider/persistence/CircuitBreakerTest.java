@@ -0,0 +1,127 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+    private static final long SLOW_MILLIS = 100;
+    private static final long OPEN_MILLIS = 50;
+
+    private final CircuitBreaker breaker = new CircuitBreaker("test", 50, SLOW_MILLIS, OPEN_MILLIS);
+
+    @Test
+    public void staysClosedBelowTheMinimumNumberOfCalls() throws Exception {
+        for (int i = 0; i < 9; i++) {
+            failLogin();
+        }
+        breaker.acquire(OperationClass.LOGIN);
+    }
+
+    @Test
+    public void opensOnceTheFailureRateIsReached() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            succeedLogin(1);
+            failLogin();
+        }
+        assertOpen(OperationClass.LOGIN);
+        assertOpen(OperationClass.ADMIN);
+    }
+
+    @Test
+    public void countsSlowCallsAsFailures() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            succeedLogin(SLOW_MILLIS);
+        }
+        assertOpen(OperationClass.LOGIN);
+    }
+
+    @Test
+    public void ignoresAdminQueries() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            breaker.acquire(OperationClass.ADMIN);
+            if (i % 2 == 0) {
+                breaker.onFailure(OperationClass.ADMIN);
+            } else {
+                breaker.onSuccess(OperationClass.ADMIN, SLOW_MILLIS * 10);
+            }
+        }
+        breaker.acquire(OperationClass.LOGIN);
+    }
+
+    @Test
+    public void ignoresCancelledQueries() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            breaker.acquire(OperationClass.LOGIN);
+            breaker.onCancelled(OperationClass.LOGIN);
+        }
+        breaker.acquire(OperationClass.LOGIN);
+    }
+
+    @Test
+    public void closesAfterASuccessfulTrial() throws Exception {
+        open();
+        Thread.sleep(OPEN_MILLIS * 2);
+        // admin queries do not run the trial
+        assertOpen(OperationClass.ADMIN);
+        breaker.acquire(OperationClass.LOGIN);
+        // a single trial at a time
+        assertOpen(OperationClass.LOGIN);
+        breaker.onSuccess(OperationClass.LOGIN, 1);
+        breaker.acquire(OperationClass.LOGIN);
+        breaker.acquire(OperationClass.ADMIN);
+    }
+
+    @Test
+    public void opensAgainAfterAFailedTrial() throws Exception {
+        open();
+        Thread.sleep(OPEN_MILLIS * 2);
+        failLogin();
+        assertOpen(OperationClass.LOGIN);
+    }
+
+    @Test
+    public void letsAnotherTrialRunAfterACancelledOne() throws Exception {
+        open();
+        Thread.sleep(OPEN_MILLIS * 2);
+        breaker.acquire(OperationClass.LOGIN);
+        breaker.onCancelled(OperationClass.LOGIN);
+        breaker.acquire(OperationClass.LOGIN);
+    }
+
+    @Test
+    public void neverOpensWhenDisabled() throws Exception {
+        CircuitBreaker disabled = new CircuitBreaker("test", 0, SLOW_MILLIS, OPEN_MILLIS);
+        for (int i = 0; i < 20; i++) {
+            disabled.acquire(OperationClass.LOGIN);
+            disabled.onFailure(OperationClass.LOGIN);
+        }
+        disabled.acquire(OperationClass.LOGIN);
+    }
+
+    private void open() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            failLogin();
+        }
+        assertOpen(OperationClass.LOGIN);
+    }
+
+    private void succeedLogin(long millis) throws Exception {
+        breaker.acquire(OperationClass.LOGIN);
+        breaker.onSuccess(OperationClass.LOGIN, millis);
+    }
+
+    private void failLogin() throws Exception {
+        breaker.acquire(OperationClass.LOGIN);
+        breaker.onFailure(OperationClass.LOGIN);
+    }
+
+    private void assertOpen(OperationClass operationClass) {
+        try {
+            breaker.acquire(operationClass);
+            fail("circuit closed for " + operationClass);
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensingular.dbuserprovider.util.PagingUtil.Pageable;
+
+/**
+ * Runs two embedded Infinispan nodes sharing a replicated cache, like Keycloak's work cache, to check what one
+ * node publishes is seen by the other.
+ */
+public class ClusterCachesTest {
+    private static final String              CACHE_NAME = "work";
+    private static final Map<String, String> SEARCH     = Map.of("keycloak.session.realm.users.query.search", "jo");
+    private static final Pageable            PAGE       = new Pageable(0, 10);
+
+    private DefaultCacheManager first;
+    private DefaultCacheManager second;
+    private RepositoryCaches    firstCaches;
+    private RepositoryCaches    secondCaches;
+
+    @Before
+    public void startNodes() throws InterruptedException {
+        first  = startNode("first");
+        second = startNode("second");
+        Cache<String, Object> firstCache  = first.getCache(CACHE_NAME);
+        Cache<String, Object> secondCache = second.getCache(CACHE_NAME);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (firstCache.getAdvancedCache().getRpcManager().getMembers().size() < 2) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Nodes did not form a cluster");
+            }
+            Thread.sleep(50);
+        }
+        firstCaches  = new RepositoryCaches(60000, new ClusterCaches(firstCache, "component", "default"), null, null);
+        secondCaches = new RepositoryCaches(60000, new ClusterCaches(secondCache, "component", "default"), null, null);
+    }
+
+    @After
+    public void stopNodes() {
+        if (firstCaches != null) {
+            firstCaches.close();
+            secondCaches.close();
+        }
+        if (second != null) {
+            second.stop();
+        }
+        if (first != null) {
+            first.stop();
+        }
+    }
+
+    @Test
+    public void sharesTheUserCount() {
+        assertEquals(42, firstCaches.getUserCountCache().get(60000, () -> 42));
+        assertEquals(42, secondCaches.getUserCountCache().get(60000, () -> {
+            throw new AssertionError("count loaded again on the second node");
+        }));
+    }
+
+    @Test
+    public void invalidationOnOneNodeFlushesTheOther() {
+        List<Map<String, String>> rows = List.of(Map.of("id", "1", "username", "john"));
+        secondCaches.getSearchPageCache().put(SEARCH, PAGE, rows);
+        assertEquals(rows, secondCaches.getSearchPageCache().get(SEARCH, PAGE).orElse(null));
+
+        firstCaches.invalidateSearches();
+
+        assertFalse(secondCaches.getSearchPageCache().get(SEARCH, PAGE).isPresent());
+    }
+
+    @Test
+    public void invalidatingTheCountRemovesItOnEveryNode() {
+        firstCaches.getUserCountCache().get(60000, () -> 42);
+        secondCaches.getUserCountCache().get(60000, () -> 0);
+
+        secondCaches.invalidateAll();
+
+        assertEquals(7, firstCaches.getUserCountCache().get(60000, () -> 7));
+        assertEquals(7, secondCaches.getUserCountCache().get(60000, () -> 0));
+    }
+
+    @Test
+    public void electsOneChangeFeedLeader() throws InterruptedException {
+        ClusterCaches firstNode  = new ClusterCaches(first.getCache(CACHE_NAME), "component", "default");
+        ClusterCaches secondNode = new ClusterCaches(second.getCache(CACHE_NAME), "component", "default");
+
+        assertTrue(firstNode.holdChangeFeedLease("first", 500));
+        assertFalse(secondNode.holdChangeFeedLease("second", 500));
+        assertTrue(firstNode.holdChangeFeedLease("first", 500));
+
+        Thread.sleep(800);
+        assertTrue(secondNode.holdChangeFeedLease("second", 500));
+        assertFalse(firstNode.holdChangeFeedLease("first", 500));
+    }
+
+    @Test
+    public void electsOneRehashRunnerApartFromTheChangeFeedLeader() {
+        ClusterCaches firstNode  = new ClusterCaches(first.getCache(CACHE_NAME), "component", "default");
+        ClusterCaches secondNode = new ClusterCaches(second.getCache(CACHE_NAME), "component", "default");
+
+        assertTrue(firstNode.holdChangeFeedLease("first", 5000));
+        assertTrue(secondNode.holdRehashLease("second", 5000));
+        assertFalse(firstNode.holdRehashLease("first", 5000));
+
+        firstNode.releaseRehashLease("first");
+        assertFalse(firstNode.holdRehashLease("first", 5000));
+        secondNode.releaseRehashLease("second");
+        assertTrue(firstNode.holdRehashLease("first", 5000));
+    }
+
+    @Test
+    public void keepsLeasesOfOtherShardsApart() {
+        ClusterCaches firstShard  = new ClusterCaches(first.getCache(CACHE_NAME), "component", "eu");
+        ClusterCaches secondShard = new ClusterCaches(second.getCache(CACHE_NAME), "component", "us");
+
+        assertTrue(firstShard.holdChangeFeedLease("first", 5000));
+        assertTrue(secondShard.holdChangeFeedLease("second", 5000));
+    }
+
+    private static DefaultCacheManager startNode(String name) {
+        GlobalConfigurationBuilder global = GlobalConfigurationBuilder.defaultClusteredBuilder();
+        global.transport()
+              .clusterName("cluster-caches-test")
+              .nodeName(name)
+              .addProperty("configurationFile", "jgroups-test.xml");
+        ConfigurationBuilder cache = new ConfigurationBuilder();
+        cache.clustering().cacheMode(CacheMode.REPL_SYNC);
+        DefaultCacheManager manager = new DefaultCacheManager(global.build());
+        manager.defineConfiguration(CACHE_NAME, cache.build());
+        return manager;
+    }
+}
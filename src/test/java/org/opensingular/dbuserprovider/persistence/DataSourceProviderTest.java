@@ -0,0 +1,95 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.UserModel;
+
+public class DataSourceProviderTest {
+    private TestDatabase     database;
+    private SharedDataSource primary;
+
+    @Before
+    public void createDatabase() throws SQLException {
+        database = new TestDatabase("replicated");
+        primary  = database.endpoint();
+    }
+
+    @After
+    public void dropDatabase() {
+        database.close();
+    }
+
+    @Test
+    public void readsFromTheReplicasBeforeThePrimary() throws SQLException {
+        SharedDataSource   first    = database.endpoint();
+        SharedDataSource   second   = database.endpoint();
+        DataSourceProvider provider = TestDatabase.provider(primary, List.of(first, second));
+
+        List<SharedDataSource> endpoints = provider.getReadEndpoints(null);
+        List<SharedDataSource> next      = provider.getReadEndpoints(null);
+
+        assertEquals(3, endpoints.size());
+        assertSame(primary, endpoints.get(2));
+        assertSame(primary, next.get(2));
+        assertNotEquals(endpoints.get(0), next.get(0));
+    }
+
+    @Test
+    public void keepsRecentlyWrittenUsersOnThePrimary() throws SQLException {
+        DataSourceProvider provider = TestDatabase.provider(primary, List.of(database.endpoint()));
+
+        provider.markWritten(DataSourceProvider.writeKey(UserModel.USERNAME, "John"), null);
+
+        assertEquals(List.of(primary), provider.getReadEndpoints(DataSourceProvider.writeKey(UserModel.USERNAME, "john")));
+        assertEquals(2, provider.getReadEndpoints(DataSourceProvider.writeKey(UserModel.USERNAME, "mary")).size());
+        assertEquals(2, provider.getReadEndpoints(null).size());
+    }
+
+    @Test
+    public void skipsAFailingReplica() throws SQLException {
+        SharedDataSource   down     = unavailable(new SQLException("connection refused"));
+        DataSourceProvider provider = TestDatabase.provider(primary, List.of(down));
+
+        try (Connection connection = provider.getReadConnection(OperationClass.LOGIN, null)) {
+            assertFalse(connection.isClosed());
+        }
+
+        verify(down).getConnection(OperationClass.LOGIN);
+        verify(primary).getConnection(OperationClass.LOGIN);
+        assertEquals(List.of(primary), provider.getReadEndpoints(null));
+    }
+
+    @Test
+    public void keepsABusyReplica() throws SQLException {
+        SharedDataSource   busy     = unavailable(new BulkheadFullException("busy"));
+        DataSourceProvider provider = TestDatabase.provider(primary, List.of(busy));
+
+        try (Connection connection = provider.getReadConnection(OperationClass.LOGIN, null)) {
+            assertFalse(connection.isClosed());
+        }
+
+        assertTrue(provider.getReadEndpoints(null).contains(busy));
+    }
+
+    private static SharedDataSource unavailable(SQLException failure) throws SQLException {
+        SharedDataSource endpoint = mock(SharedDataSource.class);
+        when(endpoint.getPoolName()).thenReturn("unavailable");
+        when(endpoint.getConnection(any())).thenThrow(failure);
+        return endpoint;
+    }
+}
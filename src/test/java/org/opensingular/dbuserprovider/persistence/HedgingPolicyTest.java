@@ -0,0 +1,73 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.DriverManager;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.UserModel;
+import org.opensingular.dbuserprovider.model.ProjectionProfile;
+
+public class HedgingPolicyTest {
+    private TestDatabase database;
+
+    @Before
+    public void createDatabase() {
+        database = new TestDatabase("hedged").insert("1", "john", "john@example.com");
+    }
+
+    @After
+    public void dropDatabase() {
+        database.close();
+    }
+
+    @Test
+    public void waitsForEnoughSamples() {
+        HedgingPolicy policy = new HedgingPolicy(95);
+        for (int i = 1; i < 20; i++) {
+            policy.record(i);
+        }
+        assertEquals(-1, policy.getDelayMillis());
+
+        for (int i = 20; i <= 100; i++) {
+            policy.record(i);
+        }
+        assertEquals(95, policy.getDelayMillis());
+        policy.close();
+    }
+
+    @Test
+    public void isDisabledWithoutPercentile() {
+        assertFalse(new HedgingPolicy(0).isEnabled());
+    }
+
+    @Test
+    public void answersFromTheSecondEndpointWhenTheFirstIsSlow() throws Exception {
+        SharedDataSource slow = database.endpoint();
+        when(slow.getConnection(any())).thenAnswer(invocation -> {
+            Thread.sleep(5000);
+            return DriverManager.getConnection(database.getUrl());
+        });
+        SharedDataSource   primary  = database.endpoint();
+        DataSourceProvider provider = TestDatabase.provider(primary, List.of(slow), 95);
+        for (int i = 0; i < 20; i++) {
+            provider.getHedgingPolicy().record(1);
+        }
+        UserRepository repository = new UserRepository(provider, new TestQueries().build(), new RepositoryCaches(0));
+
+        long started = System.currentTimeMillis();
+        assertEquals("john", repository.findUserByUsername("john", ProjectionProfile.LOGIN).get().get(UserModel.USERNAME));
+
+        assertTrue(System.currentTimeMillis() - started < 2000);
+        verify(slow).getConnection(OperationClass.LOGIN);
+        verify(primary).getConnection(OperationClass.LOGIN);
+    }
+}
@@ -0,0 +1,202 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.keycloak.models.UserModel;
+import org.opensingular.dbuserprovider.util.SearchUtil;
+
+public class SearchIndexTest {
+    private static final Map<String, String> COLUMNS  = Map.of("id", "u.id",
+                                                               UserModel.USERNAME, "u.login",
+                                                               UserModel.EMAIL, "u.mail",
+                                                               UserModel.FIRST_NAME, "u.first_name",
+                                                               UserModel.LAST_NAME, "u.last_name");
+    private static final List<String>        KEYWORDS = List.of("", "j", "jo", "JOH", "ohn", "smith", "_la_", "100%", "0%", "!", "a*b", "*jo",
+                                                                "@example", "zo\u00eb", "ANNA.", "o'n", "1", "12", "nobody");
+
+    @Test
+    public void matchesLikeTheGeneratedQuery() {
+        List<Map<String, String>> users = users(300);
+        SearchIndex               index = build(users);
+
+        for (String keyword : KEYWORDS) {
+            assertEquals(keyword, ids(like(users, keyword)), ids(index.search(SearchIndex.getKeyword(search(keyword)), 0, -1)));
+            assertEquals(keyword, Integer.valueOf(like(users, keyword).size()), index.count(SearchIndex.getKeyword(search(keyword))));
+        }
+    }
+
+    @Test
+    public void matchesChangedUsersLikeTheGeneratedQuery() {
+        List<Map<String, String>> users = users(300);
+        SearchIndex               index = build(users);
+        List<Map<String, String>> changes = new ArrayList<>();
+        for (int i = 0; i < users.size(); i += 7) {
+            Map<String, String> user = new HashMap<>(users.get(i));
+            user.put(UserModel.USERNAME, "renamed_" + user.get(UserModel.USERNAME));
+            user.put(UserModel.LAST_NAME, i % 2 == 0 ? null : "Johnson");
+            users.set(i, user);
+            changes.add(user);
+        }
+        index.apply(changes);
+        users.removeIf(user -> user.get("id").equals("3"));
+        index.remove("3");
+
+        for (String keyword : KEYWORDS) {
+            assertEquals(keyword, ids(like(users, keyword)), ids(index.search(SearchIndex.getKeyword(search(keyword)), 0, -1)));
+        }
+    }
+
+    @Test
+    public void skipsInvalidatedUsers() {
+        List<Map<String, String>> users = users(20);
+        SearchIndex               index = build(users);
+        index.invalidate(List.of("0", "1"));
+
+        List<String> found = ids(index.search("", 0, -1));
+        assertEquals(18, found.size());
+        assertEquals(false, found.contains("0") || found.contains("1"));
+    }
+
+    @Test
+    public void ordersLikeTheMergedShards() {
+        List<Map<String, String>> users = new ArrayList<>();
+        String[] usernames = { "b", "A", "_x", "a_", "\u00e9mile", "Zed", "zed2" };
+        for (int i = 0; i < usernames.length; i++) {
+            users.add(user(i, usernames[i], null, null, null));
+        }
+        SearchIndex index = build(users);
+
+        List<Map<String, String>> expected = new ArrayList<>(users);
+        expected.sort(ShardedUserRepository.BY_USERNAME);
+        assertEquals(ids(expected), ids(index.search("", 0, -1)));
+        assertEquals(List.of("A", "a_", "b", "Zed", "zed2", "_x", "\u00e9mile"), usernames(index.search("", 0, -1)));
+    }
+
+    @Test
+    public void returnsPages() {
+        List<Map<String, String>> users = users(50);
+        SearchIndex               index = build(users);
+        List<String>              all   = ids(index.search("", 0, -1));
+
+        assertEquals(all.subList(10, 20), ids(index.search("", 10, 10)));
+        assertEquals(all.subList(45, 50), ids(index.search("", 45, 10)));
+        assertEquals(List.of(), ids(index.search("", 60, 10)));
+    }
+
+    @Test
+    public void onlyAnswersFreeTextSearches() {
+        assertEquals("jo", SearchIndex.getKeyword(search(" jo ")));
+        assertEquals("", SearchIndex.getKeyword(search("*")));
+        assertEquals("a*b", SearchIndex.getKeyword(search("a*b")));
+        assertNull(SearchIndex.getKeyword(search("jo*")));
+        assertNull(SearchIndex.getKeyword(Map.of(UserModel.SEARCH, "jo", UserModel.EXACT, "true")));
+        assertNull(SearchIndex.getKeyword(Map.of(UserModel.SEARCH, "jo", UserModel.EMAIL, "jo@example.com")));
+        assertNull(SearchIndex.getKeyword(Map.of(UserModel.USERNAME, "jo")));
+    }
+
+    @Test
+    public void answersNothingBeforeTheFirstBuild() {
+        SearchIndex index = new SearchIndex(SearchUtil.getSearchedAttributes(COLUMNS), COLUMNS.keySet());
+
+        assertNull(index.search("jo", 0, 10));
+        assertNull(index.count("jo"));
+    }
+
+    private static SearchIndex build(List<Map<String, String>> users) {
+        SearchIndex index = new SearchIndex(SearchUtil.getSearchedAttributes(COLUMNS), COLUMNS.keySet());
+        index.rebuild(consumer -> {
+            for (int i = 0; i < users.size(); i += 64) {
+                consumer.accept(users.subList(i, Math.min(i + 64, users.size())));
+            }
+        });
+        return index;
+    }
+
+    /**
+     * Reference result: the users matched by the parameters of the generated query, evaluated with SQL LIKE
+     * semantics, in the order the shards are merged.
+     */
+    private static List<Map<String, String>> like(List<Map<String, String>> users, String keyword) {
+        SearchUtil.SearchQuery query = SearchUtil.create("select * from users u where {filters}", COLUMNS, search(keyword));
+        Map<String, String>    attributes = COLUMNS.entrySet().stream().collect(Collectors.toMap(Map.Entry::getValue, Map.Entry::getKey));
+        List<Map<String, String>> matched = new ArrayList<>();
+        for (Map<String, String> user : users) {
+            boolean matches = query.getParams() == null;
+            for (int i = 0; !matches && i < query.getParams().length; i++) {
+                String value = user.get(attributes.get(query.getParams()[i].getColumn()));
+                matches = value != null && likePattern(query.getParams()[i].getValue()).matcher(value.toUpperCase(Locale.ROOT)).matches();
+            }
+            if (matches) {
+                matched.add(user);
+            }
+        }
+        matched.sort(ShardedUserRepository.BY_USERNAME);
+        return matched;
+    }
+
+    // LIKE pattern with ESCAPE '!'
+    private static Pattern likePattern(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '!' && i + 1 < pattern.length()) {
+                regex.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+            } else if (c == '%') {
+                regex.append(".*");
+            } else if (c == '_') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static Map<String, String> search(String keyword) {
+        return Map.of(UserModel.SEARCH, keyword);
+    }
+
+    private static List<String> ids(List<Map<String, String>> users) {
+        return users.stream().map(user -> user.get("id")).collect(Collectors.toList());
+    }
+
+    private static List<String> usernames(List<Map<String, String>> users) {
+        return users.stream().map(user -> user.get(UserModel.USERNAME)).collect(Collectors.toList());
+    }
+
+    private static List<Map<String, String>> users(int count) {
+        String[] firstNames = { "John", "Johanna", "Jo", "Zo\u00eb", "Ana", "Anna", "Mary-Ann", null };
+        String[] lastNames  = { "Smith", "O'Neil", "de_la_Cruz", "100%", "\u00c5berg", "Blacksmith", "a*b!", null };
+        Random   random     = new Random(42);
+        List<Map<String, String>> users = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String firstName = firstNames[random.nextInt(firstNames.length)];
+            String lastName  = lastNames[random.nextInt(lastNames.length)];
+            String username  = (firstName == null ? "user" : firstName) + "." + (lastName == null ? "" : lastName) + i;
+            String email     = random.nextInt(4) == 0 ? null : username.toLowerCase(Locale.ROOT) + "@example.com";
+            users.add(user(i, random.nextBoolean() ? username : username.toUpperCase(Locale.ROOT), email, firstName, lastName));
+        }
+        return users;
+    }
+
+    private static Map<String, String> user(int id, String username, String email, String firstName, String lastName) {
+        Map<String, String> user = new HashMap<>();
+        user.put("id", Integer.toString(id));
+        user.put(UserModel.USERNAME, username);
+        user.put(UserModel.EMAIL, email);
+        user.put(UserModel.FIRST_NAME, firstName);
+        user.put(UserModel.LAST_NAME, lastName);
+        return user;
+    }
+}
@@ -0,0 +1,69 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+
+import org.junit.Test;
+
+public class ShardRouterTest {
+    private static final List<String> SHARDS = List.of("default", "eu", "us");
+
+    @Test
+    public void asksEveryShardByDefault() {
+        ShardRouter router = new ShardRouter(ShardRouting.getByDescription(null), SHARDS, Map.of());
+
+        assertFalse(router.route(null, "john", "john@example.com").isPresent());
+    }
+
+    @Test
+    public void keepsTheIdsOfTheFirstShard() {
+        ShardRouter router = new ShardRouter(ShardRouting.ALL_SHARDS, SHARDS, Map.of());
+
+        assertEquals("5", router.qualifyId(0, "5"));
+        assertEquals("eu:5", router.qualifyId(1, "5"));
+        assertEquals(OptionalInt.of(0), router.routeId("5"));
+        assertEquals(OptionalInt.of(1), router.routeId("eu:5"));
+        assertEquals(OptionalInt.of(2), router.route("us:5", "john", null));
+        assertEquals("5", router.localId("us:5"));
+        assertEquals("5", router.localId("5"));
+    }
+
+    @Test
+    public void leavesUnknownPrefixesToTheFirstShard() {
+        ShardRouter router = new ShardRouter(ShardRouting.ALL_SHARDS, SHARDS, Map.of());
+
+        assertEquals(OptionalInt.of(0), router.routeId("asia:5"));
+        assertEquals("asia:5", router.localId("asia:5"));
+        assertEquals(OptionalInt.of(0), router.routeId("default:5"));
+        assertEquals("default:5", router.localId("default:5"));
+    }
+
+    @Test
+    public void routesByUsernameHash() {
+        ShardRouter router = new ShardRouter(ShardRouting.USERNAME_HASH, SHARDS, Map.of());
+
+        assertEquals(OptionalInt.of(Math.floorMod("john".hashCode(), 3)), router.route(null, "John", null));
+        assertFalse(router.route(null, null, "john@example.com").isPresent());
+    }
+
+    @Test
+    public void routesByEmailDomain() {
+        ShardRouter router = new ShardRouter(ShardRouting.EMAIL_DOMAIN, SHARDS, Map.of("example.eu", "eu"));
+
+        assertEquals(OptionalInt.of(1), router.route(null, null, "john@Example.EU"));
+        assertEquals(OptionalInt.of(1), router.route(null, "john@example.eu", null));
+        assertFalse(router.route(null, null, "john@example.com").isPresent());
+    }
+
+    @Test
+    public void routesEverythingToASingleShard() {
+        ShardRouter router = new ShardRouter(ShardRouting.EMAIL_DOMAIN, List.of("default"), Map.of());
+
+        assertEquals(OptionalInt.of(0), router.route(null, "john", null));
+        assertEquals("5", router.qualifyId(0, "5"));
+    }
+}
@@ -0,0 +1,103 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.UserModel;
+import org.opensingular.dbuserprovider.model.ProjectionProfile;
+
+/**
+ * Runs the sharded lookups against two in-memory databases.
+ */
+public class ShardedUserRepositoryTest {
+    private TestDatabase  main;
+    private TestDatabase  eu;
+    private QueryExecutor queryExecutor;
+
+    @Before
+    public void createShards() {
+        main = new TestDatabase("main").insert("1", "john", "john@example.com").insert("2", "mary", "mary@example.com");
+        eu   = new TestDatabase("eu").insert("1", "pierre", "pierre@example.eu");
+        queryExecutor = new QueryExecutor();
+    }
+
+    @After
+    public void dropShards() {
+        queryExecutor.close();
+        main.close();
+        eu.close();
+    }
+
+    @Test
+    public void keepsTheIdsOfTheMainDatabase() throws SQLException {
+        ShardedUserRepository repository = repository(ShardRouting.ALL_SHARDS);
+
+        assertEquals("1", repository.findUserByUsername("john", ProjectionProfile.LOGIN).get().get("id"));
+        assertEquals("eu:1", repository.findUserByUsername("pierre", ProjectionProfile.LOGIN).get().get("id"));
+        assertEquals("john", repository.findUserById("1", ProjectionProfile.FULL).get(UserModel.USERNAME));
+        assertEquals("pierre", repository.findUserById("eu:1", ProjectionProfile.FULL).get(UserModel.USERNAME));
+        assertNull(repository.findUserById("us:1", ProjectionProfile.FULL));
+    }
+
+    @Test
+    public void asksTheOtherShardsWhenTheRoutedShardMisses() throws SQLException {
+        ShardedUserRepository repository = repository(ShardRouting.USERNAME_HASH);
+        // users placed by region rather than by username hash
+        for (String username : List.of("john", "mary", "pierre")) {
+            assertTrue(username, repository.findUserByUsername(username, ProjectionProfile.LOGIN).isPresent());
+        }
+        assertEquals("eu:1", repository.findUserByEmail("pierre@example.eu", ProjectionProfile.LOGIN).get().get("id"));
+        assertFalse(repository.findUserByUsername("nobody", ProjectionProfile.LOGIN).isPresent());
+    }
+
+    @Test
+    public void updatesThePasswordOnTheOwningShard() throws SQLException {
+        ShardedUserRepository repository = repository(ShardRouting.USERNAME_HASH);
+
+        assertTrue(repository.updateCredentials(null, "pierre", null, "secret"));
+        assertTrue(repository.validateCredentials("eu:1", "pierre", "secret"));
+        assertFalse(repository.validateCredentials(null, "pierre", "wrong"));
+        assertNull(main.queryString("select hash_pwd from users where username = 'pierre'"));
+    }
+
+    @Test
+    public void rejectsUsernamesHeldBySeveralShards() throws SQLException {
+        eu.insert("2", "john", "john@example.eu");
+        ShardedUserRepository repository = repository(ShardRouting.ALL_SHARDS);
+
+        assertFalse(repository.updateCredentials(null, "john", null, "secret"));
+        assertTrue(repository.updateCredentials("eu:2", "john", null, "secret"));
+        assertNull(main.queryString("select hash_pwd from users where id = '1'"));
+    }
+
+    @Test
+    public void mergesTheShardsInUsernameOrder() throws SQLException {
+        TestQueries queries = new TestQueries();
+        // H2 has no "C" collation to order by
+        queries.rdbms = RDBMS.IBMDB2;
+        List<Map<String, String>> users = repository(ShardRouting.ALL_SHARDS, queries).findUsers(Map.of(UserModel.SEARCH, "*"), null);
+
+        assertEquals(List.of("1", "2", "eu:1"), users.stream().map(user -> user.get("id")).collect(Collectors.toList()));
+    }
+
+    private ShardedUserRepository repository(ShardRouting routing) throws SQLException {
+        return repository(routing, new TestQueries());
+    }
+
+    private ShardedUserRepository repository(ShardRouting routing, TestQueries queries) throws SQLException {
+        List<Shard> shards = List.of(new Shard("default", TestDatabase.provider(main), new RepositoryCaches(0)),
+                                     new Shard("eu", TestDatabase.provider(eu), new RepositoryCaches(0)));
+        return new ShardedUserRepository(shards, new ShardRouter(routing, List.of("default", "eu"), Map.of()), queryExecutor,
+                                          queries.build());
+    }
+}
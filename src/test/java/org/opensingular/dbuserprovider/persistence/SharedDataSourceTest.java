@@ -0,0 +1,67 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+public class SharedDataSourceTest {
+    private static final PoolSettings POOL = new PoolSettings(2, 5, 0, 500, 5, 30000);
+
+    private TestDatabase     database;
+    private HikariDataSource pool;
+
+    @Before
+    public void openPool() {
+        database = new TestDatabase("pool");
+        HikariConfig config = SharedDataSource.hikariConfig(database.getUrl(), RDBMS.POSTGRESQL, "", "", "test", Map.of(), POOL);
+        config.setDriverClassName(org.h2.Driver.class.getName());
+        config.getDataSourceProperties().clear();
+        pool = new HikariDataSource(config);
+    }
+
+    @After
+    public void closePool() {
+        pool.close();
+        database.close();
+    }
+
+    @Test
+    public void keepsTheMinimumSizeIdle() {
+        assertEquals(2, pool.getMinimumIdle());
+        assertEquals(5, pool.getMaximumPoolSize());
+    }
+
+    @Test
+    public void opensConnectionsUpToTheMaximumSizeOnDemand() throws SQLException {
+        List<Connection> burst = new ArrayList<>();
+        try {
+            for (int i = 0; i < 5; i++) {
+                burst.add(pool.getConnection());
+            }
+            assertEquals(5, pool.getHikariPoolMXBean().getActiveConnections());
+            long started = System.currentTimeMillis();
+            try (Connection extra = pool.getConnection()) {
+                fail("Pool grew above its maximum size");
+            } catch (SQLException e) {
+                assertTrue(System.currentTimeMillis() - started >= 400);
+            }
+        } finally {
+            for (Connection connection : burst) {
+                connection.close();
+            }
+        }
+    }
+}
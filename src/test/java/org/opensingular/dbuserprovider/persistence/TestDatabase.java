@@ -0,0 +1,132 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+/**
+ * In-memory H2 database in PostgreSQL mode holding a {@code users} table, handed to the repositories through a
+ * mocked pool so the queries they build run against a real database.
+ */
+class TestDatabase implements Closeable {
+    static final List<String> COLUMNS = List.of("id=id", "username=username", "email=email", "firstName=first_name", "lastName=last_name");
+
+    private final String     name;
+    private final String     url;
+    // keeps the in-memory database open
+    private final Connection connection;
+
+    TestDatabase(String name) {
+        this.name = name;
+        this.url  = "jdbc:h2:mem:" + name + "-" + UUID.randomUUID() + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE";
+        try {
+            this.connection = DriverManager.getConnection(url);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+        execute("create table users (id varchar(36) primary key, username varchar(100), email varchar(100), first_name varchar(100), "
+                + "last_name varchar(100), hash_pwd varchar(200), updated_at varchar(30))");
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    TestDatabase insert(String id, String username, String email) {
+        execute("insert into users (id, username, email) values (?, ?, ?)", id, username, email);
+        return this;
+    }
+
+    void execute(String sql, Object... params) {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (int i = 0; i < params.length; i++) {
+                statement.setObject(i + 1, params[i]);
+            }
+            statement.execute();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    String queryString(String sql, Object... params) {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (int i = 0; i < params.length; i++) {
+                statement.setObject(i + 1, params[i]);
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A pool whose connections are opened on this database.
+     */
+    SharedDataSource endpoint() throws SQLException {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL(url);
+        SharedDataSource endpoint = mock(SharedDataSource.class);
+        when(endpoint.getPoolName()).thenReturn(name);
+        when(endpoint.getDataSource()).thenReturn(dataSource);
+        when(endpoint.getConnection(any())).thenAnswer(invocation -> DriverManager.getConnection(url));
+        return endpoint;
+    }
+
+    /**
+     * A data source provider reading from the given replicas and writing to the given primary.
+     */
+    static DataSourceProvider provider(TestDatabase primary, TestDatabase... replicas) throws SQLException {
+        return provider(primary.endpoint(), replicas);
+    }
+
+    static DataSourceProvider provider(SharedDataSource primary, TestDatabase... replicas) throws SQLException {
+        List<SharedDataSource> endpoints = new ArrayList<>();
+        for (TestDatabase replica : replicas) {
+            endpoints.add(replica.endpoint());
+        }
+        return provider(primary, endpoints);
+    }
+
+    static DataSourceProvider provider(SharedDataSource primary, List<SharedDataSource> replicas) {
+        return provider(primary, replicas, 0);
+    }
+
+    static DataSourceProvider provider(SharedDataSource primary, List<SharedDataSource> replicas, double hedgePercentile) {
+        DataSourceRegistry registry = mock(DataSourceRegistry.class);
+        when(registry.acquire(eq("primary"), any(), any(), any(), any(), any(), any())).thenReturn(primary);
+        List<String> replicaUrls = new ArrayList<>();
+        for (int i = 0; i < replicas.size(); i++) {
+            replicaUrls.add("replica" + i);
+            when(registry.acquire(eq("replica" + i), any(), any(), any(), any(), any(), any())).thenReturn(replicas.get(i));
+        }
+        DataSourceProvider provider = new DataSourceProvider(registry, new CircuitBreaker("test", 50, 2000, 30000));
+        provider.configure("primary", replicaUrls, 10000, 1000, hedgePercentile, RDBMS.POSTGRESQL, "sa", "", "test", Map.of(),
+                           new PoolSettings(2, 20, 0, 10000, 5, 30000));
+        return provider;
+    }
+
+    @Override
+    public void close() {
+        try (Connection c = connection) {
+            c.createStatement().execute("shutdown");
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import java.util.List;
+
+import org.opensingular.dbuserprovider.model.QueryConfigurations;
+
+/**
+ * {@link QueryConfigurations} over the table of {@link TestDatabase}, with the factory defaults unless changed. The
+ * lookups compare the values as given, as H2 needs no upper-cased match.
+ */
+class TestQueries {
+    List<String> columns              = TestDatabase.COLUMNS;
+    RDBMS        rdbms                = RDBMS.POSTGRESQL;
+    boolean      unionRewrite;
+    String       hashFunction         = "SHA-1";
+    String       updatePassword       = "update users set hash_pwd = ? where username = ?";
+    String       watermarkColumn;
+    long         watermarkOverlap     = 60;
+    String       findChangedSince;
+    String       rehashFunction       = QueryConfigurations.NO_REHASH;
+    List<String> loginProjection;
+
+    QueryConfigurations build() {
+        return new QueryConfigurations("select {columns} from users where {filters}", "",
+                                       "select {columns} from users where id = ?", "select {columns} from users where username = ?",
+                                       "select {columns} from users where email = ?", columns,
+                                       "select hash_pwd from users where username = ?", hashFunction, updatePassword, rdbms,
+                                       false, false, unionRewrite, false, CountStrategy.EXACT, 0, null, 0, loginProjection, null, 5, 30, 0,
+                                       watermarkColumn, watermarkOverlap, findChangedSince, false, rehashFunction,
+                                       "select id, hash_pwd from users where hash_pwd not like '{%'",
+                                       "update users set hash_pwd = ? where id = ? and hash_pwd = ?", "", 500, SnapshotMode.DISABLED);
+    }
+}
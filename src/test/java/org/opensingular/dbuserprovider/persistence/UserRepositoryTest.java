@@ -0,0 +1,126 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.UserModel;
+import org.opensingular.dbuserprovider.model.QueryConfigurations;
+import org.opensingular.dbuserprovider.util.SearchUtil;
+
+/**
+ * Runs the repository queries against an in-memory primary database and its replica.
+ */
+public class UserRepositoryTest {
+    private TestDatabase primary;
+    private TestDatabase replica;
+
+    @Before
+    public void createDatabases() {
+        primary = new TestDatabase("primary").insert("1", "john", "john@example.com").insert("2", "mary", "mary@example.com");
+        replica = new TestDatabase("replica").insert("1", "john", "john@example.com").insert("2", "mary", "mary@example.com");
+        primary.execute("update users set hash_pwd = 'legacy'");
+    }
+
+    @After
+    public void dropDatabases() {
+        primary.close();
+        replica.close();
+    }
+
+    @Test
+    public void rewritesPrefixSearchesAsUnionAll() throws Exception {
+        primary.execute("update users set first_name = 'John' where id = '1'");
+        primary.insert("3", "smith", "jo@example.com").insert("4", "joe_x", null).insert("5", "ajo", "ajo@example.com");
+        Map<String, String> search  = Map.of(UserModel.SEARCH, "jo*");
+        TestQueries         queries = new TestQueries();
+        queries.unionRewrite = true;
+        QueryConfigurations union = queries.build();
+
+        assertTrue(SearchUtil.create(union.getBaseQuery(), union.getColumnsMapping(), search, true, null).getQuery().contains(" UNION ALL "));
+        assertFalse(SearchUtil.create(union.getBaseQuery(), union.getColumnsMapping(), Map.of(UserModel.SEARCH, "jo"), true, null)
+                              .getQuery().contains(" UNION ALL "));
+
+        UserRepository rewritten = new UserRepository(TestDatabase.provider(primary), union, new RepositoryCaches(0));
+        UserRepository plain     = new UserRepository(TestDatabase.provider(primary), new TestQueries().build(), new RepositoryCaches(0));
+        assertEquals(Set.of("1", "3", "4"), ids(rewritten.findUsers(search, null)));
+        assertEquals(ids(plain.findUsers(search, null)), ids(rewritten.findUsers(search, null)));
+        assertEquals(3, rewritten.getUsersCount(search));
+    }
+
+    @Test
+    public void readsChangedUsersInWatermarkOrder() throws Exception {
+        primary.insert("3", "anna", null).insert("4", "zed", null).insert("5", "bob", null);
+        primary.execute("update users set updated_at = '2024-01-01 10:00:00' where id in ('1', '2')");
+        primary.execute("update users set updated_at = '2024-01-02 09:00:00' where id = '3'");
+        primary.execute("update users set updated_at = '2024-01-01 09:00:00' where id = '5'");
+        TestQueries queries = new TestQueries();
+        queries.columns         = new ArrayList<>(TestDatabase.COLUMNS);
+        queries.columns.add("updatedAt=updated_at");
+        queries.watermarkColumn = "updatedAt";
+        UserRepository repository = new UserRepository(TestDatabase.provider(primary), queries.build(), new RepositoryCaches(0));
+
+        assertEquals(List.of("5", "1", "2", "3"), readChanged(repository, null));
+        assertEquals(List.of("2", "3"), readChanged(repository, "1"));
+
+        queries.findChangedSince = "select id, username, updated_at as updatedAt from users where updated_at >= ?";
+        repository = new UserRepository(TestDatabase.provider(primary), queries.build(), new RepositoryCaches(0));
+        assertEquals(List.of("2", "3"), readChanged(repository, "1"));
+    }
+
+    @Test
+    public void keepsRehashedUsersOnThePrimary() throws Exception {
+        DataSourceProvider provider   = TestDatabase.provider(primary, replica);
+        UserRepository     repository = new UserRepository(provider, new TestQueries().build(), new RepositoryCaches(0));
+
+        assertEquals(1, repository.updatePasswordHashes(List.<String[]>of(new String[] { "1", "legacy", "{bcrypt}wrapped" })));
+
+        assertEquals("{bcrypt}wrapped", primary.queryString("select hash_pwd from users where id = '1'"));
+        assertEquals(1, provider.getReadEndpoints(DataSourceProvider.writeKey("id", "1")).size());
+        assertEquals(2, provider.getReadEndpoints(DataSourceProvider.writeKey("id", "2")).size());
+    }
+
+    @Test
+    public void skipsTheBatchWhenTheBulkheadIsFull() throws Exception {
+        SharedDataSource busy = primary.endpoint();
+        when(busy.getConnection(any())).thenThrow(new BulkheadFullException("busy"));
+        UserRepository repository = new UserRepository(TestDatabase.provider(busy), new TestQueries().build(), new RepositoryCaches(0));
+
+        assertEquals(-1, repository.updatePasswordHashes(List.<String[]>of(new String[] { "1", "legacy", "{bcrypt}wrapped" })));
+        assertEquals("legacy", primary.queryString("select hash_pwd from users where id = '1'"));
+    }
+
+    /**
+     * Reads the changed users two at a time, like the synchronization does, from the position of the given user.
+     */
+    private List<String> readChanged(UserRepository repository, String afterId) {
+        String       watermark = afterId == null ? null : primary.queryString("select updated_at from users where id = ?", afterId);
+        String       lastId    = afterId;
+        List<String> ids       = new ArrayList<>();
+        List<Map<String, String>> batch;
+        do {
+            batch = repository.findChangedSince(watermark, lastId, 2);
+            for (Map<String, String> user : batch) {
+                ids.add(user.get("id"));
+                watermark = user.get("updatedat");
+                lastId    = user.get("id");
+            }
+        } while (batch.size() == 2);
+        return ids;
+    }
+
+    private static Set<String> ids(List<Map<String, String>> users) {
+        return users.stream().map(user -> user.get("id")).collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,178 @@
+package org.opensingular.dbuserprovider.persistence;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UserSnapshotTest {
+    private Path directory;
+    private Path file;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("user-snapshot-test");
+        file      = directory.resolve("users.snapshot");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void findsUsersByIdUsernameAndEmail() throws IOException {
+        UserSnapshot snapshot = build(users(1000));
+
+        assertEquals("user42", snapshot.findById("42").get("username"));
+        assertEquals("42", snapshot.findByUsername("USER42").get("id"));
+        assertEquals("42", snapshot.findByEmail("User42@Example.com").get("id"));
+        assertNull(snapshot.findById("1000"));
+        assertNull(snapshot.findByUsername("nobody"));
+        assertNull(snapshot.findByEmail(null));
+        snapshot.close();
+    }
+
+    @Test
+    public void keepsColumnsAndNullValues() throws IOException {
+        Map<String, String> user = user(7);
+        user.put("firstName", "Zo\u00eb");
+        user.put("lastName", null);
+        UserSnapshot snapshot = build(List.of(user));
+
+        Map<String, String> found = snapshot.findById("7");
+        assertEquals(user, found);
+        assertTrue(found.containsKey("lastName"));
+        snapshot.close();
+    }
+
+    @Test
+    public void probesPastCollidingSlots() throws IOException {
+        // "Aa" and "BB" share a String hash code, so they land in the same slot
+        List<Map<String, String>> users = new ArrayList<>();
+        for (String id : new String[] { "Aa", "BB", "AaAa", "BBBB", "AaBB", "BBAa" }) {
+            Map<String, String> user = new HashMap<>();
+            user.put("id", id);
+            user.put("username", id);
+            users.add(user);
+        }
+        UserSnapshot snapshot = build(users);
+
+        for (Map<String, String> user : users) {
+            assertEquals(user.get("id"), snapshot.findById(user.get("id")).get("id"));
+        }
+        assertNull(snapshot.findById("AaBb"));
+        snapshot.close();
+    }
+
+    @Test
+    public void answersWithAppliedChangesAndMissesInvalidatedUsers() throws IOException {
+        UserSnapshot        snapshot = build(users(10));
+        Map<String, String> renamed  = user(3);
+        renamed.put("username", "renamed");
+        snapshot.apply(List.of(renamed));
+        snapshot.invalidate(List.of("4"));
+        snapshot.remove("5");
+
+        assertEquals("renamed", snapshot.findById("3").get("username"));
+        assertEquals("3", snapshot.findByUsername("RENAMED").get("id"));
+        assertNull(snapshot.findByUsername("user3"));
+        assertNull(snapshot.findById("4"));
+        assertNull(snapshot.findById("5"));
+        assertEquals("6", snapshot.findById("6").get("id"));
+        snapshot.close();
+    }
+
+    @Test
+    public void listsTheIdsOfUnchangedUsers() throws IOException {
+        UserSnapshot snapshot = build(users(5));
+        snapshot.remove("2");
+
+        List<String> ids = new ArrayList<>();
+        snapshot.forEachId(ids::add);
+        ids.sort(Comparator.naturalOrder());
+        assertEquals(List.of("0", "1", "3", "4"), ids);
+        snapshot.close();
+    }
+
+    @Test
+    public void reloadsTheFileWithItsWatermark() throws IOException {
+        List<Map<String, String>> users = users(20);
+        build(users).close();
+
+        UserSnapshot reloaded = new UserSnapshot(file, "updated");
+        assertTrue(reloaded.isAvailable());
+        assertTrue(reloaded.getLoadedAt() > 0);
+        assertArrayEquals(new String[] { "119", "19" }, reloaded.getLoadedPosition());
+        assertEquals("user19", reloaded.findById("19").get("username"));
+        reloaded.close();
+    }
+
+    @Test
+    public void ignoresUnreadableFiles() throws IOException {
+        Files.write(file, new byte[] { 1, 2, 3 });
+
+        UserSnapshot snapshot = new UserSnapshot(file, null);
+        assertFalse(snapshot.isAvailable());
+        assertNull(snapshot.getLoadedPosition());
+        assertNull(snapshot.findById("1"));
+    }
+
+    @Test
+    public void replacesTheFileOnRebuild() throws IOException {
+        UserSnapshot snapshot = build(users(3));
+        snapshot.rebuild(consumer -> consumer.accept(List.of(user(100))));
+
+        assertNull(snapshot.findById("1"));
+        assertEquals("user100", snapshot.findById("100").get("username"));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.count());
+        }
+        snapshot.close();
+        assertFalse(snapshot.isAvailable());
+    }
+
+    private UserSnapshot build(List<Map<String, String>> users) throws IOException {
+        UserSnapshot snapshot = new UserSnapshot(file, "updated");
+        snapshot.rebuild(consumer -> {
+            for (int i = 0; i < users.size(); i += 100) {
+                consumer.accept(users.subList(i, Math.min(i + 100, users.size())));
+            }
+        });
+        return snapshot;
+    }
+
+    private static List<Map<String, String>> users(int count) {
+        List<Map<String, String>> users = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            users.add(user(i));
+        }
+        return users;
+    }
+
+    private static Map<String, String> user(int id) {
+        Map<String, String> user = new HashMap<>();
+        user.put("id", Integer.toString(id));
+        user.put("username", "user" + id);
+        user.put("email", "user" + id + "@example.com");
+        user.put("updated", Integer.toString(100 + id));
+        return user;
+    }
+}
@@ -0,0 +1,57 @@
+package org.opensingular.dbuserprovider.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class HashUtilTest {
+    private static final List<String> DIGESTS = List.of("MD2", "MD5", "SHA-1", "SHA-256", "SHA3-224", "SHA3-256", "SHA3-384", "SHA3-512",
+                                                        "SHA-384", "SHA-512/224", "SHA-512/256", "SHA-512");
+    private static final List<String> WRAPPERS = List.of("Blowfish (bcrypt)", "Argon2id");
+
+    @Test
+    public void verifiesDigests() {
+        for (String digest : DIGESTS) {
+            String hash = HashUtil.hash("secret", digest);
+            assertTrue(digest, HashUtil.verify(hash, "secret", digest));
+            assertFalse(digest, HashUtil.verify(hash, "Secret", digest));
+        }
+    }
+
+    @Test
+    public void verifiesEveryDigestWrappedByEveryRehashFunction() {
+        for (String wrapper : WRAPPERS) {
+            for (String digest : DIGESTS) {
+                String wrapped = HashUtil.wrap(HashUtil.hash("secret", digest), wrapper);
+                assertTrue(digest + " in " + wrapper, HashUtil.isWrapped(wrapped));
+                assertTrue(digest + " in " + wrapper, HashUtil.verify(wrapped, "secret", digest));
+                assertFalse(digest + " in " + wrapper, HashUtil.verify(wrapped, "Secret", digest));
+            }
+        }
+    }
+
+    @Test
+    public void hashesNewPasswordsLikeTheRehashJob() {
+        String hash = HashUtil.hash("secret", "SHA-512", "Blowfish (bcrypt)");
+        assertTrue(hash.startsWith("{Blowfish (bcrypt)}"));
+        assertTrue(HashUtil.verify(hash, "secret", "SHA-512"));
+    }
+
+    @Test
+    public void doesNotWrapWithoutRehashFunction() {
+        assertEquals(HashUtil.hash("secret", "MD5"), HashUtil.hash("secret", "MD5", null));
+        assertFalse(HashUtil.isWrapped(HashUtil.hash("secret", "MD5")));
+    }
+
+    @Test
+    public void onlyDigestsCanBeWrapped() {
+        assertTrue(HashUtil.isDigest("SHA-512"));
+        assertFalse(HashUtil.isDigest("Blowfish (bcrypt)"));
+        assertFalse(HashUtil.isDigest("Argon2id"));
+        assertFalse(HashUtil.isDigest("PBKDF2-SHA256"));
+    }
+}
@@ -0,0 +1,48 @@
+package org.opensingular.dbuserprovider.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class WatermarkUtilTest {
+
+    @Test
+    public void comparesNumbersAsNumbers() {
+        assertTrue(WatermarkUtil.compare("9", "10") < 0);
+        assertTrue(WatermarkUtil.compare("10.5", " 10") > 0);
+        assertEquals(0, WatermarkUtil.compare("10", "10.0"));
+    }
+
+    @Test
+    public void comparesTimestampsAsText() {
+        assertTrue(WatermarkUtil.compare("2024-01-31 10:00:00", "2024-02-01 09:00:00") < 0);
+        assertTrue(WatermarkUtil.compare("2024-01-31 10:00:00.5", "2024-01-31 10:00:00") > 0);
+    }
+
+    @Test
+    public void rewindsNumbersByUnits() {
+        assertEquals("940", WatermarkUtil.rewind("1000", 60));
+        assertEquals("-59.5", WatermarkUtil.rewind("0.5", 60));
+    }
+
+    @Test
+    public void rewindsTimestampsBySeconds() {
+        assertEquals("2024-01-31 09:59:00.000000000", WatermarkUtil.rewind("2024-01-31 10:00:00", 60));
+        assertEquals("2024-01-31 23:59:30.123000000", WatermarkUtil.rewind("2024-02-01T00:00:30.123", 60));
+        assertEquals("2024-01-31 09:59:00.000000000+01:00", WatermarkUtil.rewind("2024-01-31 10:00:00+01", 60));
+    }
+
+    @Test
+    public void rewindsDatesByWholeDays() {
+        assertEquals("2024-01-30", WatermarkUtil.rewind("2024-01-31", 60));
+        assertEquals("2024-01-29", WatermarkUtil.rewind("2024-01-31", 86401));
+    }
+
+    @Test
+    public void keepsWatermarksItCannotRewind() {
+        assertEquals("v42", WatermarkUtil.rewind("v42", 60));
+        assertEquals("1000", WatermarkUtil.rewind("1000", 0));
+        assertEquals(null, WatermarkUtil.rewind(null, 60));
+    }
+}